@@ -0,0 +1,135 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter.stackdriver;
+
+import com.google.devtools.cloudtrace.v2.BatchWriteSpansRequest;
+import io.grpc.Codec;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.translation.stackdriver.SpanTranslator;
+
+/**
+ * Compares the CPU cost of gzip compressing a {@code BatchWriteSpansRequest} to only serializing
+ * it, against the bytes saved, to help choose {@link StackdriverSender.Builder#compressionMinBytes(
+ * int)}. {@link #requestSize} reports the bytes saved as secondary results.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Threads(1)
+public class CompressionBenchmarks {
+  static final Endpoint FRONTEND = Endpoint.newBuilder().serviceName("frontend").build();
+  static final Endpoint BACKEND =
+      Endpoint.newBuilder().serviceName("backend").ip("192.168.99.101").port(9000).build();
+
+  /** Count of spans in the request. Spans are grouped into traces of 4 spans each. */
+  @Param({"4", "40", "400"})
+  int spanCount;
+
+  final Codec gzip = new Codec.Gzip();
+  final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+  BatchWriteSpansRequest request;
+
+  @Setup(Level.Trial) public void setup() {
+    List<Span> spans = new ArrayList<>();
+    for (int i = 0; i < spanCount; i++) {
+      int trace = i / 4, span = i % 4;
+      spans.add(Span.newBuilder()
+          .traceId(Long.toHexString(0x7180c278b62e8f6aL + trace) + "216a2aea45d08fc9")
+          .parentId(span == 0 ? null : Long.toHexString(0x6b221d5bc9e6496cL + i - 1))
+          .id(Long.toHexString(0x6b221d5bc9e6496cL + i))
+          .name(span % 2 == 0 ? "get /api/users" : "select users")
+          .kind(span % 2 == 0 ? Span.Kind.SERVER : Span.Kind.CLIENT)
+          .localEndpoint(span < 2 ? FRONTEND : BACKEND)
+          .timestamp(1_000_000L + i * 1000L)
+          .duration(123_456L + i)
+          .putTag("http.method", "GET")
+          .putTag("http.path", "/api/users")
+          .putTag("http.status_code", "200")
+          .putTag("clnt/finagle.version", "6.45.0")
+          .build());
+    }
+    request = BatchWriteSpansRequest.newBuilder()
+        .setName("projects/zipkin-demo")
+        .addAllSpans(SpanTranslator.translate("zipkin-demo", spans))
+        .build();
+  }
+
+  @Benchmark public int serialize() throws IOException {
+    buffer.reset();
+    request.writeTo(buffer);
+    return buffer.size();
+  }
+
+  /** Same as what gRPC does when the call is compressed */
+  @Benchmark public int serializeGzip() throws IOException {
+    buffer.reset();
+    try (OutputStream compressed = gzip.compress(buffer)) {
+      request.writeTo(compressed);
+    }
+    return buffer.size();
+  }
+
+  /** Sizes of the request, reported as the secondary results "rawBytes" and "gzipBytes". */
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  @State(Scope.Thread)
+  public static class RequestSize {
+    public long rawBytes, gzipBytes;
+  }
+
+  /** Only reports sizes. Runs once, as JMH sums event counters across iterations and forks. */
+  @Benchmark @BenchmarkMode(Mode.SingleShotTime)
+  @Warmup(iterations = 0) @Measurement(iterations = 1) @Fork(1)
+  public void requestSize(RequestSize size) throws IOException {
+    size.rawBytes = serialize();
+    size.gzipBytes = serializeGzip();
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt =
+        new OptionsBuilder()
+            .include(".*" + CompressionBenchmarks.class.getSimpleName() + ".*")
+            .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter.stackdriver;
+
+import com.google.devtools.cloudtrace.v2.BatchWriteSpansRequest;
+import com.google.devtools.cloudtrace.v2.TraceServiceGrpc;
+import com.google.protobuf.Empty;
+import com.linecorp.armeria.client.WebClient;
+import com.linecorp.armeria.server.Server;
+import com.linecorp.armeria.server.grpc.GrpcService;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.reporter.stackdriver.armeria.WebClientChannel;
+
+/**
+ * Compares sending the same batch over grpc-java's transport to sending it over Armeria, against
+ * a local server which accepts every request.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Threads(4)
+public class SenderTransportBenchmarks {
+  static final Endpoint FRONTEND = Endpoint.newBuilder().serviceName("frontend").build();
+
+  @Param({"10", "100"})
+  int spanCount;
+
+  Server server;
+  ManagedChannel grpcChannel;
+  StackdriverSender grpcSender, armeriaSender;
+  List<byte[]> encodedSpans;
+
+  @Setup public void setup() {
+    server = Server.builder()
+        .http(0)
+        .service(GrpcService.builder().addService(new TraceServiceGrpc.TraceServiceImplBase() {
+          @Override public void batchWriteSpans(BatchWriteSpansRequest request,
+              StreamObserver<Empty> responseObserver) {
+            responseObserver.onNext(Empty.getDefaultInstance());
+            responseObserver.onCompleted();
+          }
+        }).build())
+        .build();
+    server.start().join();
+    int port = server.activeLocalPort();
+
+    grpcChannel = ManagedChannelBuilder.forAddress("127.0.0.1", port).usePlaintext().build();
+    grpcSender = StackdriverSender.newBuilder(grpcChannel).projectId("zipkin-demo").build();
+    armeriaSender = StackdriverSender.newBuilder(
+        WebClientChannel.create(WebClient.of("http://127.0.0.1:" + port)))
+        .projectId("zipkin-demo")
+        .build();
+
+    encodedSpans = new ArrayList<>();
+    for (int i = 0; i < spanCount; i++) {
+      encodedSpans.add(StackdriverEncoder.V2.encode(Span.newBuilder()
+          .traceId(Long.toHexString(0x7180c278b62e8f6aL + i / 4) + "216a2aea45d08fc9")
+          .id(Long.toHexString(0x6b221d5bc9e6496cL + i))
+          .name("get /api/users")
+          .kind(Span.Kind.SERVER)
+          .localEndpoint(FRONTEND)
+          .timestamp(1_000_000L + i * 1000L)
+          .duration(123_456L + i)
+          .putTag("http.method", "GET")
+          .putTag("http.path", "/api/users")
+          .build()));
+    }
+  }
+
+  @TearDown public void close() {
+    grpcSender.close();
+    armeriaSender.close();
+    grpcChannel.shutdownNow();
+    server.stop().join();
+  }
+
+  @Benchmark public void sendSpans_grpcJava() throws IOException {
+    grpcSender.sendSpans(encodedSpans).execute();
+  }
+
+  @Benchmark public void sendSpans_armeria() throws IOException {
+    armeriaSender.sendSpans(encodedSpans).execute();
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt =
+        new OptionsBuilder()
+            .include(".*" + SenderTransportBenchmarks.class.getSimpleName() + ".*")
+            .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -21,6 +21,8 @@ import com.linecorp.armeria.client.SimpleDecoratingHttpClient;
 import com.linecorp.armeria.common.HttpHeaderNames;
 import com.linecorp.armeria.common.HttpRequest;
 import com.linecorp.armeria.common.HttpResponse;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.List;
@@ -28,21 +30,37 @@ import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
 class CredentialsDecoratingClient extends SimpleDecoratingHttpClient implements AutoCloseable {
 
-  static Function<HttpClient, HttpClient> newDecorator(Credentials credentials) {
-    return client -> new CredentialsDecoratingClient(client, credentials);
+  /** When the registry isn't null, records how long requests wait for credentials. */
+  static Function<HttpClient, HttpClient> newDecorator(Credentials credentials,
+      MeterRegistry meterRegistry) {
+    return client -> new CredentialsDecoratingClient(client, credentials, meterRegistry);
   }
 
   final Credentials credentials;
   final ExecutorService executor;
+  final Timer successTimer, failureTimer; // null when not recording metrics
 
-  private CredentialsDecoratingClient(HttpClient delegate, Credentials credentials) {
+  private CredentialsDecoratingClient(HttpClient delegate, Credentials credentials,
+      MeterRegistry meterRegistry) {
     super(delegate);
     this.credentials = credentials;
     executor = Executors.newSingleThreadExecutor();
+    successTimer = meterRegistry != null ? credentialsTimer(meterRegistry, "success") : null;
+    failureTimer = meterRegistry != null ? credentialsTimer(meterRegistry, "failure") : null;
+  }
+
+  // Usually cached, so this mostly shows the latency of refreshing the access token.
+  static Timer credentialsTimer(MeterRegistry meterRegistry, String outcome) {
+    return Timer.builder("zipkin_storage.stackdriver.credentials")
+        .description("Time to get request metadata from credentials, including refreshes")
+        .tag("outcome", outcome)
+        .publishPercentileHistogram()
+        .register(meterRegistry);
   }
 
   @Override public HttpResponse execute(ClientRequestContext ctx, HttpRequest req) {
@@ -55,8 +73,10 @@ class CredentialsDecoratingClient extends SimpleDecoratingHttpClient implements
 
     CompletableFuture<HttpResponse> responseFuture = new CompletableFuture<>();
 
+    long startNanos = System.nanoTime();
     credentials.getRequestMetadata(uri, executor, new RequestMetadataCallback() {
       @Override public void onSuccess(Map<String, List<String>> map) {
+        record(successTimer, startNanos);
         HttpRequest newReq = req;
         if (map != null) {
           newReq = req.withHeaders(req.headers().withMutations(headers -> {
@@ -73,6 +93,7 @@ class CredentialsDecoratingClient extends SimpleDecoratingHttpClient implements
       }
 
       @Override public void onFailure(Throwable throwable) {
+        record(failureTimer, startNanos);
         responseFuture.completeExceptionally(throwable);
       }
     });
@@ -80,6 +101,10 @@ class CredentialsDecoratingClient extends SimpleDecoratingHttpClient implements
     return HttpResponse.from(responseFuture);
   }
 
+  static void record(Timer timer, long startNanos) {
+    if (timer != null) timer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+  }
+
   @Override public void close() {
     executor.shutdownNow();
   }
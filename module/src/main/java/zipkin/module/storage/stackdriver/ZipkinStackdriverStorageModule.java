@@ -25,10 +25,15 @@ import com.linecorp.armeria.common.HttpHeaders;
 import com.linecorp.armeria.common.HttpMethod;
 import com.linecorp.armeria.common.RequestHeaders;
 import com.linecorp.armeria.common.logging.LogLevel;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.netty.handler.ssl.OpenSsl;
 import io.netty.util.internal.PlatformDependent;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
@@ -94,7 +99,8 @@ public class ZipkinStackdriverStorageModule {
       @Qualifier("projectId") String projectId,
       ClientFactory clientFactory,
       ZipkinStackdriverStorageProperties properties,
-      Credentials credentials) {
+      Credentials credentials,
+      ObjectProvider<MeterRegistry> meterRegistryProvider) {
     if (!OpenSsl.isAvailable() && !jettyAlpnAvailable()) {
       throw new IllegalStateException(
           "OpenSsl or ALPN is required. This usually requires either JDK9+, jetty-alpn, or "
@@ -122,16 +128,64 @@ public class ZipkinStackdriverStorageModule {
       options.decorator(loggingBuilder.newDecorator());
     }
 
-    return StackdriverStorage.newBuilder(properties.getApiHost())
+    // The server's registry, which backs its /metrics and /prometheus endpoints
+    MeterRegistry meterRegistry = meterRegistryProvider.getIfAvailable();
+
+    StackdriverStorage.Builder builder = StackdriverStorage.newBuilder(properties.getApiHost());
+    if (meterRegistry != null) builder.meterRegistry(meterRegistry);
+    String spoolDirectory = properties.getSpoolDirectory();
+    if (spoolDirectory != null && !spoolDirectory.isEmpty()) {
+      builder.spoolDirectory(Paths.get(spoolDirectory));
+    }
+    parsePairs(properties.getServiceRateLimitOverrides(), "service=spansPerSecond",
+        (service, rate) -> builder.serviceRateLimit(service, Integer.parseInt(rate)));
+    String projectIdTag = properties.getProjectIdTag();
+    if (projectIdTag != null && !projectIdTag.isEmpty()) builder.projectIdTag(projectIdTag);
+    parsePairs(properties.getServiceProjectIds(), "service=projectId", builder::serviceProjectId);
+    return builder
         .projectId(projectId)
         .strictTraceId(strictTraceId)
         .clientFactory(clientFactory)
+        .coalesceLinger(properties.getCoalesceLingerMs(), TimeUnit.MILLISECONDS)
+        .maxSpansPerRequest(properties.getMaxSpansPerRequest())
+        .maxConcurrentRequests(properties.getMaxConcurrentRequests())
+        .workerThreads(properties.getWorkerThreads())
+        .workerQueueSize(properties.getWorkerQueueSize())
+        .spoolMaxBytes(properties.getSpoolMaxBytes())
+        .spoolReplayRate(properties.getSpoolReplayRate())
+        .dedupWindow(properties.getDedupWindowMs(), TimeUnit.MILLISECONDS)
+        .dedupMaxSpans(properties.getDedupMaxSpans())
+        .mergeLinger(properties.getMergeLingerMs(), TimeUnit.MILLISECONDS)
+        .mergeMaxSpans(properties.getMergeMaxSpans())
+        .tailSamplingIdle(properties.getTailSamplingIdleMs(), TimeUnit.MILLISECONDS)
+        .tailSamplingLatencyThreshold(
+            properties.getTailSamplingLatencyThresholdMs(), TimeUnit.MILLISECONDS)
+        .tailSamplingBaselineRate(properties.getTailSamplingBaselineRate())
+        .tailSamplingMaxSpans(properties.getTailSamplingMaxSpans())
+        .tailSamplingMaxSpansPerTrace(properties.getTailSamplingMaxSpansPerTrace())
+        .sampleRate(properties.getSampleRate())
+        .serviceRateLimit(properties.getServiceRateLimit())
+        .serviceRateLimitMaxServices(properties.getServiceRateLimitMaxServices())
+        .maxProjects(properties.getMaxProjects())
+        .closeTimeout(properties.getCloseTimeoutMs(), TimeUnit.MILLISECONDS)
         .clientOptions(options
-            .decorator(CredentialsDecoratingClient.newDecorator(credentials))
+            .decorator(CredentialsDecoratingClient.newDecorator(credentials, meterRegistry))
             .build())
         .build();
   }
 
+  /** Parses comma-separated key=value pairs, such as from an environment variable. */
+  static void parsePairs(String pairs, String format, BiConsumer<String, String> consumer) {
+    if (pairs == null || pairs.trim().isEmpty()) return;
+    for (String pair : pairs.split(",", -1)) {
+      String[] keyAndValue = pair.split("=", -1);
+      if (keyAndValue.length != 2) {
+        throw new IllegalArgumentException("Invalid pair, expected " + format + ": " + pair);
+      }
+      consumer.accept(keyAndValue[0].trim(), keyAndValue[1].trim());
+    }
+  }
+
   // ALPN check from https://github.com/netty/netty/blob/1065e0f26e0d47a67c479b0fad81efab5d9438d9/handler/src/main/java/io/netty/handler/ssl/JettyAlpnSslEngine.java
   private static boolean jettyAlpnAvailable() {
     if (PlatformDependent.javaVersion() <= 8) {
@@ -33,6 +33,56 @@ public class ZipkinStackdriverStorageProperties implements Serializable { // for
   private String apiHost = "cloudtrace.googleapis.com:443";
   /** When set, controls the volume of HTTP logging of the Stackdriver Trace Api. */
   private HttpLogging httpLogging = HttpLogging.NONE;
+  /** When positive, merges spans of separate messages into requests, waiting up to this long. */
+  private long coalesceLingerMs;
+  /** Maximum spans in a request. Larger messages are split into several requests. */
+  private int maxSpansPerRequest = 1000;
+  /** When positive, adaptively limits concurrent requests, up to this maximum. */
+  private int maxConcurrentRequests;
+  /** When positive, translates and sends messages on this many threads instead of the caller's. */
+  private int workerThreads;
+  /** Maximum messages waiting for a worker thread. */
+  private int workerQueueSize = 1000;
+  /** When set, saves requests which fail transiently to this directory, to replay later. */
+  private String spoolDirectory;
+  /** Maximum size of the spool. When full, requests fail as if there was no spool. */
+  private long spoolMaxBytes = 1024L * 1024 * 1024;
+  /** Maximum requests per second replayed from the spool. */
+  private int spoolReplayRate = 10;
+  /** When positive, drops spans already written within this many milliseconds. */
+  private long dedupWindowMs;
+  /** Expected spans written per dedup window, which sizes its memory. */
+  private int dedupMaxSpans = 1_000_000;
+  /** When positive, merges fragments of the same span received within this many milliseconds. */
+  private long mergeLingerMs;
+  /** Maximum spans buffered for merging. */
+  private int mergeMaxSpans = 10_000;
+  /** When positive, buffers traces until idle this many milliseconds, and writes only sampled ones. */
+  private long tailSamplingIdleMs;
+  /** When positive, tail sampling keeps traces with a span lasting at least this long. */
+  private long tailSamplingLatencyThresholdMs;
+  /** Traces per second tail sampling keeps regardless of errors or latency. */
+  private int tailSamplingBaselineRate = 10;
+  /** Maximum spans buffered for tail sampling. */
+  private int tailSamplingMaxSpans = 100_000;
+  /** Maximum spans buffered per trace for tail sampling. */
+  private int tailSamplingMaxSpansPerTrace = 1000;
+  /** Fraction of traces written, decided consistently across collectors by trace ID. */
+  private float sampleRate = 1.0f;
+  /** When positive, limits the spans per second written for each service. */
+  private int serviceRateLimit;
+  /** Per-service rate limits, as comma-separated service=spansPerSecond pairs. */
+  private String serviceRateLimitOverrides = "";
+  /** Maximum services limited separately. */
+  private int serviceRateLimitMaxServices = 1000;
+  /** When set, spans with this tag are written to the project it names. */
+  private String projectIdTag = "";
+  /** Projects by service name, as comma-separated service=projectId pairs. */
+  private String serviceProjectIds = "";
+  /** Maximum projects written to. Spans for further projects are dropped. */
+  private int maxProjects = 1000;
+  /** Milliseconds close waits for buffered spans and in-flight requests to be written. */
+  private long closeTimeoutMs = 5000;
 
   public String getProjectId() {
     return projectId;
@@ -57,4 +107,204 @@ public class ZipkinStackdriverStorageProperties implements Serializable { // for
   public void setHttpLogging(HttpLogging httpLogging) {
     this.httpLogging = httpLogging;
   }
+
+  public long getCoalesceLingerMs() {
+    return coalesceLingerMs;
+  }
+
+  public void setCoalesceLingerMs(long coalesceLingerMs) {
+    this.coalesceLingerMs = coalesceLingerMs;
+  }
+
+  public int getMaxSpansPerRequest() {
+    return maxSpansPerRequest;
+  }
+
+  public void setMaxSpansPerRequest(int maxSpansPerRequest) {
+    this.maxSpansPerRequest = maxSpansPerRequest;
+  }
+
+  public int getMaxConcurrentRequests() {
+    return maxConcurrentRequests;
+  }
+
+  public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+    this.maxConcurrentRequests = maxConcurrentRequests;
+  }
+
+  public int getWorkerThreads() {
+    return workerThreads;
+  }
+
+  public void setWorkerThreads(int workerThreads) {
+    this.workerThreads = workerThreads;
+  }
+
+  public int getWorkerQueueSize() {
+    return workerQueueSize;
+  }
+
+  public void setWorkerQueueSize(int workerQueueSize) {
+    this.workerQueueSize = workerQueueSize;
+  }
+
+  public String getSpoolDirectory() {
+    return spoolDirectory;
+  }
+
+  public void setSpoolDirectory(String spoolDirectory) {
+    this.spoolDirectory = spoolDirectory;
+  }
+
+  public long getSpoolMaxBytes() {
+    return spoolMaxBytes;
+  }
+
+  public void setSpoolMaxBytes(long spoolMaxBytes) {
+    this.spoolMaxBytes = spoolMaxBytes;
+  }
+
+  public int getSpoolReplayRate() {
+    return spoolReplayRate;
+  }
+
+  public void setSpoolReplayRate(int spoolReplayRate) {
+    this.spoolReplayRate = spoolReplayRate;
+  }
+
+  public long getDedupWindowMs() {
+    return dedupWindowMs;
+  }
+
+  public void setDedupWindowMs(long dedupWindowMs) {
+    this.dedupWindowMs = dedupWindowMs;
+  }
+
+  public int getDedupMaxSpans() {
+    return dedupMaxSpans;
+  }
+
+  public void setDedupMaxSpans(int dedupMaxSpans) {
+    this.dedupMaxSpans = dedupMaxSpans;
+  }
+
+  public long getMergeLingerMs() {
+    return mergeLingerMs;
+  }
+
+  public void setMergeLingerMs(long mergeLingerMs) {
+    this.mergeLingerMs = mergeLingerMs;
+  }
+
+  public int getMergeMaxSpans() {
+    return mergeMaxSpans;
+  }
+
+  public void setMergeMaxSpans(int mergeMaxSpans) {
+    this.mergeMaxSpans = mergeMaxSpans;
+  }
+
+  public long getTailSamplingIdleMs() {
+    return tailSamplingIdleMs;
+  }
+
+  public void setTailSamplingIdleMs(long tailSamplingIdleMs) {
+    this.tailSamplingIdleMs = tailSamplingIdleMs;
+  }
+
+  public long getTailSamplingLatencyThresholdMs() {
+    return tailSamplingLatencyThresholdMs;
+  }
+
+  public void setTailSamplingLatencyThresholdMs(long tailSamplingLatencyThresholdMs) {
+    this.tailSamplingLatencyThresholdMs = tailSamplingLatencyThresholdMs;
+  }
+
+  public int getTailSamplingBaselineRate() {
+    return tailSamplingBaselineRate;
+  }
+
+  public void setTailSamplingBaselineRate(int tailSamplingBaselineRate) {
+    this.tailSamplingBaselineRate = tailSamplingBaselineRate;
+  }
+
+  public int getTailSamplingMaxSpans() {
+    return tailSamplingMaxSpans;
+  }
+
+  public void setTailSamplingMaxSpans(int tailSamplingMaxSpans) {
+    this.tailSamplingMaxSpans = tailSamplingMaxSpans;
+  }
+
+  public int getTailSamplingMaxSpansPerTrace() {
+    return tailSamplingMaxSpansPerTrace;
+  }
+
+  public void setTailSamplingMaxSpansPerTrace(int tailSamplingMaxSpansPerTrace) {
+    this.tailSamplingMaxSpansPerTrace = tailSamplingMaxSpansPerTrace;
+  }
+
+  public float getSampleRate() {
+    return sampleRate;
+  }
+
+  public void setSampleRate(float sampleRate) {
+    this.sampleRate = sampleRate;
+  }
+
+  public int getServiceRateLimit() {
+    return serviceRateLimit;
+  }
+
+  public void setServiceRateLimit(int serviceRateLimit) {
+    this.serviceRateLimit = serviceRateLimit;
+  }
+
+  public String getServiceRateLimitOverrides() {
+    return serviceRateLimitOverrides;
+  }
+
+  public void setServiceRateLimitOverrides(String serviceRateLimitOverrides) {
+    this.serviceRateLimitOverrides = serviceRateLimitOverrides;
+  }
+
+  public int getServiceRateLimitMaxServices() {
+    return serviceRateLimitMaxServices;
+  }
+
+  public void setServiceRateLimitMaxServices(int serviceRateLimitMaxServices) {
+    this.serviceRateLimitMaxServices = serviceRateLimitMaxServices;
+  }
+
+  public String getProjectIdTag() {
+    return projectIdTag;
+  }
+
+  public void setProjectIdTag(String projectIdTag) {
+    this.projectIdTag = projectIdTag;
+  }
+
+  public String getServiceProjectIds() {
+    return serviceProjectIds;
+  }
+
+  public void setServiceProjectIds(String serviceProjectIds) {
+    this.serviceProjectIds = serviceProjectIds;
+  }
+
+  public int getMaxProjects() {
+    return maxProjects;
+  }
+
+  public void setMaxProjects(int maxProjects) {
+    this.maxProjects = maxProjects;
+  }
+
+  public long getCloseTimeoutMs() {
+    return closeTimeoutMs;
+  }
+
+  public void setCloseTimeoutMs(long closeTimeoutMs) {
+    this.closeTimeoutMs = closeTimeoutMs;
+  }
 }
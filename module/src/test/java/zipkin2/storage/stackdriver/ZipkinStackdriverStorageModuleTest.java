@@ -15,6 +15,8 @@ package zipkin2.storage.stackdriver;
 
 import com.google.auth.Credentials;
 import com.google.auth.oauth2.GoogleCredentials;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import java.io.IOException;
 import org.junit.After;
 import org.junit.Test;
@@ -83,6 +85,65 @@ public class ZipkinStackdriverStorageModuleTest {
         .isEqualTo("localhost");
   }
 
+  @Test
+  public void canOverrideProperty_coalesceLingerMs() {
+    TestPropertyValues.of(
+        "zipkin.storage.type:stackdriver",
+        "zipkin.storage.stackdriver.project-id:zipkin",
+        "zipkin.storage.stackdriver.coalesce-linger-ms:100").applyTo(context);
+    context.register(
+        PropertyPlaceholderAutoConfiguration.class,
+        ZipkinStackdriverStorageModule.class,
+        TestConfiguration.class);
+    context.refresh();
+
+    assertThat(context.getBean(StackdriverStorage.class).spanConsumer())
+        .isInstanceOf(CoalescingSpanConsumer.class);
+  }
+
+  @Test
+  public void canOverrideProperty_serviceRateLimitOverrides() {
+    TestPropertyValues.of(
+        "zipkin.storage.type:stackdriver",
+        "zipkin.storage.stackdriver.project-id:zipkin",
+        "zipkin.storage.stackdriver.service-rate-limit-overrides:Frontend=100, backend=50")
+        .applyTo(context);
+    context.register(
+        PropertyPlaceholderAutoConfiguration.class,
+        ZipkinStackdriverStorageModule.class,
+        TestConfiguration.class);
+    context.refresh();
+
+    RateLimitingSpanConsumer consumer =
+        (RateLimitingSpanConsumer) context.getBean(StackdriverStorage.class).spanConsumer();
+    assertThat(consumer.buckets).containsOnlyKeys("frontend", "backend");
+    assertThat(consumer.other).isNull();
+  }
+
+  @Test
+  public void bindsMetricsToMeterRegistry() {
+    TestPropertyValues.of(
+        "zipkin.storage.type:stackdriver",
+        "zipkin.storage.stackdriver.project-id:zipkin").applyTo(context);
+    context.register(
+        PropertyPlaceholderAutoConfiguration.class,
+        ZipkinStackdriverStorageModule.class,
+        TestConfiguration.class,
+        MeterRegistryConfiguration.class);
+    context.refresh();
+
+    MeterRegistry registry = context.getBean(MeterRegistry.class);
+    assertThat(context.getBean(StackdriverStorage.class).metrics.registry).isSameAs(registry);
+    assertThat(registry.find("zipkin_storage.stackdriver.translation").timer()).isNotNull();
+  }
+
+  @Configuration
+  static class MeterRegistryConfiguration {
+    @Bean MeterRegistry meterRegistry() {
+      return new SimpleMeterRegistry();
+    }
+  }
+
   @Configuration
   static class TestConfiguration {
     @Bean("googleCredentials")
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter.stackdriver;
+
+import com.google.protobuf.Empty;
+import io.grpc.Status;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.reporter.AwaitableCallback;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+import static zipkin2.reporter.stackdriver.StackdriverSender.LOG;
+
+/**
+ * Sends a batch of spans, and when Stackdriver rejects it with {@code INVALID_ARGUMENT}, splits it
+ * in half and re-sends both halves concurrently. This recurses until the malformed spans are
+ * isolated, or the depth or request budget is exhausted. Remaining rejected spans are dropped.
+ *
+ * <p>This completes successfully when the only failures were isolated invalid spans, as otherwise
+ * the reporter would count the whole batch as dropped.
+ */
+final class IsolateInvalidSpansCall<S> extends Call.Base<Void> {
+  final StackdriverSender sender;
+  final List<S> spans;
+  final Function<List<S>, Call<Empty>> newCall;
+  final Queue<Call<Empty>> inFlight = new ConcurrentLinkedQueue<>();
+
+  IsolateInvalidSpansCall(StackdriverSender sender, List<S> spans,
+      Function<List<S>, Call<Empty>> newCall) {
+    this.sender = sender;
+    this.spans = spans;
+    this.newCall = newCall;
+  }
+
+  @Override protected Void doExecute() {
+    AwaitableCallback callback = new AwaitableCallback();
+    doEnqueue(callback);
+    callback.await();
+    return null;
+  }
+
+  @Override protected void doEnqueue(Callback<Void> callback) {
+    new Isolation(callback).send(spans, 0);
+  }
+
+  @Override protected void doCancel() {
+    for (Call<Empty> call; (call = inFlight.poll()) != null; ) {
+      call.cancel();
+    }
+  }
+
+  @Override public IsolateInvalidSpansCall<S> clone() {
+    return new IsolateInvalidSpansCall<>(sender, spans, newCall);
+  }
+
+  @Override public String toString() {
+    return "IsolateInvalidSpansCall{spans=" + spans.size() + "}";
+  }
+
+  final class Isolation {
+    final Callback<Void> callback;
+    final AtomicInteger pending = new AtomicInteger();
+    final AtomicInteger remainingRequests = new AtomicInteger(sender.isolateInvalidSpansMaxRequests);
+    volatile Throwable error;
+
+    Isolation(Callback<Void> callback) {
+      this.callback = callback;
+    }
+
+    void send(List<S> batch, int depth) {
+      pending.incrementAndGet();
+      Call<Empty> call = newCall.apply(batch);
+      inFlight.add(call);
+      try {
+        call.enqueue(new Callback<Empty>() {
+          @Override public void onSuccess(Empty value) {
+            inFlight.remove(call);
+            onComplete();
+          }
+
+          @Override public void onError(Throwable t) {
+            inFlight.remove(call);
+            onFailure(batch, depth, t);
+            onComplete();
+          }
+        });
+      } catch (RuntimeException | Error e) {
+        // The callback was already notified of the error
+        Call.propagateIfFatal(e);
+      }
+    }
+
+    void onFailure(List<S> batch, int depth, Throwable t) {
+      if (Status.fromThrowable(t).getCode() != Status.Code.INVALID_ARGUMENT || isCanceled()) {
+        if (error == null) error = t;
+        return;
+      }
+
+      int size = batch.size();
+      if (size > 1
+          && depth < sender.isolateInvalidSpansMaxDepth
+          && remainingRequests.addAndGet(-2) >= 0) {
+        int half = size / 2;
+        send(batch.subList(0, half), depth + 1);
+        send(batch.subList(half, size), depth + 1);
+        return;
+      }
+
+      sender.metrics.incrementSpansDropped(size);
+      LOG.log(WARNING, "Dropped {0} of {1} spans rejected by Stackdriver: {2}",
+          new Object[] {size, spans.size(), t.getMessage()});
+      if (LOG.isLoggable(FINE)) {
+        for (S span : batch) LOG.log(FINE, "Dropped invalid span: {0}", span);
+      }
+    }
+
+    void onComplete() {
+      if (pending.decrementAndGet() != 0) return;
+      Throwable error = this.error;
+      if (error != null) {
+        callback.onError(error);
+      } else {
+        callback.onSuccess(null);
+      }
+    }
+  }
+}
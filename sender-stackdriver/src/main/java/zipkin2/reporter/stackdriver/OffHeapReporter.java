@@ -0,0 +1,369 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter.stackdriver;
+
+import java.io.Flushable;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import zipkin2.Call;
+import zipkin2.CheckResult;
+import zipkin2.Component;
+import zipkin2.codec.BytesEncoder;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.ClosedSenderException;
+import zipkin2.reporter.Reporter;
+import zipkin2.reporter.ReporterMetrics;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+import static zipkin2.reporter.stackdriver.StackdriverSender.LOG;
+
+/**
+ * Like {@code AsyncReporter}, except encoded spans are queued in a direct (off-heap) buffer with a
+ * strict byte budget, instead of as {@code byte[]} on the heap. On flush, slices of that buffer are
+ * written into the request without parsing the spans.
+ *
+ * <p>The buffer is a ring allocated once. Each span is stored as a 4-byte length followed by its
+ * encoded bytes. A span that doesn't fit in the remaining budget is dropped.
+ *
+ * <p>Ex.
+ * <pre>{@code
+ * reporter = OffHeapReporter.newBuilder(sender).build(StackdriverEncoder.V2);
+ * }</pre>
+ */
+public final class OffHeapReporter<S> extends Component implements Reporter<S>, Flushable {
+  static final int WRAP = -1; // marks the unused end of the ring
+
+  public static Builder newBuilder(StackdriverSender sender) {
+    if (sender == null) throw new NullPointerException("sender == null");
+    return new Builder(sender);
+  }
+
+  public static final class Builder {
+    final StackdriverSender sender;
+    ReporterMetrics metrics = ReporterMetrics.NOOP_METRICS;
+    int messageMaxBytes;
+    long messageTimeoutNanos = TimeUnit.SECONDS.toNanos(1);
+    long closeTimeoutNanos = TimeUnit.SECONDS.toNanos(1);
+    int queuedMaxBytes = 4 * 1024 * 1024;
+
+    Builder(StackdriverSender sender) {
+      this.sender = sender;
+      this.messageMaxBytes = sender.messageMaxBytes();
+    }
+
+    /** Aggregates and reports reporter metrics to a monitoring system. Defaults to no-op. */
+    public Builder metrics(ReporterMetrics metrics) {
+      if (metrics == null) throw new NullPointerException("metrics == null");
+      this.metrics = metrics;
+      return this;
+    }
+
+    /** Maximum bytes sendable per message including overhead. Defaults to the sender's limit. */
+    public Builder messageMaxBytes(int messageMaxBytes) {
+      if (messageMaxBytes < 0) throw new IllegalArgumentException("messageMaxBytes < 0");
+      this.messageMaxBytes = Math.min(messageMaxBytes, sender.messageMaxBytes());
+      return this;
+    }
+
+    /**
+     * Default 1 second. 0 implies spans are {@link #flush() flushed} externally.
+     *
+     * <p>Instead of sending one message at a time, spans are bundled into messages, up to {@link
+     * #messageMaxBytes(int)}. This timeout ensures that spans are not stuck in an incomplete
+     * message.
+     */
+    public Builder messageTimeout(long timeout, TimeUnit unit) {
+      if (timeout < 0) throw new IllegalArgumentException("messageTimeout < 0");
+      if (unit == null) throw new NullPointerException("unit == null");
+      this.messageTimeoutNanos = unit.toNanos(timeout);
+      return this;
+    }
+
+    /** How long to block for in-flight spans to send out-of-process on close. Default 1 second */
+    public Builder closeTimeout(long timeout, TimeUnit unit) {
+      if (timeout < 0) throw new IllegalArgumentException("closeTimeout < 0");
+      if (unit == null) throw new NullPointerException("unit == null");
+      this.closeTimeoutNanos = unit.toNanos(timeout);
+      return this;
+    }
+
+    /**
+     * Size of the off-heap ring, allocated when built. Spans are dropped when it is full, including
+     * spans not yet released as they are being sent. Default 4 MiB.
+     */
+    public Builder queuedMaxBytes(int queuedMaxBytes) {
+      if (queuedMaxBytes <= 0) throw new IllegalArgumentException("queuedMaxBytes <= 0");
+      this.queuedMaxBytes = queuedMaxBytes;
+      return this;
+    }
+
+    /** Builds a reporter which encodes spans with the given encoder, such as {@link StackdriverEncoder#V2}. */
+    public <S> OffHeapReporter<S> build(BytesEncoder<S> encoder) {
+      if (encoder == null) throw new NullPointerException("encoder == null");
+      if (encoder.encoding() != Encoding.PROTO3) {
+        throw new IllegalArgumentException(
+            "Encoding isn't compatible with StackdriverSender: " + encoder.encoding());
+      }
+      return new OffHeapReporter<>(this, encoder);
+    }
+  }
+
+  final StackdriverSender sender;
+  final BytesEncoder<S> encoder;
+  final ReporterMetrics metrics;
+  final int messageMaxBytes;
+  final long messageTimeoutNanos, closeTimeoutNanos;
+  final ByteBuffer ring;
+  final int capacity;
+  final Thread flushThread; // null when messageTimeout is zero
+
+  final ReentrantLock lock = new ReentrantLock();
+  final Condition spansReady = lock.newCondition();
+  // All below are guarded by lock. The ring holds [head, drainPosition) in flight, followed by
+  // pendingCount spans in [drainPosition, tail). usedBytes includes any unused end of the ring.
+  int head, drainPosition, tail, usedBytes, pendingCount, pendingMessageBytes;
+
+  volatile boolean closed;
+  boolean shouldWarnException = true; // only accessed by the flushing thread
+
+  OffHeapReporter(Builder builder, BytesEncoder<S> encoder) {
+    this.sender = builder.sender;
+    this.encoder = encoder;
+    this.metrics = builder.metrics;
+    this.messageMaxBytes = builder.messageMaxBytes;
+    this.messageTimeoutNanos = builder.messageTimeoutNanos;
+    this.closeTimeoutNanos = builder.closeTimeoutNanos;
+    this.capacity = builder.queuedMaxBytes;
+    this.ring = ByteBuffer.allocateDirect(capacity);
+    if (messageTimeoutNanos > 0) {
+      flushThread = new Thread(this::flushEvery, "OffHeapReporter{" + sender + "}");
+      flushThread.setDaemon(true);
+      flushThread.start();
+    } else {
+      flushThread = null;
+    }
+  }
+
+  @Override public void report(S next) {
+    if (next == null) throw new NullPointerException("span == null");
+    metrics.incrementSpans(1);
+    if (closed) {
+      metrics.incrementSpansDropped(1);
+      return;
+    }
+
+    // The encoded array is short-lived, as it is copied off-heap immediately.
+    byte[] encoded = encoder.encode(next);
+    metrics.incrementSpanBytes(encoded.length);
+    if (sender.messageSizeInBytes(encoded.length) > messageMaxBytes || !offer(encoded)) {
+      metrics.incrementSpansDropped(1);
+    }
+  }
+
+  /** Returns false if the span doesn't fit in the free space of the ring. */
+  boolean offer(byte[] encoded) {
+    int needed = 4 + encoded.length;
+    lock.lock();
+    try {
+      if (usedBytes == 0) head = drainPosition = tail = 0; // maximize contiguous space
+
+      if (usedBytes == 0 || tail > head) { // free space is [tail, capacity) then [0, head)
+        int endBytes = capacity - tail;
+        if (endBytes < needed) {
+          if (head < needed) return false;
+          if (endBytes >= 4) ring.putInt(tail, WRAP);
+          usedBytes += endBytes;
+          tail = 0;
+        }
+      } else if (head - tail < needed) { // free space is [tail, head)
+        return false;
+      }
+
+      ring.putInt(tail, encoded.length);
+      ByteBuffer target = ring.duplicate();
+      ((Buffer) target).position(tail + 4); // cast for JRE 8 compatibility
+      target.put(encoded);
+      tail += needed;
+      if (tail == capacity) tail = 0;
+      usedBytes += needed;
+      pendingCount++;
+      pendingMessageBytes = pendingCount == 1
+          ? sender.messageSizeInBytes(encoded.length)
+          : pendingMessageBytes + sender.spanFieldSize(encoded.length);
+      if (pendingMessageBytes >= messageMaxBytes) spansReady.signal();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override public void flush() {
+    if (closed) throw new ClosedSenderException();
+    flushOnce();
+  }
+
+  /** Sends up to one message of spans, returning false when there was nothing to send. */
+  synchronized boolean flushOnce() {
+    List<ByteBuffer> spans = new ArrayList<>();
+    int messageSize = 0, drainedBytes = 0;
+    lock.lock();
+    try {
+      int position = drainPosition;
+      while (pendingCount > 0) {
+        if (capacity - position < 4 || ring.getInt(position) == WRAP) {
+          drainedBytes += capacity - position;
+          position = 0;
+          continue;
+        }
+        int length = ring.getInt(position);
+        int nextSize = spans.isEmpty()
+            ? sender.messageSizeInBytes(length)
+            : messageSize + sender.spanFieldSize(length);
+        if (!spans.isEmpty() && nextSize > messageMaxBytes) break;
+
+        ByteBuffer span = ring.duplicate();
+        ((Buffer) span).limit(position + 4 + length).position(position + 4);
+        spans.add(span.slice());
+        messageSize = nextSize;
+        position += 4 + length;
+        drainedBytes += 4 + length;
+        pendingCount--;
+      }
+      drainPosition = position;
+      pendingMessageBytes = 0; // recalculated lazily by the next offer
+      if (pendingCount > 0) pendingMessageBytes = messageMaxBytes; // more to send
+      metrics.updateQueuedSpans(pendingCount);
+      metrics.updateQueuedBytes(usedBytes - drainedBytes);
+    } finally {
+      lock.unlock();
+    }
+
+    if (spans.isEmpty()) return false;
+
+    Call<Void> call = null;
+    try {
+      metrics.incrementMessages();
+      metrics.incrementMessageBytes(messageSize);
+      call = sender.sendSpanBuffers(spans);
+      call.execute();
+    } catch (Throwable t) {
+      // Cancel, so that a call not yet started doesn't read the ring after it is released
+      if (call != null) call.cancel();
+      metrics.incrementMessagesDropped(t);
+      metrics.incrementSpansDropped(spans.size());
+      logFailure(spans.size(), t);
+      Call.propagateIfFatal(t);
+    } finally {
+      release(drainedBytes);
+    }
+    return true;
+  }
+
+  void release(int drainedBytes) {
+    lock.lock();
+    try {
+      usedBytes -= drainedBytes;
+      head = drainPosition;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void logFailure(int spanCount, Throwable t) {
+    String message = "Dropped " + spanCount + " spans due to "
+        + t.getClass().getSimpleName() + "(" + (t.getMessage() == null ? "" : t.getMessage()) + ")";
+    if (shouldWarnException) {
+      LOG.log(WARNING,
+          message + ". All subsequent errors will be logged at FINE level.", t);
+      shouldWarnException = false;
+    } else if (LOG.isLoggable(FINE)) {
+      LOG.log(FINE, message, t);
+    }
+  }
+
+  /** Flushes when a message is full, or the message timeout elapses. */
+  void flushEvery() {
+    try {
+      while (!closed) {
+        lock.lock();
+        try {
+          long remainingNanos = messageTimeoutNanos;
+          while (!closed && pendingMessageBytes < messageMaxBytes && remainingNanos > 0) {
+            remainingNanos = spansReady.awaitNanos(remainingNanos);
+          }
+        } finally {
+          lock.unlock();
+        }
+        if (!closed) flushOnce();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (RuntimeException | Error e) {
+      LOG.log(WARNING, "Unexpected error flushing spans", e);
+      throw e;
+    }
+  }
+
+  @Override public CheckResult check() {
+    return sender.check();
+  }
+
+  /** Attempts to send pending spans until the close timeout. Remaining spans are dropped. */
+  @Override public void close() {
+    if (closed) return;
+    closed = true;
+
+    long deadline = System.nanoTime() + closeTimeoutNanos;
+    if (flushThread != null) {
+      lock.lock();
+      try {
+        spansReady.signal();
+      } finally {
+        lock.unlock();
+      }
+      try {
+        TimeUnit.NANOSECONDS.timedJoin(flushThread, Math.max(1, deadline - System.nanoTime()));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    while (System.nanoTime() < deadline && flushOnce()) {
+      // keep flushing
+    }
+
+    int dropped;
+    lock.lock();
+    try {
+      dropped = pendingCount;
+      pendingCount = 0;
+    } finally {
+      lock.unlock();
+    }
+    if (dropped > 0) {
+      metrics.incrementSpansDropped(dropped);
+      LOG.log(WARNING, "Timed out waiting for in-flight spans to send; dropped {0}", dropped);
+    }
+  }
+
+  @Override public String toString() {
+    return "OffHeapReporter{" + sender + "}";
+  }
+}
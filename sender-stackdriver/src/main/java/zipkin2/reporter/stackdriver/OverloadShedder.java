@@ -0,0 +1,210 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter.stackdriver;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ForwardingClientCall.SimpleForwardingClientCall;
+import io.grpc.ForwardingClientCallListener.SimpleForwardingClientCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import zipkin2.reporter.ReporterMetrics;
+
+import static java.util.logging.Level.FINE;
+import static zipkin2.reporter.stackdriver.StackdriverSender.LOG;
+
+/**
+ * Limits the spans per request while Stackdriver signals overload, keeping error spans, then root
+ * spans, ahead of others. Overload is signaled by calls failing with {@code RESOURCE_EXHAUSTED},
+ * {@code UNAVAILABLE} or {@code DEADLINE_EXCEEDED}, and lasts {@link #OVERLOAD_NANOS} after the
+ * last such failure.
+ *
+ * <p>Spans are classified by scanning their encoded fields, without parsing them.
+ */
+final class OverloadShedder implements ClientInterceptor {
+  static final long OVERLOAD_NANOS = TimeUnit.SECONDS.toNanos(1);
+  static final int ERROR = 0, ROOT = 1, OTHER = 2;
+
+  // Field numbers in google.devtools.cloudtrace.v2.Span
+  static final int PARENT_SPAN_ID_FIELD = 3, ATTRIBUTES_FIELD = 7;
+  static final int WIRETYPE_VARINT = 0, WIRETYPE_FIXED64 = 1, WIRETYPE_LENGTH_DELIMITED = 2,
+      WIRETYPE_FIXED32 = 5;
+  static final byte[] ERROR_KEY = {'e', 'r', 'r', 'o', 'r'};
+
+  final int maxSpans;
+  final ReporterMetrics metrics;
+  volatile long overloadedAtNanos;
+  volatile boolean overloaded;
+
+  OverloadShedder(int maxSpans, ReporterMetrics metrics) {
+    this.maxSpans = maxSpans;
+    this.metrics = metrics;
+  }
+
+  boolean isOverloaded() {
+    if (!overloaded) return false;
+    if (System.nanoTime() - overloadedAtNanos < OVERLOAD_NANOS) return true;
+    overloaded = false;
+    return false;
+  }
+
+  void onOverload() {
+    overloadedAtNanos = System.nanoTime();
+    overloaded = true;
+  }
+
+  /**
+   * Returns the input when not overloaded or within the limit. Otherwise, returns up to {@link
+   * #maxSpans} spans in their original order, preferring error spans, then root spans.
+   */
+  <S> List<S> shed(List<S> traceIdPrefixedSpans, Function<S, ByteBuffer> toBuffer) {
+    int length = traceIdPrefixedSpans.size();
+    if (length <= maxSpans || !isOverloaded()) return traceIdPrefixedSpans;
+
+    int[] priorities = new int[length];
+    int[] countByPriority = new int[3];
+    for (int i = 0; i < length; i++) {
+      int priority = priority(toBuffer.apply(traceIdPrefixedSpans.get(i)));
+      priorities[i] = priority;
+      countByPriority[priority]++;
+    }
+
+    // Keep all spans more important than the cutoff, and the first spans at the cutoff
+    int cutoff = ERROR, remaining = maxSpans;
+    while (cutoff < OTHER && countByPriority[cutoff] <= remaining) {
+      remaining -= countByPriority[cutoff++];
+    }
+
+    List<S> result = new ArrayList<>(maxSpans);
+    for (int i = 0; i < length; i++) {
+      int priority = priorities[i];
+      if (priority < cutoff || (priority == cutoff && remaining-- > 0)) {
+        result.add(traceIdPrefixedSpans.get(i));
+      }
+    }
+
+    int dropped = length - result.size();
+    metrics.incrementSpansDropped(dropped);
+    if (LOG.isLoggable(FINE)) {
+      LOG.log(FINE, "Stackdriver is overloaded: dropped {0} of {1} spans", new Object[] {dropped, length});
+    }
+    return result;
+  }
+
+  /**
+   * Returns {@link #ERROR} for spans with an "error" attribute, {@link #ROOT} for spans without a
+   * parent, and {@link #OTHER} otherwise, including if the span couldn't be scanned.
+   */
+  static int priority(ByteBuffer span) {
+    int[] position = {span.position() + 32};
+    int limit = span.limit();
+    boolean root = true;
+    while (position[0] < limit) {
+      int tag = readVarint32(span, position);
+      int field = tag >>> 3;
+      switch (tag & 7) {
+        case WIRETYPE_VARINT:
+          readVarint32(span, position);
+          break;
+        case WIRETYPE_FIXED64:
+          position[0] += 8;
+          break;
+        case WIRETYPE_FIXED32:
+          position[0] += 4;
+          break;
+        case WIRETYPE_LENGTH_DELIMITED:
+          int length = readVarint32(span, position);
+          if (length < 0 || position[0] + length > limit) return OTHER; // malformed
+          if (field == PARENT_SPAN_ID_FIELD && length > 0) root = false;
+          if (field == ATTRIBUTES_FIELD && hasErrorKey(span, position[0], position[0] + length)) {
+            return ERROR;
+          }
+          position[0] += length;
+          break;
+        default:
+          return OTHER; // malformed or groups, which aren't used
+      }
+    }
+    return root ? ROOT : OTHER;
+  }
+
+  /** Scans the attribute map entries of an encoded {@code Span.Attributes} for the "error" key. */
+  static boolean hasErrorKey(ByteBuffer span, int offset, int limit) {
+    int[] position = {offset};
+    while (position[0] < limit) {
+      int tag = readVarint32(span, position);
+      if ((tag & 7) != WIRETYPE_LENGTH_DELIMITED) return false; // dropped_attributes_count
+      int entryLength = readVarint32(span, position);
+      if (entryLength <= 0) return false;
+      int entryEnd = position[0] + entryLength;
+      // protobuf writes a map entry's key before its value
+      if (tag >>> 3 == 1 && entryEnd <= limit && span.get(position[0]) == 0x0a) {
+        int[] keyPosition = {position[0] + 1};
+        int keyLength = readVarint32(span, keyPosition);
+        if (keyLength == ERROR_KEY.length && keyPosition[0] + keyLength <= entryEnd) {
+          boolean matches = true;
+          for (int i = 0; i < keyLength && matches; i++) {
+            matches = span.get(keyPosition[0] + i) == ERROR_KEY[i];
+          }
+          if (matches) return true;
+        }
+      }
+      position[0] = entryEnd;
+    }
+    return false;
+  }
+
+  static int readVarint32(ByteBuffer buffer, int[] position) {
+    int result = 0;
+    for (int shift = 0; shift < 32 && position[0] < buffer.limit(); shift += 7) {
+      byte b = buffer.get(position[0]++);
+      result |= (b & 0x7f) << shift;
+      if (b >= 0) return result;
+    }
+    return -1; // malformed
+  }
+
+  @Override public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(
+      MethodDescriptor<ReqT, RespT> method, CallOptions callOptions, Channel next) {
+    return new SimpleForwardingClientCall<ReqT, RespT>(next.newCall(method, callOptions)) {
+      @Override public void start(Listener<RespT> responseListener, Metadata headers) {
+        super.start(new SimpleForwardingClientCallListener<RespT>(responseListener) {
+          @Override public void onClose(Status status, Metadata trailers) {
+            switch (status.getCode()) {
+              case RESOURCE_EXHAUSTED:
+              case UNAVAILABLE:
+              case DEADLINE_EXCEEDED:
+                onOverload();
+                break;
+              default:
+            }
+            super.onClose(status, trailers);
+          }
+        }, headers);
+      }
+    };
+  }
+
+  @Override public String toString() {
+    return "OverloadShedder{maxSpans=" + maxSpans + "}";
+  }
+}
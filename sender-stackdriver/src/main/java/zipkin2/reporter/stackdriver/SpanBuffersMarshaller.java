@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter.stackdriver;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.protobuf.WireFormat.WIRETYPE_LENGTH_DELIMITED;
+
+/**
+ * Writes a {@code BatchWriteSpansRequest} from trace ID prefixed spans in buffers, without parsing
+ * them. This works because the encoded span doesn't set the name field, so it can be written ahead
+ * of the encoded fields. The result is the same bytes as if the spans were parsed and the name set.
+ */
+final class SpanBuffersMarshaller implements MethodDescriptor.Marshaller<List<ByteBuffer>> {
+  static final int SPAN_ID_FIELD = 2;
+
+  final StackdriverSender sender;
+
+  SpanBuffersMarshaller(StackdriverSender sender) {
+    this.sender = sender;
+  }
+
+  /** Same as {@link StackdriverSender#messageSizeInBytes(List)}, except reading buffers. */
+  static int messageSizeInBytes(StackdriverSender sender, List<ByteBuffer> traceIdPrefixedSpans) {
+    int size = sender.projectNameFieldSize;
+    for (int i = 0, length = traceIdPrefixedSpans.size(); i < length; i++) {
+      size += sender.spanFieldSize(traceIdPrefixedSpans.get(i).remaining());
+    }
+    return size;
+  }
+
+  @Override public InputStream stream(List<ByteBuffer> traceIdPrefixedSpans) {
+    return new SpanBuffersInputStream(sender, traceIdPrefixedSpans);
+  }
+
+  @Override public List<ByteBuffer> parse(InputStream stream) {
+    throw new UnsupportedOperationException("client only");
+  }
+
+  /** gRPC drains this into its own buffers. Reading is only used by in-process transports. */
+  static final class SpanBuffersInputStream extends InputStream implements Drainable, KnownLength {
+    final StackdriverSender sender;
+    final List<ByteBuffer> spans;
+    final int size;
+    InputStream materialized; // lazy, as gRPC usually drains instead
+    boolean drained;
+
+    SpanBuffersInputStream(StackdriverSender sender, List<ByteBuffer> spans) {
+      this.sender = sender;
+      this.spans = spans;
+      this.size = messageSizeInBytes(sender, spans);
+    }
+
+    @Override public int drainTo(OutputStream target) throws IOException {
+      if (drained || materialized != null) throw new IllegalStateException("already read");
+      drained = true;
+      CodedOutputStream output = CodedOutputStream.newInstance(target, Math.min(size, 8192));
+      writeTo(output);
+      output.flush();
+      return size;
+    }
+
+    void writeTo(CodedOutputStream output) throws IOException {
+      output.writeBytes(1, sender.projectName);
+      byte[] scratch = new byte[4096];
+      for (int i = 0, length = spans.size(); i < length; i++) {
+        ByteBuffer span = spans.get(i).duplicate();
+        int spanSize = span.remaining() - 32;
+
+        output.writeTag(2, WIRETYPE_LENGTH_DELIMITED);
+        output.writeUInt32NoTag(spanSize + sender.spanNameFieldSize);
+
+        // Same as parseTraceIdPrefixedSpan, except written directly.
+        output.writeTag(1, WIRETYPE_LENGTH_DELIMITED);
+        output.writeUInt32NoTag(sender.spanNameSize);
+        output.writeRawBytes(sender.traceIdPrefix);
+        span.get(scratch, 0, 32);
+        output.writeRawBytes(scratch, 0, 32);
+        output.writeRawBytes(StackdriverSender.SPAN_ID_PREFIX);
+        writeSpanId(span.duplicate(), scratch, output);
+
+        // The remaining fields are already encoded
+        while (span.hasRemaining()) {
+          int chunk = Math.min(scratch.length, span.remaining());
+          span.get(scratch, 0, chunk);
+          output.writeRawBytes(scratch, 0, chunk);
+        }
+      }
+    }
+
+    /** Writes the 16 byte span ID, or zeros if absent, as the parsing path would. */
+    static void writeSpanId(ByteBuffer span, byte[] scratch, CodedOutputStream output)
+        throws IOException {
+      Arrays.fill(scratch, 0, 16, (byte) 0);
+      int start = span.position();
+      CodedInputStream input = CodedInputStream.newInstance(span);
+      for (int tag; (tag = input.readTag()) != 0; ) {
+        if (WireFormat.getTagFieldNumber(tag) != SPAN_ID_FIELD) {
+          input.skipField(tag);
+          continue;
+        }
+        int length = input.readRawVarint32();
+        ((Buffer) span).position(start + input.getTotalBytesRead()); // cast for JRE 8 compatibility
+        span.get(scratch, 0, Math.min(length, 16));
+        break;
+      }
+      output.writeRawBytes(scratch, 0, 16);
+    }
+
+    @Override public int available() throws IOException {
+      return materialized != null ? materialized.available() : drained ? 0 : size;
+    }
+
+    @Override public int read() throws IOException {
+      return materialize().read();
+    }
+
+    @Override public int read(byte[] b, int off, int len) throws IOException {
+      return materialize().read(b, off, len);
+    }
+
+    InputStream materialize() throws IOException {
+      if (materialized != null) return materialized;
+      if (drained) throw new IllegalStateException("already drained");
+      byte[] result = new byte[size];
+      CodedOutputStream output = CodedOutputStream.newInstance(result);
+      writeTo(output);
+      output.checkNoSpaceLeft();
+      return materialized = new ByteArrayInputStream(result);
+    }
+  }
+}
@@ -22,45 +22,88 @@ import com.google.protobuf.Empty;
 import com.google.protobuf.UnsafeByteOperations;
 import io.grpc.CallOptions;
 import io.grpc.Channel;
+import io.grpc.ClientInterceptors;
+import io.grpc.ConnectivityState;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.MethodDescriptor;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.logging.Logger;
 import zipkin2.Call;
+import zipkin2.Callback;
 import zipkin2.CheckResult;
 import zipkin2.codec.Encoding;
+import zipkin2.reporter.ReporterMetrics;
 import zipkin2.reporter.Sender;
+import zipkin2.reporter.stackdriver.internal.HedgingPolicy;
 import zipkin2.reporter.stackdriver.internal.UnaryClientCall;
 
 import static zipkin2.reporter.stackdriver.internal.UnaryClientCall.DEFAULT_SERVER_TIMEOUT_MS;
 import static com.google.protobuf.CodedOutputStream.computeUInt32SizeNoTag;
 import static io.grpc.CallOptions.DEFAULT;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
 
 public final class StackdriverSender extends Sender {
+  static final Logger LOG = Logger.getLogger(StackdriverSender.class.getName());
 
+  static final String DEFAULT_TARGET = "cloudtrace.googleapis.com";
+
+  /**
+   * Returns a builder which creates a channel to Stackdriver Trace on {@link Builder#build()}. The
+   * channel is shutdown when the sender is closed.
+   */
   public static Builder newBuilder() {
-    ManagedChannel channel = ManagedChannelBuilder.forTarget("cloudtrace.googleapis.com").build();
-    Builder result = newBuilder(channel);
-    result.shutdownChannelOnClose = true;
-    return result;
+    return new Builder(DEFAULT_TARGET);
   }
 
-  public static Builder newBuilder(Channel channel) { // visible for testing
+  /**
+   * Returns a builder which sends over the given channel, such as a {@link
+   * zipkin2.reporter.stackdriver.armeria.WebClientChannel}. The channel isn't shutdown when the
+   * sender is closed.
+   */
+  public static Builder newBuilder(Channel channel) {
+    if (channel == null) throw new NullPointerException("channel == null");
     return new Builder(channel);
   }
 
   public static final class Builder {
-    final Channel channel;
+    final Channel channel; // null when created on build
+    final String target;
     String projectId;
     CallOptions callOptions = DEFAULT;
-    boolean shutdownChannelOnClose;
+    long keepAliveTimeNanos, idleTimeoutNanos;
+    boolean warmUp;
     long serverResponseTimeoutMs = DEFAULT_SERVER_TIMEOUT_MS;
+    int isolateInvalidSpansMaxDepth;
+    int isolateInvalidSpansMaxRequests = 32;
+    ReporterMetrics metrics = ReporterMetrics.NOOP_METRICS;
+    double hedgeDelayPercentile;
+    float hedgeMaxRatio = 0.1f;
+    Channel hedgeChannel;
+    int compressionMinBytes;
+    boolean groupByTraceId;
+    int shedSpansOnOverload;
 
     Builder(Channel channel) {
-      if (channel == null) throw new NullPointerException("channel == null");
       this.channel = channel;
+      this.target = null;
+    }
+
+    Builder(String target) {
+      this.channel = null;
+      this.target = target;
     }
 
     public Builder projectId(String projectId) {
@@ -81,16 +124,213 @@ public final class StackdriverSender extends Sender {
       return this;
     }
 
+    /**
+     * When positive, a batch rejected with {@code INVALID_ARGUMENT} is split in half and both halves
+     * are re-sent concurrently, recursing up to this depth to isolate the malformed spans. Spans that
+     * still fail once the depth or {@link #isolateInvalidSpansMaxRequests(int) request budget} is
+     * exhausted are dropped and reported to {@link #metrics(ReporterMetrics)}.
+     *
+     * <p>Defaults to zero, which fails the whole batch as before.
+     */
+    public Builder isolateInvalidSpansMaxDepth(int isolateInvalidSpansMaxDepth) {
+      if (isolateInvalidSpansMaxDepth < 0) {
+        throw new IllegalArgumentException("isolateInvalidSpansMaxDepth < 0");
+      }
+      this.isolateInvalidSpansMaxDepth = isolateInvalidSpansMaxDepth;
+      return this;
+    }
+
+    /**
+     * Maximum count of additional requests sent to isolate invalid spans in one batch. This bounds
+     * the load amplification of a poison batch regardless of its size. Defaults to 32.
+     */
+    public Builder isolateInvalidSpansMaxRequests(int isolateInvalidSpansMaxRequests) {
+      if (isolateInvalidSpansMaxRequests < 2) {
+        throw new IllegalArgumentException("isolateInvalidSpansMaxRequests < 2");
+      }
+      this.isolateInvalidSpansMaxRequests = isolateInvalidSpansMaxRequests;
+      return this;
+    }
+
+    /**
+     * Receives counts of spans dropped by the sender itself, for example when isolating invalid
+     * spans. Usually the same instance as passed to the reporter. Defaults to no-op.
+     */
+    public Builder metrics(ReporterMetrics metrics) {
+      if (metrics == null) throw new NullPointerException("metrics == null");
+      this.metrics = metrics;
+      return this;
+    }
+
+    /**
+     * When set, a request not complete within this percentile of recent latency, ex 0.95, is sent
+     * again on the {@link #hedgeChannel(Channel) hedge channel}. Whichever completes first wins
+     * and the other is cancelled. This reduces tail latency, which otherwise stalls the reporter
+     * as it flushes serially.
+     *
+     * <p>Defaults to zero, which disables hedging.
+     */
+    public Builder hedgeDelayPercentile(double hedgeDelayPercentile) {
+      if (hedgeDelayPercentile < 0 || hedgeDelayPercentile >= 1) {
+        throw new IllegalArgumentException("hedgeDelayPercentile must be between 0 and 1");
+      }
+      this.hedgeDelayPercentile = hedgeDelayPercentile;
+      return this;
+    }
+
+    /**
+     * Caps hedged requests to this ratio of all requests, so that hedging cannot double load when
+     * every request is slow, such as during an outage. Defaults to 0.1.
+     */
+    public Builder hedgeMaxRatio(float hedgeMaxRatio) {
+      if (hedgeMaxRatio <= 0 || hedgeMaxRatio > 1) {
+        throw new IllegalArgumentException("hedgeMaxRatio must be greater than 0 and at most 1");
+      }
+      this.hedgeMaxRatio = hedgeMaxRatio;
+      return this;
+    }
+
+    /**
+     * The channel hedged requests are sent on. When unset, a separate channel is created if this
+     * builder created the primary one, otherwise the primary channel is used.
+     */
+    public Builder hedgeChannel(Channel hedgeChannel) {
+      if (hedgeChannel == null) throw new NullPointerException("hedgeChannel == null");
+      this.hedgeChannel = hedgeChannel;
+      return this;
+    }
+
+    /**
+     * When positive, requests of at least this many bytes are gzip compressed. Smaller requests are
+     * sent uncompressed, as the CPU cost outweighs the bytes saved. {@link #messageMaxBytes()} still
+     * applies to the uncompressed size.
+     *
+     * <p>Defaults to zero, which disables compression.
+     */
+    public Builder compressionMinBytes(int compressionMinBytes) {
+      if (compressionMinBytes < 0) throw new IllegalArgumentException("compressionMinBytes < 0");
+      this.compressionMinBytes = compressionMinBytes;
+      return this;
+    }
+
+    /**
+     * When true, spans in each request are stably sorted by trace ID, so that spans of the same
+     * trace are adjacent. This improves {@link #compressionMinBytes(int) compression}, as these spans
+     * share a name prefix and often attributes. Defaults to false, which sends spans in the order
+     * they were reported.
+     */
+    public Builder groupByTraceId(boolean groupByTraceId) {
+      this.groupByTraceId = groupByTraceId;
+      return this;
+    }
+
+    /**
+     * When positive, requests are limited to this many spans while Stackdriver signals overload,
+     * such as quota exhaustion or unavailability. Error spans are kept first, then root spans, as
+     * they are the most useful during an incident. Shed spans are reported to {@link
+     * #metrics(ReporterMetrics)}.
+     *
+     * <p>Defaults to zero, which sends all spans regardless of overload.
+     */
+    public Builder shedSpansOnOverload(int maxSpansPerRequest) {
+      if (maxSpansPerRequest < 0) throw new IllegalArgumentException("maxSpansPerRequest < 0");
+      this.shedSpansOnOverload = maxSpansPerRequest;
+      return this;
+    }
+
+    /**
+     * Sends HTTP/2 pings when the connection has been idle for this duration, keeping it hot
+     * between sparse flushes. Only applies to the channel created by {@link #newBuilder()}.
+     *
+     * @see ManagedChannelBuilder#keepAliveTime(long, TimeUnit)
+     */
+    public Builder keepAliveTime(long keepAliveTime, TimeUnit unit) {
+      if (unit == null) throw new NullPointerException("unit == null");
+      if (keepAliveTime <= 0) throw new IllegalArgumentException("keepAliveTime <= 0");
+      checkOwnsChannel("keepAliveTime");
+      this.keepAliveTimeNanos = unit.toNanos(keepAliveTime);
+      return this;
+    }
+
+    /**
+     * Duration without requests before the channel releases its connection. Raise this when spans
+     * are flushed less often than the default of 30 minutes. Only applies to the channel created
+     * by {@link #newBuilder()}.
+     *
+     * @see ManagedChannelBuilder#idleTimeout(long, TimeUnit)
+     */
+    public Builder idleTimeout(long idleTimeout, TimeUnit unit) {
+      if (unit == null) throw new NullPointerException("unit == null");
+      if (idleTimeout <= 0) throw new IllegalArgumentException("idleTimeout <= 0");
+      checkOwnsChannel("idleTimeout");
+      this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+      return this;
+    }
+
+    /**
+     * When true, {@link #build()} connects in the background and sends a warm-up request, so that
+     * DNS, TLS, HTTP/2 and authentication happen before the first flush. This helps when starting
+     * is latency sensitive, such as Cloud Run cold starts. A failed warm-up is retried on the next
+     * send. Defaults to false.
+     *
+     * @see StackdriverSender#isReady()
+     */
+    public Builder warmUp(boolean warmUp) {
+      this.warmUp = warmUp;
+      return this;
+    }
+
     public StackdriverSender build() {
       if (projectId == null) throw new NullPointerException("projectId == null");
       return new StackdriverSender(this);
     }
+
+    void checkOwnsChannel(String option) {
+      if (channel != null) {
+        throw new IllegalStateException(
+            option + " only applies to the channel created by StackdriverSender.newBuilder()");
+      }
+    }
+
+    ManagedChannel newManagedChannel() {
+      ManagedChannelBuilder<?> builder = ManagedChannelBuilder.forTarget(target);
+      if (keepAliveTimeNanos > 0) {
+        builder.keepAliveTime(keepAliveTimeNanos, TimeUnit.NANOSECONDS).keepAliveWithoutCalls(true);
+      }
+      if (idleTimeoutNanos > 0) builder.idleTimeout(idleTimeoutNanos, TimeUnit.NANOSECONDS);
+      return builder.build();
+    }
   }
 
+  static final String GZIP = "gzip";
+
+  /** Compares the 32 character trace ID prefix in place, as hex sorts the same as its value. */
+  static final Comparator<byte[]> TRACE_ID_ORDER = (left, right) -> {
+    for (int i = 0; i < 32; i++) {
+      int result = left[i] - right[i];
+      if (result != 0) return result;
+    }
+    return 0;
+  };
+
+  /** Same as {@link #TRACE_ID_ORDER}, except reading buffers. */
+  static final Comparator<ByteBuffer> BUFFER_TRACE_ID_ORDER = (left, right) -> {
+    for (int i = 0, leftStart = left.position(), rightStart = right.position(); i < 32; i++) {
+      int result = left.get(leftStart + i) - right.get(rightStart + i);
+      if (result != 0) return result;
+    }
+    return 0;
+  };
+
   static final ByteString SPAN_ID_PREFIX = ByteString.copyFromUtf8("/spans/");
 
   final Channel channel;
+  final Channel requestChannel; // channel, possibly intercepted
+  final OverloadShedder overloadShedder; // nullable
   final CallOptions callOptions;
+  final CallOptions compressedCallOptions; // nullable
+  final int compressionMinBytes;
+  final boolean groupByTraceId;
   final ByteString projectName;
   final ByteString traceIdPrefix;
   final boolean shutdownChannelOnClose;
@@ -98,16 +338,55 @@ public final class StackdriverSender extends Sender {
   final int spanNameSize;
   final int spanNameFieldSize;
   final long serverResponseTimeoutMs;
+  final int isolateInvalidSpansMaxDepth, isolateInvalidSpansMaxRequests;
+  final ReporterMetrics metrics;
+  final HedgingPolicy hedgingPolicy; // nullable
+  final ManagedChannel ownedHedgeChannel; // nullable
 
+  final MethodDescriptor<List<ByteBuffer>, Empty> batchWriteSpanBuffersMethod;
   final BatchWriteSpansCall healthcheckCall;
+  final boolean warmUp;
+  final CountDownLatch warmedUp = new CountDownLatch(1);
+  final AtomicBoolean warmUpInFlight = new AtomicBoolean();
 
   StackdriverSender(Builder builder) {
-    channel = builder.channel;
+    shutdownChannelOnClose = builder.channel == null;
+    channel = shutdownChannelOnClose ? builder.newManagedChannel() : builder.channel;
+    if (builder.shedSpansOnOverload > 0) {
+      overloadShedder = new OverloadShedder(builder.shedSpansOnOverload, builder.metrics);
+      requestChannel = ClientInterceptors.intercept(channel, overloadShedder);
+    } else {
+      overloadShedder = null;
+      requestChannel = channel;
+    }
     callOptions = builder.callOptions;
+    compressionMinBytes = builder.compressionMinBytes;
+    groupByTraceId = builder.groupByTraceId;
+    compressedCallOptions =
+        compressionMinBytes > 0 ? callOptions.withCompression(GZIP) : null;
     projectName = ByteString.copyFromUtf8("projects/" + builder.projectId);
     serverResponseTimeoutMs = builder.serverResponseTimeoutMs;
     traceIdPrefix = projectName.concat(ByteString.copyFromUtf8("/traces/"));
-    shutdownChannelOnClose = builder.shutdownChannelOnClose;
+    isolateInvalidSpansMaxDepth = builder.isolateInvalidSpansMaxDepth;
+    isolateInvalidSpansMaxRequests = builder.isolateInvalidSpansMaxRequests;
+    metrics = builder.metrics;
+    if (builder.hedgeDelayPercentile > 0) {
+      Channel hedgeChannel = builder.hedgeChannel;
+      if (hedgeChannel == null && shutdownChannelOnClose) {
+        hedgeChannel = ownedHedgeChannel = builder.newManagedChannel();
+      } else {
+        ownedHedgeChannel = null;
+        if (hedgeChannel == null) hedgeChannel = channel;
+      }
+      if (overloadShedder != null) {
+        hedgeChannel = ClientInterceptors.intercept(hedgeChannel, overloadShedder);
+      }
+      hedgingPolicy =
+          new HedgingPolicy(hedgeChannel, builder.hedgeDelayPercentile, builder.hedgeMaxRatio);
+    } else {
+      hedgingPolicy = null;
+      ownedHedgeChannel = null;
+    }
     projectNameFieldSize = CodedOutputStream.computeBytesSize(1, projectName);
 
     // The size of the contents of the Span.name field, used to preallocate the correct sized
@@ -117,11 +396,66 @@ public final class StackdriverSender extends Sender {
     spanNameFieldSize = CodedOutputStream.computeTagSize(1)
         + CodedOutputStream.computeUInt32SizeNoTag(spanNameSize) + spanNameSize;
 
+    MethodDescriptor<BatchWriteSpansRequest, Empty> method = TraceServiceGrpc.getBatchWriteSpansMethod();
+    batchWriteSpanBuffersMethod =
+        method.toBuilder(new SpanBuffersMarshaller(this), method.getResponseMarshaller()).build();
+
     BatchWriteSpansRequest healthcheckRequest = BatchWriteSpansRequest.newBuilder()
         .setNameBytes(projectName)
         .addSpans(Span.newBuilder().build())
         .build();
     healthcheckCall = new BatchWriteSpansCall(healthcheckRequest);
+    warmUp = builder.warmUp;
+    if (warmUp) warmUp(false);
+  }
+
+  /**
+   * Connects in the background, then sends the healthcheck request to authenticate. On failure,
+   * this is retried on the next send, so that later flushes still find the connection ready.
+   */
+  void warmUp(boolean retry) {
+    if (!warmUpInFlight.compareAndSet(false, true)) return;
+    if (channel instanceof ManagedChannel) ((ManagedChannel) channel).getState(true);
+    try {
+      healthcheckCall.clone().enqueue(new Callback<Empty>() {
+        @Override public void onSuccess(Empty value) {
+          warmedUp.countDown();
+        }
+
+        @Override public void onError(Throwable t) {
+          if (Status.fromThrowable(t).getCode() == Status.Code.INVALID_ARGUMENT) {
+            warmedUp.countDown(); // expected, as the healthcheck request is malformed
+          } else {
+            // Only warn once, as retries happen as often as flushes
+            LOG.log(retry ? FINE : WARNING,
+                "Warm-up request to Stackdriver failed: " + t.getMessage(), t);
+            warmUpInFlight.set(false);
+          }
+        }
+      });
+    } catch (RuntimeException | Error e) {
+      // The callback was already notified of the error
+      Call.propagateIfFatal(e);
+    }
+  }
+
+  /**
+   * Returns true when the {@link Builder#warmUp(boolean) warm-up} request reached Stackdriver. When
+   * warm-up is disabled, this returns true if the channel is connected.
+   */
+  public boolean isReady() {
+    if (warmUp) return warmedUp.getCount() == 0;
+    if (!(channel instanceof ManagedChannel)) return true;
+    return ((ManagedChannel) channel).getState(false) == ConnectivityState.READY;
+  }
+
+  /**
+   * Blocks until the {@link Builder#warmUp(boolean) warm-up} request reached Stackdriver, or the
+   * timeout elapses. Returns the result of {@link #isReady()}.
+   */
+  public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+    if (warmUp) warmedUp.await(timeout, unit);
+    return isReady();
   }
 
   @Override
@@ -159,16 +493,59 @@ public final class StackdriverSender extends Sender {
   @Override
   public Call<Void> sendSpans(List<byte[]> traceIdPrefixedSpans) {
     if (closeCalled) throw new IllegalStateException("closed");
+    if (warmUp && warmedUp.getCount() != 0) warmUp(true);
+    if (traceIdPrefixedSpans.isEmpty()) return Call.create(null);
+    if (overloadShedder != null) {
+      traceIdPrefixedSpans = overloadShedder.shed(traceIdPrefixedSpans, ByteBuffer::wrap);
+    }
     int length = traceIdPrefixedSpans.size();
-    if (length == 0) return Call.create(null);
+    if (groupByTraceId && length > 1) {
+      byte[][] sorted = traceIdPrefixedSpans.toArray(new byte[length][]);
+      Arrays.sort(sorted, TRACE_ID_ORDER); // stable
+      traceIdPrefixedSpans = Arrays.asList(sorted);
+    }
 
-    BatchWriteSpansRequest.Builder request = BatchWriteSpansRequest.newBuilder()
-        .setNameBytes(projectName);
+    List<Span> spans = new ArrayList<>(length);
     for (byte[] traceIdPrefixedSpan : traceIdPrefixedSpans) {
-      request.addSpans(parseTraceIdPrefixedSpan(traceIdPrefixedSpan, spanNameSize, traceIdPrefix));
+      spans.add(parseTraceIdPrefixedSpan(traceIdPrefixedSpan, spanNameSize, traceIdPrefix));
     }
 
-    return new BatchWriteSpansCall(request.build()).map(EmptyToVoid.INSTANCE);
+    if (isolateInvalidSpansMaxDepth > 0) {
+      return new IsolateInvalidSpansCall<>(this, spans, this::newBatchWriteSpansCall);
+    }
+    return newBatchWriteSpansCall(spans).map(EmptyToVoid.INSTANCE);
+  }
+
+  /**
+   * Like {@link #sendSpans(List)}, except spans are read from buffers, such as slices of the
+   * {@link OffHeapReporter} ring. Spans are copied into the request without parsing them. The
+   * buffers must not change until the call completes or is cancelled.
+   */
+  Call<Void> sendSpanBuffers(List<ByteBuffer> traceIdPrefixedSpans) {
+    if (closeCalled) throw new IllegalStateException("closed");
+    if (warmUp && warmedUp.getCount() != 0) warmUp(true);
+    if (traceIdPrefixedSpans.isEmpty()) return Call.create(null);
+    if (overloadShedder != null) {
+      traceIdPrefixedSpans = overloadShedder.shed(traceIdPrefixedSpans, Function.identity());
+    }
+    int length = traceIdPrefixedSpans.size();
+    if (groupByTraceId && length > 1) {
+      ByteBuffer[] sorted = traceIdPrefixedSpans.toArray(new ByteBuffer[length]);
+      Arrays.sort(sorted, BUFFER_TRACE_ID_ORDER); // stable
+      traceIdPrefixedSpans = Arrays.asList(sorted);
+    }
+
+    if (isolateInvalidSpansMaxDepth > 0) {
+      return new IsolateInvalidSpansCall<>(this, traceIdPrefixedSpans, BatchWriteSpanBuffersCall::new);
+    }
+    return new BatchWriteSpanBuffersCall(traceIdPrefixedSpans).map(EmptyToVoid.INSTANCE);
+  }
+
+  BatchWriteSpansCall newBatchWriteSpansCall(List<Span> spans) {
+    return new BatchWriteSpansCall(BatchWriteSpansRequest.newBuilder()
+        .setNameBytes(projectName)
+        .addAllSpans(spans)
+        .build());
   }
 
   /**
@@ -207,6 +584,7 @@ public final class StackdriverSender extends Sender {
     if (closeCalled) return;
     closeCalled = true;
     ((ManagedChannel) channel).shutdownNow();
+    if (ownedHedgeChannel != null) ownedHedgeChannel.shutdownNow();
   }
 
   static Span parseTraceIdPrefixedSpan(
@@ -237,6 +615,14 @@ public final class StackdriverSender extends Sender {
     return span.build();
   }
 
+  /** Returns call options that compress the request if it is large enough. */
+  CallOptions callOptions(int requestSizeInBytes) {
+    if (compressedCallOptions == null || requestSizeInBytes < compressionMinBytes) {
+      return callOptions;
+    }
+    return compressedCallOptions;
+  }
+
   int spanFieldSize(int traceIdPrefixedSpanSize) {
     int sizeOfSpanMessage = traceIdPrefixedSpanSize - 32 + spanNameFieldSize;
     return CodedOutputStream.computeTagSize(2)
@@ -246,7 +632,9 @@ public final class StackdriverSender extends Sender {
   final class BatchWriteSpansCall extends UnaryClientCall<BatchWriteSpansRequest, Empty> {
 
     BatchWriteSpansCall(BatchWriteSpansRequest request) {
-      super(channel, TraceServiceGrpc.getBatchWriteSpansMethod(), callOptions, request, serverResponseTimeoutMs);
+      super(requestChannel, TraceServiceGrpc.getBatchWriteSpansMethod(),
+          callOptions(request.getSerializedSize()), request, serverResponseTimeoutMs,
+          hedgingPolicy);
     }
 
     @Override
@@ -260,6 +648,26 @@ public final class StackdriverSender extends Sender {
     }
   }
 
+  final class BatchWriteSpanBuffersCall extends UnaryClientCall<List<ByteBuffer>, Empty> {
+
+    BatchWriteSpanBuffersCall(List<ByteBuffer> traceIdPrefixedSpans) {
+      super(requestChannel, batchWriteSpanBuffersMethod,
+          callOptions(SpanBuffersMarshaller.messageSizeInBytes(StackdriverSender.this,
+              traceIdPrefixedSpans)), traceIdPrefixedSpans, serverResponseTimeoutMs,
+          hedgingPolicy);
+    }
+
+    @Override
+    public String toString() {
+      return "BatchWriteSpanBuffersCall{spans=" + request().size() + "}";
+    }
+
+    @Override
+    public BatchWriteSpanBuffersCall clone() {
+      return new BatchWriteSpanBuffersCall(request());
+    }
+  }
+
   enum EmptyToVoid implements Call.Mapper<Empty, Void> {
     INSTANCE {
       @Override
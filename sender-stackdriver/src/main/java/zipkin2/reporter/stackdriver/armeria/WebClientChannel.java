@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter.stackdriver.armeria;
+
+import com.google.devtools.cloudtrace.v2.TraceServiceGrpc;
+import com.linecorp.armeria.client.ClientFactory;
+import com.linecorp.armeria.client.Clients;
+import com.linecorp.armeria.client.WebClient;
+import com.linecorp.armeria.common.Scheme;
+import com.linecorp.armeria.common.grpc.GrpcSerializationFormats;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.MethodDescriptor;
+import zipkin2.reporter.stackdriver.StackdriverSender;
+
+/**
+ * A gRPC channel that sends calls with Armeria's gRPC client, so that {@link StackdriverSender}
+ * shares the application's {@link ClientFactory}, event loops and connection pool instead of
+ * starting grpc-java's transport.
+ *
+ * <p>Ex.
+ * <pre>{@code
+ * sender = StackdriverSender.newBuilder(WebClientChannel.create(clientFactory))
+ *   .projectId("zipkin-demo")
+ *   .callOptions(CallOptions.DEFAULT.withCallCredentials(MoreCallCredentials.from(credentials)))
+ *   .build();
+ * }</pre>
+ */
+public final class WebClientChannel extends Channel {
+  static final String DEFAULT_URI = "https://cloudtrace.googleapis.com";
+
+  /** Sends to Stackdriver using the given client factory. */
+  public static WebClientChannel create(ClientFactory clientFactory) {
+    if (clientFactory == null) throw new NullPointerException("clientFactory == null");
+    return create(WebClient.builder(DEFAULT_URI).factory(clientFactory).build());
+  }
+
+  /**
+   * Sends to the endpoints of the given client, with its options, including decorators such as
+   * retry.
+   */
+  public static WebClientChannel create(WebClient client) {
+    if (client == null) throw new NullPointerException("client == null");
+    return new WebClientChannel(client);
+  }
+
+  final WebClient client;
+  final Channel delegate;
+
+  WebClientChannel(WebClient client) {
+    this.client = client;
+    Scheme scheme = Scheme.of(GrpcSerializationFormats.PROTO, client.scheme().sessionProtocol());
+    // Armeria only exposes its gRPC channel through a stub
+    this.delegate = Clients.builder(scheme, client.endpointGroup(), client.absolutePathRef())
+        .options(client.options())
+        .build(TraceServiceGrpc.TraceServiceFutureStub.class)
+        .getChannel();
+  }
+
+  @Override public <ReqT, RespT> ClientCall<ReqT, RespT> newCall(
+      MethodDescriptor<ReqT, RespT> method, CallOptions callOptions) {
+    return delegate.newCall(method, callOptions);
+  }
+
+  @Override public String authority() {
+    return delegate.authority();
+  }
+
+  @Override public String toString() {
+    return "WebClientChannel{" + client.uri() + "}";
+  }
+}
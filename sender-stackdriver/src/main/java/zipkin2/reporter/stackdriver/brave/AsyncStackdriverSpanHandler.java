@@ -0,0 +1,154 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter.stackdriver.brave;
+
+import brave.Tag;
+import brave.Tags;
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.propagation.TraceContext;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import zipkin2.reporter.AsyncReporter;
+import zipkin2.reporter.ReporterMetrics;
+import zipkin2.reporter.Sender;
+
+/**
+ * Reports Brave spans to Stackdriver without converting them to {@link zipkin2.Span} first.
+ *
+ * <p>Ex.
+ * <pre>{@code
+ * sender = StackdriverSender.newBuilder().projectId("zipkin-demo").build();
+ * spanHandler = AsyncStackdriverSpanHandler.create(sender);
+ * tracing = Tracing.newBuilder().addSpanHandler(spanHandler).build();
+ * }</pre>
+ */
+public final class AsyncStackdriverSpanHandler extends SpanHandler implements Closeable, Flushable {
+  /** Uses default options. Use {@link #newBuilder(Sender)} to customize. */
+  public static AsyncStackdriverSpanHandler create(Sender sender) {
+    return newBuilder(sender).build();
+  }
+
+  public static Builder newBuilder(Sender sender) {
+    if (sender == null) throw new NullPointerException("sender == null");
+    return new Builder(AsyncReporter.builder(sender));
+  }
+
+  public static final class Builder {
+    final AsyncReporter.Builder delegate;
+    Tag<Throwable> errorTag = Tags.ERROR;
+    boolean alwaysReportSpans;
+
+    Builder(AsyncReporter.Builder delegate) {
+      this.delegate = delegate;
+    }
+
+    /** @see AsyncReporter.Builder#threadFactory(ThreadFactory) */
+    public Builder threadFactory(ThreadFactory threadFactory) {
+      delegate.threadFactory(threadFactory);
+      return this;
+    }
+
+    /** @see AsyncReporter.Builder#metrics(ReporterMetrics) */
+    public Builder metrics(ReporterMetrics metrics) {
+      delegate.metrics(metrics);
+      return this;
+    }
+
+    /** @see AsyncReporter.Builder#messageMaxBytes(int) */
+    public Builder messageMaxBytes(int messageMaxBytes) {
+      delegate.messageMaxBytes(messageMaxBytes);
+      return this;
+    }
+
+    /** @see AsyncReporter.Builder#messageTimeout(long, TimeUnit) */
+    public Builder messageTimeout(long timeout, TimeUnit unit) {
+      delegate.messageTimeout(timeout, unit);
+      return this;
+    }
+
+    /** @see AsyncReporter.Builder#closeTimeout(long, TimeUnit) */
+    public Builder closeTimeout(long timeout, TimeUnit unit) {
+      delegate.closeTimeout(timeout, unit);
+      return this;
+    }
+
+    /** @see AsyncReporter.Builder#queuedMaxSpans(int) */
+    public Builder queuedMaxSpans(int queuedMaxSpans) {
+      delegate.queuedMaxSpans(queuedMaxSpans);
+      return this;
+    }
+
+    /** @see AsyncReporter.Builder#queuedMaxBytes(int) */
+    public Builder queuedMaxBytes(int queuedMaxBytes) {
+      delegate.queuedMaxBytes(queuedMaxBytes);
+      return this;
+    }
+
+    /**
+     * Sets the "error" tag value of a span that has {@link MutableSpan#error()}, but no "error"
+     * tag. Defaults to {@link Tags#ERROR}.
+     */
+    public Builder errorTag(Tag<Throwable> errorTag) {
+      if (errorTag == null) throw new NullPointerException("errorTag == null");
+      this.errorTag = errorTag;
+      return this;
+    }
+
+    /**
+     * When true, all spans become Stackdriver spans, even if they aren't sampled remotely.
+     * Defaults to false.
+     */
+    public Builder alwaysReportSpans(boolean alwaysReportSpans) {
+      this.alwaysReportSpans = alwaysReportSpans;
+      return this;
+    }
+
+    public AsyncStackdriverSpanHandler build() {
+      return new AsyncStackdriverSpanHandler(this);
+    }
+  }
+
+  final AsyncReporter<MutableSpan> spanReporter;
+  final Tag<Throwable> errorTag;
+  final boolean alwaysReportSpans;
+
+  AsyncStackdriverSpanHandler(Builder builder) {
+    this.errorTag = builder.errorTag;
+    this.spanReporter = builder.delegate.build(new StackdriverV2Encoder(errorTag));
+    this.alwaysReportSpans = builder.alwaysReportSpans;
+  }
+
+  @Override public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+    if (!alwaysReportSpans && !Boolean.TRUE.equals(context.sampled())) return true;
+    // Add the error tag here, so that the encoder doesn't need to copy the span
+    if (span.error() != null && span.tag("error") == null) errorTag.tag(span.error(), null, span);
+    spanReporter.report(span);
+    return true;
+  }
+
+  @Override public void flush() {
+    spanReporter.flush();
+  }
+
+  @Override public void close() {
+    spanReporter.close();
+  }
+
+  @Override public String toString() {
+    return "AsyncStackdriverSpanHandler{" + spanReporter + "}";
+  }
+}
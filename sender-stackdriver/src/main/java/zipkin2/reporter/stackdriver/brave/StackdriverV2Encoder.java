@@ -0,0 +1,239 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter.stackdriver.brave;
+
+import brave.Span.Kind;
+import brave.Tag;
+import brave.handler.MutableSpan;
+import com.google.devtools.cloudtrace.v2.AttributeValue;
+import com.google.devtools.cloudtrace.v2.Span;
+import com.google.devtools.cloudtrace.v2.Span.Attributes;
+import com.google.devtools.cloudtrace.v2.Span.TimeEvent;
+import com.google.devtools.cloudtrace.v2.Span.TimeEvents;
+import com.google.devtools.cloudtrace.v2.TruncatableString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Timestamp;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import zipkin2.Endpoint;
+import zipkin2.codec.BytesEncoder;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.stackdriver.StackdriverEncoder;
+import zipkin2.translation.stackdriver.SpanTranslator;
+
+import static zipkin2.translation.stackdriver.SpanTranslator.labelName;
+
+/**
+ * Encodes a Brave span the same as {@link StackdriverEncoder#V2} encodes the equivalent {@link
+ * zipkin2.Span}, but without converting to {@link zipkin2.Span} first.
+ *
+ * <p>The output is a Cloud Trace span prefixed by a potentially padded 32 character trace ID.
+ * Normalization done by {@link zipkin2.Span}, such as lower-casing the span and service name, or
+ * sorting tags and annotations, is reproduced here so that the bytes are identical.
+ */
+public final class StackdriverV2Encoder implements BytesEncoder<MutableSpan> {
+  final Tag<Throwable> errorTag;
+
+  /** @param errorTag usually {@link brave.Tags#ERROR}, used when the span has no "error" tag */
+  public StackdriverV2Encoder(Tag<Throwable> errorTag) {
+    if (errorTag == null) throw new NullPointerException("errorTag == null");
+    this.errorTag = errorTag;
+  }
+
+  @Override public Encoding encoding() {
+    return Encoding.PROTO3;
+  }
+
+  @Override public int sizeInBytes(MutableSpan input) {
+    return 32 + translate(input).getSerializedSize();
+  }
+
+  /** This encodes a TraceSpan message prefixed by a potentially padded 32 character trace ID */
+  @Override public byte[] encode(MutableSpan span) {
+    Span translated = translate(span);
+    byte[] result = new byte[32 + translated.getSerializedSize()];
+
+    // Brave trace ID is conditionally 16 or 32 characters, but Stackdriver needs 32
+    String traceId = span.traceId();
+    if (traceId.length() == 16) {
+      for (int i = 0; i < 16; i++) result[i] = '0';
+      for (int i = 0; i < 16; i++) result[i + 16] = (byte) traceId.charAt(i);
+    } else {
+      for (int i = 0; i < 32; i++) result[i] = (byte) traceId.charAt(i);
+    }
+
+    CodedOutputStream output = CodedOutputStream.newInstance(result, 32, result.length - 32);
+    try {
+      translated.writeTo(output);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+    return result;
+  }
+
+  @Override public byte[] encodeList(List<MutableSpan> spans) {
+    throw new UnsupportedOperationException("used in rest api; unused in reporter and collector");
+  }
+
+  Span translate(MutableSpan span) {
+    if (span.error() != null && span.tag("error") == null) {
+      // Rare, so copy instead of mutating input that sizeInBytes and encode both see
+      MutableSpan copy = new MutableSpan(span);
+      errorTag.tag(span.error(), null, copy);
+      span = copy;
+    }
+
+    Span.Builder result = Span.newBuilder().setSpanId(span.id());
+    String parentId = span.parentId();
+    if (parentId != null) result.setParentSpanId(parentId);
+
+    String name = span.name();
+    result.setDisplayName(toTruncatableString(
+        name != null && !name.isEmpty() ? name.toLowerCase(Locale.ROOT) : "unknown"));
+
+    // zipkin2.Span clamps a negative timestamp to zero and the duration to at least 1
+    long start = span.startTimestamp(), finish = span.finishTimestamp();
+    if (start > 0L) {
+      result.setStartTime(createTimestamp(start));
+      if (finish != 0L) result.setEndTime(createTimestamp(start + Math.max(finish - start, 1)));
+    }
+
+    result.setAttributes(extractAttributes(span, parentId));
+
+    int annotationCount = span.annotationCount();
+    if (annotationCount > 0) {
+      TimeEvents.Builder events = TimeEvents.newBuilder();
+      int[] sorted = sortedAnnotations(span, annotationCount);
+      for (int i = 0; i < annotationCount; i++) {
+        int index = sorted[i];
+        long timestamp = span.annotationTimestampAt(index);
+        String value = span.annotationValueAt(index);
+        if (i > 0) { // zipkin2.Span drops duplicate annotations
+          int previous = sorted[i - 1];
+          if (timestamp == span.annotationTimestampAt(previous)
+              && value.equals(span.annotationValueAt(previous))) {
+            continue;
+          }
+        }
+        events.addTimeEvent(TimeEvent.newBuilder()
+            .setTime(createTimestamp(timestamp))
+            .setAnnotation(TimeEvent.Annotation.newBuilder()
+                .setDescription(toTruncatableString(value))));
+      }
+      result.setTimeEvents(events);
+    }
+    return result.build();
+  }
+
+  /**
+   * Mirrors {@code AttributesExtractor}, including the order attributes are added. Tag keys are
+   * renamed by {@link SpanTranslator#labelName(String)}, so the two can't drift apart.
+   */
+  static Attributes extractAttributes(MutableSpan span, String parentId) {
+    Attributes.Builder attributes = Attributes.newBuilder();
+
+    Kind kind = span.kind();
+    if (kind != null) {
+      attributes.putAttributeMap("/kind", toAttributeValue(kind.name().toLowerCase(Locale.ROOT)));
+    }
+
+    // zipkin2.Span sorts tags by key
+    int tagCount = span.tagCount();
+    int[] sorted = sortedTags(span, tagCount);
+    for (int i = 0; i < tagCount; i++) {
+      int index = sorted[i];
+      attributes.putAttributeMap(
+          labelName(span.tagKeyAt(index)), toAttributeValue(span.tagValueAt(index)));
+    }
+
+    String localIp = span.localIp();
+    if (localIp != null && kind == Kind.SERVER) {
+      if (localIp.indexOf(':') == -1) { // Brave already normalized mapped addresses to IPv4
+        attributes.putAttributeMap(labelName("endpoint.ipv4"), toAttributeValue(localIp));
+      } else { // zipkin2.Endpoint compresses IPv6, so reuse its logic
+        String ipv6 = Endpoint.newBuilder().ip(localIp).build().ipv6();
+        if (ipv6 != null) {
+          attributes.putAttributeMap(labelName("endpoint.ipv6"), toAttributeValue(ipv6));
+        }
+      }
+    }
+
+    String serviceName = span.localServiceName();
+    if (serviceName != null && !serviceName.isEmpty()) {
+      attributes.putAttributeMap(
+          "/component", toAttributeValue(serviceName.toLowerCase(Locale.ROOT)));
+    }
+
+    if (parentId == null) {
+      String agentName = System.getProperty("stackdriver.trace.zipkin.agent", "zipkin-java");
+      attributes.putAttributeMap("/agent", toAttributeValue(agentName));
+    }
+    return attributes.build();
+  }
+
+  /** Returns tag indexes ordered by key. Insertion sort is fine as there are few tags. */
+  static int[] sortedTags(MutableSpan span, int tagCount) {
+    int[] result = new int[tagCount];
+    for (int i = 0; i < tagCount; i++) {
+      String key = span.tagKeyAt(i);
+      int j = i;
+      for (; j > 0 && span.tagKeyAt(result[j - 1]).compareTo(key) > 0; j--) {
+        result[j] = result[j - 1];
+      }
+      result[j] = i;
+    }
+    return result;
+  }
+
+  /** Returns annotation indexes ordered by timestamp, then value, like zipkin2.Annotation */
+  static int[] sortedAnnotations(MutableSpan span, int annotationCount) {
+    int[] result = new int[annotationCount];
+    for (int i = 0; i < annotationCount; i++) {
+      int j = i;
+      for (; j > 0 && compareAnnotations(span, result[j - 1], i) > 0; j--) {
+        result[j] = result[j - 1];
+      }
+      result[j] = i;
+    }
+    return result;
+  }
+
+  static int compareAnnotations(MutableSpan span, int left, int right) {
+    int byTimestamp =
+        Long.compare(span.annotationTimestampAt(left), span.annotationTimestampAt(right));
+    if (byTimestamp != 0) return byTimestamp;
+    return span.annotationValueAt(left).compareTo(span.annotationValueAt(right));
+  }
+
+  static AttributeValue toAttributeValue(String text) {
+    return AttributeValue.newBuilder().setStringValue(toTruncatableString(text)).build();
+  }
+
+  static TruncatableString toTruncatableString(String string) {
+    return TruncatableString.newBuilder().setValue(string).setTruncatedByteCount(0).build();
+  }
+
+  static Timestamp createTimestamp(long microseconds) {
+    long seconds = (microseconds / 1000000);
+    int remainderMicros = (int) (microseconds % 1000000);
+    int remainderNanos = remainderMicros * 1000;
+
+    return Timestamp.newBuilder().setSeconds(seconds).setNanos(remainderNanos).build();
+  }
+
+  @Override public String toString() {
+    return "StackdriverV2Encoder{" + errorTag + "}";
+  }
+}
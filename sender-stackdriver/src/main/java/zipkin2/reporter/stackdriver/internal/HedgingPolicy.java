@@ -0,0 +1,100 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter.stackdriver.internal;
+
+import io.grpc.Channel;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Decides when a {@link UnaryClientCall} sends a second copy of its request, and over which
+ * channel.
+ *
+ * <p>The hedge delay is a percentile of recently observed latency. Hedges are rate limited with a
+ * token bucket similar to gRPC retry throttling: each call earns {@code maxHedgeRatio} tokens and
+ * each hedge costs one. This caps hedges to a fraction of calls, so they cannot double load during
+ * an outage when every call is slow.
+ */
+public final class HedgingPolicy {
+  static final int WINDOW_SIZE = 128, MIN_SAMPLES = 20, MAX_TOKENS = 10;
+
+  final Channel channel;
+  final double percentile;
+  final float maxHedgeRatio;
+
+  final long[] latencies = new long[WINDOW_SIZE]; // guarded by this
+  int sampleCount; // guarded by this
+  float tokens = MAX_TOKENS; // guarded by this
+
+  /**
+   * @param channel where hedged requests are sent, ideally separate from the primary channel
+   * @param percentile the percentile of recent latency to wait before hedging, ex 0.95
+   * @param maxHedgeRatio the maximum ratio of hedged to all calls, ex 0.1
+   */
+  public HedgingPolicy(Channel channel, double percentile, float maxHedgeRatio) {
+    if (channel == null) throw new NullPointerException("channel == null");
+    if (percentile <= 0 || percentile >= 1) {
+      throw new IllegalArgumentException("percentile must be between 0 and 1");
+    }
+    if (maxHedgeRatio <= 0 || maxHedgeRatio > 1) {
+      throw new IllegalArgumentException("maxHedgeRatio must be greater than 0 and at most 1");
+    }
+    this.channel = channel;
+    this.percentile = percentile;
+    this.maxHedgeRatio = maxHedgeRatio;
+  }
+
+  /**
+   * Returns the delay in nanoseconds after which a call not yet complete should be hedged, or -1 if
+   * there are too few samples to decide. This also earns a fraction of a hedge token.
+   */
+  synchronized long hedgeDelayNanos() {
+    tokens = Math.min(MAX_TOKENS, tokens + maxHedgeRatio);
+    if (sampleCount < MIN_SAMPLES) return -1L;
+    int length = Math.min(sampleCount, WINDOW_SIZE);
+    long[] sorted = Arrays.copyOf(latencies, length);
+    Arrays.sort(sorted);
+    return sorted[(int) Math.min(length - 1, Math.floor(length * percentile))];
+  }
+
+  /** Returns true if a hedge is permitted, consuming a token. */
+  synchronized boolean tryAcquireHedge() {
+    if (tokens < 1) return false;
+    tokens -= 1;
+    return true;
+  }
+
+  synchronized void recordLatency(long nanos) {
+    latencies[sampleCount++ % WINDOW_SIZE] = nanos;
+    if (sampleCount == Integer.MAX_VALUE) sampleCount = WINDOW_SIZE; // avoid overflow
+  }
+
+  static ScheduledExecutorService scheduler() {
+    return SchedulerHolder.INSTANCE;
+  }
+
+  // Lazy, so that the thread is only started when hedging is used
+  static final class SchedulerHolder {
+    static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "StackdriverSender-hedging");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  @Override public String toString() {
+    return "HedgingPolicy{percentile=" + percentile + ", maxHedgeRatio=" + maxHedgeRatio + "}";
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter.stackdriver.internal;
+
+import io.grpc.ClientCall;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Listens to one attempt of a hedged unary call. The first attempt to succeed is forwarded to the
+ * delegate, or else the failure of the last attempt to close, after which other attempts are
+ * cancelled. A fast failure of one attempt doesn't hide another about to succeed.
+ */
+final class HedgingUnaryClientCallListener<RespT> extends ClientCall.Listener<RespT> {
+  /** State shared between the primary and hedge attempts. */
+  static final class Race {
+    // Latency is from the primary's start, even when the hedge wins. Otherwise, samples would
+    // exclude the hedge delay, lowering it each time a hedge wins.
+    final long startNanos = System.nanoTime();
+    volatile ClientCall<?, ?> primary, hedge;
+    volatile ScheduledFuture<?> hedgeTimer;
+    boolean done, cancelled; // guarded by this
+    int started = 1, closed; // guarded by this. The primary starts with the race.
+
+    synchronized boolean isDone() {
+      return done;
+    }
+
+    /** Returns false if the race is already decided or cancelled, so the hedge mustn't start. */
+    synchronized boolean tryStartHedge(ClientCall<?, ?> hedge, HedgingPolicy policy) {
+      if (done || cancelled || !policy.tryAcquireHedge()) return false;
+      this.hedge = hedge;
+      started++;
+      return true;
+    }
+
+    /** Returns true if this attempt's outcome completes the call. */
+    synchronized boolean tryComplete(boolean ok) {
+      if (done) return false;
+      closed++;
+      if (!ok && closed < started) return false; // another attempt may yet succeed
+      done = true;
+      return true;
+    }
+
+    /** Cancels all attempts. The last to close as cancelled will be forwarded to the delegate. */
+    void cancel() {
+      synchronized (this) {
+        cancelled = true;
+      }
+      ScheduledFuture<?> hedgeTimer = this.hedgeTimer;
+      if (hedgeTimer != null) hedgeTimer.cancel(false);
+      ClientCall<?, ?> primary = this.primary, hedge = this.hedge;
+      if (primary != null) primary.cancel(null, null);
+      if (hedge != null) hedge.cancel(null, null);
+    }
+
+    /** Cancels attempts other than the one which completed the call. */
+    void cancelLosers(boolean winnerIsHedge) {
+      ScheduledFuture<?> hedgeTimer = this.hedgeTimer;
+      if (hedgeTimer != null) hedgeTimer.cancel(false);
+      ClientCall<?, ?> loser = winnerIsHedge ? primary : hedge;
+      if (loser != null) loser.cancel("hedged call completed", null);
+    }
+  }
+
+  final ClientCall.Listener<RespT> delegate;
+  final HedgingPolicy policy;
+  final Race race;
+  final boolean isHedge;
+  final AtomicBoolean closed = new AtomicBoolean();
+  RespT value; // guarded by this
+
+  HedgingUnaryClientCallListener(ClientCall.Listener<RespT> delegate, HedgingPolicy policy,
+      Race race, boolean isHedge) {
+    this.delegate = delegate;
+    this.policy = policy;
+    this.race = race;
+    this.isHedge = isHedge;
+  }
+
+  @Override public void onHeaders(Metadata headers) {}
+
+  @Override public synchronized void onMessage(RespT value) {
+    // Buffer until close, as only the winner is forwarded to the delegate
+    if (this.value != null) {
+      throw Status.INTERNAL
+          .withDescription("More than one value received for unary call")
+          .asRuntimeException();
+    }
+    this.value = value;
+  }
+
+  /** Idempotent, as a hedge which failed to start is closed here as well as by gRPC. */
+  @Override public void onClose(Status status, Metadata trailers) {
+    if (!closed.compareAndSet(false, true)) return;
+    if (!race.tryComplete(status.isOk())) return; // decided by another attempt, or yet to be
+
+    race.cancelLosers(isHedge);
+    if (status.isOk()) policy.recordLatency(System.nanoTime() - race.startNanos);
+
+    RespT value;
+    synchronized (this) {
+      value = this.value;
+    }
+    if (value != null) delegate.onMessage(value);
+    delegate.onClose(status, trailers);
+  }
+}
@@ -18,15 +18,22 @@ import io.grpc.Channel;
 import io.grpc.ClientCall;
 import io.grpc.Metadata;
 import io.grpc.MethodDescriptor;
+import io.grpc.Status;
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 import zipkin2.Call;
 import zipkin2.Callback;
+import zipkin2.reporter.stackdriver.internal.HedgingUnaryClientCallListener.Race;
 
 public abstract class UnaryClientCall<ReqT, RespT> extends Call.Base<RespT> {
   public static final int DEFAULT_SERVER_TIMEOUT_MS = 5000;
   final ClientCall<ReqT, RespT> call;
+  final MethodDescriptor<ReqT, RespT> descriptor;
+  final CallOptions callOptions;
   final ReqT request;
   final long serverTimeoutMs;
+  final HedgingPolicy hedgingPolicy;
+  volatile Race race; // only set when hedging
 
   protected UnaryClientCall(
           Channel channel,
@@ -34,9 +41,26 @@ public abstract class UnaryClientCall<ReqT, RespT> extends Call.Base<RespT> {
           CallOptions callOptions,
           ReqT request,
           long serverTimeoutMs) {
+    this(channel, descriptor, callOptions, request, serverTimeoutMs, null);
+  }
+
+  /**
+   * @param hedgingPolicy when not null, a second copy of the request is sent if this call hasn't
+   * completed within a percentile of recent latency.
+   */
+  protected UnaryClientCall(
+          Channel channel,
+          MethodDescriptor<ReqT, RespT> descriptor,
+          CallOptions callOptions,
+          ReqT request,
+          long serverTimeoutMs,
+          HedgingPolicy hedgingPolicy) {
     this.call = channel.newCall(descriptor, callOptions);
+    this.descriptor = descriptor;
+    this.callOptions = callOptions;
     this.request = request;
     this.serverTimeoutMs = serverTimeoutMs;
+    this.hedgingPolicy = hedgingPolicy;
   }
 
   protected final ReqT request() {
@@ -62,9 +86,43 @@ public abstract class UnaryClientCall<ReqT, RespT> extends Call.Base<RespT> {
   }
 
   void beginUnaryCall(ClientCall.Listener<RespT> listener) {
+    if (hedgingPolicy == null) {
+      beginUnaryCall(call, listener);
+      return;
+    }
+
+    Race race = new Race();
+    race.primary = call;
+    this.race = race;
+    long hedgeDelayNanos = hedgingPolicy.hedgeDelayNanos();
+    beginUnaryCall(call,
+        new HedgingUnaryClientCallListener<>(listener, hedgingPolicy, race, false));
+    if (hedgeDelayNanos < 0 || race.isDone()) return;
+
+    race.hedgeTimer = HedgingPolicy.scheduler().schedule(() -> {
+      if (race.isDone()) return;
+      ClientCall<ReqT, RespT> hedge = hedgingPolicy.channel.newCall(descriptor, callOptions);
+      // Checks the race is undecided under the same lock that decides it
+      if (!race.tryStartHedge(hedge, hedgingPolicy)) return;
+      HedgingUnaryClientCallListener<RespT> hedgeListener =
+          new HedgingUnaryClientCallListener<>(listener, hedgingPolicy, race, true);
+      try {
+        beginUnaryCall(hedge, hedgeListener);
+      } catch (RuntimeException | Error t) {
+        // Count the hedge as a failed attempt, so the primary decides the outcome
+        hedgeListener.onClose(Status.fromThrowable(t), new Metadata());
+        return;
+      }
+      // The primary may have completed while the hedge started, before it could be cancelled
+      if (race.isDone()) hedge.cancel("hedged call completed", null);
+    }, hedgeDelayNanos, TimeUnit.NANOSECONDS);
+  }
+
+  void beginUnaryCall(ClientCall<ReqT, RespT> call, ClientCall.Listener<RespT> listener) {
     try {
       call.start(listener, new Metadata());
-      call.request(1);
+      // Like grpc's ClientCalls, request one more than expected, so that close needs no demand
+      call.request(2);
       call.sendMessage(request);
       call.halfClose();
     } catch (RuntimeException | Error t) {
@@ -75,6 +133,11 @@ public abstract class UnaryClientCall<ReqT, RespT> extends Call.Base<RespT> {
 
   @Override
   protected final void doCancel() {
-    call.cancel(null, null);
+    Race race = this.race;
+    if (race != null) {
+      race.cancel();
+    } else {
+      call.cancel(null, null);
+    }
   }
 }
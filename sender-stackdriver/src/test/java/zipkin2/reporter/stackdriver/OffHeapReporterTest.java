@@ -0,0 +1,173 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter.stackdriver;
+
+import com.google.devtools.cloudtrace.v2.BatchWriteSpansRequest;
+import com.google.devtools.cloudtrace.v2.TraceServiceGrpc;
+import com.google.protobuf.Empty;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcServerRule;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import zipkin2.Span;
+import zipkin2.TestObjects;
+import zipkin2.reporter.InMemoryReporterMetrics;
+import zipkin2.translation.stackdriver.SpanTranslator;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+public class OffHeapReporterTest {
+  @Rule public final GrpcServerRule server = new GrpcServerRule().directExecutor();
+  List<BatchWriteSpansRequest> requests = new CopyOnWriteArrayList<>();
+  Status status = Status.OK;
+  String projectId = "test-project";
+  InMemoryReporterMetrics metrics = new InMemoryReporterMetrics();
+  StackdriverSender sender;
+  OffHeapReporter<Span> reporter;
+
+  @Before public void setUp() {
+    server.getServiceRegistry().addService(new TraceServiceGrpc.TraceServiceImplBase() {
+      @Override public void batchWriteSpans(BatchWriteSpansRequest request,
+          StreamObserver<Empty> responseObserver) {
+        requests.add(request);
+        if (!status.isOk()) {
+          responseObserver.onError(status.asRuntimeException());
+          return;
+        }
+        responseObserver.onNext(Empty.getDefaultInstance());
+        responseObserver.onCompleted();
+      }
+    });
+    sender = StackdriverSender.newBuilder(server.getChannel()).projectId(projectId).build();
+    reporter = OffHeapReporter.newBuilder(sender)
+        .messageTimeout(0, TimeUnit.MILLISECONDS) // don't spawn a thread
+        .metrics(metrics)
+        .build(StackdriverEncoder.V2);
+  }
+
+  @After public void close() {
+    reporter.close();
+  }
+
+  @Test public void flush_empty() {
+    reporter.flush();
+
+    assertThat(requests).isEmpty();
+  }
+
+  @Test public void flush_sendsSpans() {
+    reporter.report(TestObjects.CLIENT_SPAN);
+    reporter.flush();
+
+    assertThat(requests).hasSize(1);
+    assertThat(requests.get(0).getName()).isEqualTo("projects/" + projectId);
+    assertThat(requests.get(0).getSpansList()).containsExactlyElementsOf(
+        SpanTranslator.translate(projectId, asList(TestObjects.CLIENT_SPAN)));
+    assertThat(metrics.messages()).isEqualTo(1);
+    assertThat(metrics.messageBytes()).isEqualTo(requests.get(0).getSerializedSize());
+  }
+
+  @Test public void report_dropsSpansOverBudget() {
+    int spanSize = StackdriverEncoder.V2.sizeInBytes(TestObjects.CLIENT_SPAN);
+    reporter = OffHeapReporter.newBuilder(sender)
+        .messageTimeout(0, TimeUnit.MILLISECONDS)
+        .queuedMaxBytes(3 * (4 + spanSize))
+        .metrics(metrics)
+        .build(StackdriverEncoder.V2);
+
+    for (int i = 0; i < 5; i++) reporter.report(TestObjects.CLIENT_SPAN);
+    reporter.flush();
+
+    assertThat(requests.get(0).getSpansCount()).isEqualTo(3);
+    assertThat(metrics.spansDropped()).isEqualTo(2);
+  }
+
+  @Test public void flush_wrapsAroundTheRing() {
+    int spanSize = StackdriverEncoder.V2.sizeInBytes(span(0));
+    reporter = OffHeapReporter.newBuilder(sender)
+        .messageTimeout(0, TimeUnit.MILLISECONDS)
+        .messageMaxBytes(sender.messageSizeInBytes(spanSize)) // one span per message
+        .queuedMaxBytes(3 * (4 + spanSize) + 2) // leaves a gap too small for a length
+        .metrics(metrics)
+        .build(StackdriverEncoder.V2);
+
+    // Keeps one span pending when flushing, so that the ring isn't reset to its start
+    List<Span> spans = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      spans.add(span(i));
+      reporter.report(span(i));
+      if (i > 0) reporter.flush();
+    }
+    reporter.flush();
+
+    List<com.google.devtools.cloudtrace.v2.Span> sent = new ArrayList<>();
+    for (BatchWriteSpansRequest request : requests) sent.addAll(request.getSpansList());
+    assertThat(sent).containsExactlyElementsOf(SpanTranslator.translate(projectId, spans));
+    assertThat(metrics.spansDropped()).isZero();
+  }
+
+  @Test public void flush_splitsMessagesAtMaxBytes() {
+    int messageMaxBytes = sender.messageSizeInBytes(asList(
+        StackdriverEncoder.V2.encode(span(1)), StackdriverEncoder.V2.encode(span(2))));
+    reporter = OffHeapReporter.newBuilder(sender)
+        .messageTimeout(0, TimeUnit.MILLISECONDS)
+        .messageMaxBytes(messageMaxBytes)
+        .build(StackdriverEncoder.V2);
+
+    for (int i = 1; i <= 3; i++) reporter.report(span(i));
+    reporter.flush();
+    reporter.flush();
+
+    assertThat(requests).extracting(BatchWriteSpansRequest::getSpansCount).containsExactly(2, 1);
+  }
+
+  @Test public void flush_failureDropsSpans() {
+    status = Status.UNAVAILABLE;
+
+    reporter.report(TestObjects.CLIENT_SPAN);
+    reporter.flush();
+
+    assertThat(metrics.messagesDropped()).isEqualTo(1);
+    assertThat(metrics.spansDropped()).isEqualTo(1);
+
+    // the space was released
+    status = Status.OK;
+    reporter.report(TestObjects.CLIENT_SPAN);
+    reporter.flush();
+    assertThat(requests).hasSize(2);
+  }
+
+  @Test public void messageTimeout_flushesInBackground() {
+    reporter = OffHeapReporter.newBuilder(sender)
+        .messageTimeout(10, TimeUnit.MILLISECONDS)
+        .build(StackdriverEncoder.V2);
+
+    reporter.report(TestObjects.CLIENT_SPAN);
+
+    await().until(() -> requests.size() == 1);
+  }
+
+  static Span span(int id) {
+    return TestObjects.CLIENT_SPAN.toBuilder().id(id + 1).build();
+  }
+}
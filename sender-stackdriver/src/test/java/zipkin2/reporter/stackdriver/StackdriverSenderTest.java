@@ -17,12 +17,21 @@ import com.google.common.collect.ImmutableList;
 import com.google.devtools.cloudtrace.v2.BatchWriteSpansRequest;
 import com.google.devtools.cloudtrace.v2.TraceServiceGrpc;
 import com.google.protobuf.Empty;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ClientInterceptors;
+import io.grpc.MethodDescriptor;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
 import io.grpc.testing.GrpcServerRule;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import org.junit.Before;
@@ -32,12 +41,15 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.stubbing.Answer;
 import zipkin2.CheckResult;
 import zipkin2.Span;
+import zipkin2.reporter.InMemoryReporterMetrics;
 import zipkin2.translation.stackdriver.SpanTranslator;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static zipkin2.TestObjects.FRONTEND;
 
@@ -125,6 +137,308 @@ public class StackdriverSenderTest {
     assertThat(sender.messageSizeInBytes(encodedSpans)).isEqualTo(actualSize);
   }
 
+  @Test
+  public void sendSpanBuffers_sameRequestAsSendSpans() throws IOException {
+    List<Span> spans =
+        ImmutableList.of(
+            span.toBuilder().traceId("10000000000000000000000000000002").build(),
+            span.toBuilder().traceId("1").id("b").parentId("a").kind(Span.Kind.SERVER).build());
+    onClientCall(
+        observer -> {
+          observer.onNext(Empty.getDefaultInstance());
+          observer.onCompleted();
+        });
+    List<byte[]> encodedSpans = encode(spans);
+
+    sender.sendSpans(encodedSpans).execute();
+    BatchWriteSpansRequest parsed = takeRequest();
+
+    List<ByteBuffer> buffers = new ArrayList<>();
+    for (byte[] encodedSpan : encodedSpans) {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(encodedSpan.length);
+      buffer.put(encodedSpan).flip();
+      buffers.add(buffer);
+    }
+    sender.sendSpanBuffers(buffers).execute();
+
+    ArgumentCaptor<BatchWriteSpansRequest> requestCaptor =
+        ArgumentCaptor.forClass(BatchWriteSpansRequest.class);
+    verify(traceService, times(2)).batchWriteSpans(requestCaptor.capture(), any());
+    BatchWriteSpansRequest written = requestCaptor.getAllValues().get(1);
+    assertThat(written.toByteArray()).containsExactly(parsed.toByteArray());
+  }
+
+  @Test
+  public void compressionMinBytes_onlyCompressesLargeRequests() throws IOException {
+    List<String> compressors = new ArrayList<>();
+    Channel channel = ClientInterceptors.intercept(server.getChannel(), new ClientInterceptor() {
+      @Override public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(
+          MethodDescriptor<ReqT, RespT> method, CallOptions callOptions, Channel next) {
+        compressors.add(callOptions.getCompressor());
+        return next.newCall(method, callOptions);
+      }
+    });
+    List<byte[]> small = encode(spansWithPoisonAt(-1, 1)), large = encode(spansWithPoisonAt(-1, 10));
+    sender = StackdriverSender.newBuilder(channel)
+        .projectId(projectId)
+        .compressionMinBytes(sender.messageSizeInBytes(large))
+        .build();
+    compressors.clear(); // ignore the healthcheck call
+    onClientCall(
+        observer -> {
+          observer.onNext(Empty.getDefaultInstance());
+          observer.onCompleted();
+        });
+
+    sender.sendSpans(small).execute();
+    sender.sendSpans(large).execute();
+
+    assertThat(compressors).containsExactly(null, "gzip");
+  }
+
+  @Test
+  public void groupByTraceId_stablySortsByTraceId() throws IOException {
+    sender = StackdriverSender.newBuilder(server.getChannel())
+        .projectId(projectId)
+        .groupByTraceId(true)
+        .build();
+    onClientCall(
+        observer -> {
+          observer.onNext(Empty.getDefaultInstance());
+          observer.onCompleted();
+        });
+    Span a1 = span.toBuilder().traceId("20000000000000000000000000000001").id("1").build();
+    Span b1 = span.toBuilder().traceId("10000000000000000000000000000002").id("2").build();
+    Span a2 = a1.toBuilder().id("3").build();
+    Span c1 = span.toBuilder().traceId("0000000000000003").id("4").build(); // padded
+    Span b2 = b1.toBuilder().id("5").build();
+
+    sender.sendSpans(encode(ImmutableList.of(a1, b1, a2, c1, b2))).execute();
+
+    assertThat(takeRequest().getSpansList()).containsExactlyElementsOf(
+        SpanTranslator.translate(projectId, ImmutableList.of(c1, b1, b2, a1, a2)));
+  }
+
+  @Test
+  public void overloadShedder_priority() {
+    Span child = span.toBuilder().parentId("b").build();
+
+    assertThat(OverloadShedder.priority(ByteBuffer.wrap(StackdriverEncoder.V2.encode(span))))
+        .isEqualTo(OverloadShedder.ROOT);
+    assertThat(OverloadShedder.priority(ByteBuffer.wrap(StackdriverEncoder.V2.encode(child))))
+        .isEqualTo(OverloadShedder.OTHER);
+    assertThat(OverloadShedder.priority(ByteBuffer.wrap(StackdriverEncoder.V2.encode(
+        child.toBuilder().putTag("http.path", "/").putTag("error", "").build()))))
+        .isEqualTo(OverloadShedder.ERROR);
+    assertThat(OverloadShedder.priority(ByteBuffer.wrap(StackdriverEncoder.V2.encode(
+        child.toBuilder().putTag("errors", "1").putTag("http.error", "1").build()))))
+        .isEqualTo(OverloadShedder.OTHER);
+  }
+
+  @Test
+  public void shedSpansOnOverload_keepsErrorAndRootSpans() throws IOException {
+    InMemoryReporterMetrics metrics = new InMemoryReporterMetrics();
+    sender = StackdriverSender.newBuilder(server.getChannel())
+        .projectId(projectId)
+        .shedSpansOnOverload(2)
+        .metrics(metrics)
+        .build();
+    Span child = span.toBuilder().parentId("b").build();
+    List<Span> spans = ImmutableList.of(
+        child.toBuilder().id("1").build(),
+        span.toBuilder().id("2").build(), // root
+        child.toBuilder().id("3").build(),
+        child.toBuilder().id("4").putTag("error", "timeout").build());
+
+    // not overloaded, so all spans are sent
+    onClientCall(observer -> observer.onError(Status.RESOURCE_EXHAUSTED.asRuntimeException()));
+    assertThatThrownBy(() -> sender.sendSpans(encode(spans)).execute())
+        .isInstanceOf(StatusRuntimeException.class);
+
+    onClientCall(
+        observer -> {
+          observer.onNext(Empty.getDefaultInstance());
+          observer.onCompleted();
+        });
+    sender.sendSpans(encode(spans)).execute();
+
+    ArgumentCaptor<BatchWriteSpansRequest> requestCaptor =
+        ArgumentCaptor.forClass(BatchWriteSpansRequest.class);
+    verify(traceService, times(2)).batchWriteSpans(requestCaptor.capture(), any());
+    assertThat(requestCaptor.getAllValues().get(0).getSpansCount()).isEqualTo(4);
+    assertThat(requestCaptor.getAllValues().get(1).getSpansList()).containsExactlyElementsOf(
+        SpanTranslator.translate(projectId, ImmutableList.of(spans.get(1), spans.get(3))));
+    assertThat(metrics.spansDropped()).isEqualTo(2);
+  }
+
+  @Test
+  public void sendSpans_invalidArgumentFailsBatchByDefault() {
+    onClientCall(observer -> observer.onError(new StatusRuntimeException(Status.INVALID_ARGUMENT)));
+
+    assertThatThrownBy(() -> sender.sendSpans(encode(spansWithPoisonAt(3, 8))).execute())
+        .isInstanceOf(StatusRuntimeException.class)
+        .hasMessageContaining("INVALID_ARGUMENT");
+  }
+
+  @Test
+  public void sendSpans_isolateInvalidSpans() throws IOException {
+    InMemoryReporterMetrics metrics = new InMemoryReporterMetrics();
+    sender = StackdriverSender.newBuilder(server.getChannel())
+        .projectId(projectId)
+        .isolateInvalidSpansMaxDepth(3)
+        .metrics(metrics)
+        .build();
+    List<BatchWriteSpansRequest> accepted = rejectPoisonSpans();
+
+    sender.sendSpans(encode(spansWithPoisonAt(3, 8))).execute();
+
+    // 8 -> 4 -> 2 -> 1: the original request, and 3 levels of splits
+    verify(traceService, times(1 + 2 + 2 + 2)).batchWriteSpans(any(), any());
+    assertThat(accepted.stream().mapToInt(BatchWriteSpansRequest::getSpansCount).sum())
+        .isEqualTo(7);
+    assertThat(metrics.spansDropped()).isEqualTo(1);
+  }
+
+  @Test
+  public void sendSpans_isolateInvalidSpans_dropsRemainderWhenBudgetExhausted() throws IOException {
+    InMemoryReporterMetrics metrics = new InMemoryReporterMetrics();
+    sender = StackdriverSender.newBuilder(server.getChannel())
+        .projectId(projectId)
+        .isolateInvalidSpansMaxDepth(3)
+        .isolateInvalidSpansMaxRequests(2)
+        .metrics(metrics)
+        .build();
+    List<BatchWriteSpansRequest> accepted = rejectPoisonSpans();
+
+    sender.sendSpans(encode(spansWithPoisonAt(3, 8))).execute();
+
+    verify(traceService, times(1 + 2)).batchWriteSpans(any(), any());
+    assertThat(accepted.stream().mapToInt(BatchWriteSpansRequest::getSpansCount).sum())
+        .isEqualTo(4);
+    assertThat(metrics.spansDropped()).isEqualTo(4);
+  }
+
+  @Test
+  public void sendSpans_isolateInvalidSpans_otherErrorsFailTheCall() {
+    sender = StackdriverSender.newBuilder(server.getChannel())
+        .projectId(projectId)
+        .isolateInvalidSpansMaxDepth(3)
+        .build();
+    onClientCall(observer -> observer.onError(new StatusRuntimeException(Status.UNAVAILABLE)));
+
+    assertThatThrownBy(() -> sender.sendSpans(encode(spansWithPoisonAt(3, 8))).execute())
+        .isInstanceOf(StatusRuntimeException.class)
+        .hasMessageContaining("UNAVAILABLE");
+    verify(traceService).batchWriteSpans(any(), any());
+  }
+
+  List<Span> spansWithPoisonAt(int poisonIndex, int count) {
+    List<Span> spans = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      spans.add(span.toBuilder()
+          .id(i + 1)
+          .name(i == poisonIndex ? "poison" : "get")
+          .build());
+    }
+    return spans;
+  }
+
+  static List<byte[]> encode(List<Span> spans) {
+    return spans.stream().map(StackdriverEncoder.V2::encode).collect(Collectors.toList());
+  }
+
+  /** Fails any request including a span named "poison", returning the accepted requests. */
+  List<BatchWriteSpansRequest> rejectPoisonSpans() {
+    List<BatchWriteSpansRequest> accepted = new ArrayList<>();
+    doAnswer(
+        (Answer<Void>)
+            invocationOnMock -> {
+              BatchWriteSpansRequest request =
+                  (BatchWriteSpansRequest) invocationOnMock.getArguments()[0];
+              StreamObserver<Empty> observer =
+                  ((StreamObserver) invocationOnMock.getArguments()[1]);
+              boolean poisoned = request.getSpansList().stream()
+                  .anyMatch(s -> s.getDisplayName().getValue().equals("poison"));
+              if (poisoned) {
+                observer.onError(new StatusRuntimeException(Status.INVALID_ARGUMENT));
+              } else {
+                synchronized (accepted) {
+                  accepted.add(request);
+                }
+                observer.onNext(Empty.getDefaultInstance());
+                observer.onCompleted();
+              }
+              return null;
+            })
+        .when(traceService)
+        .batchWriteSpans(any(BatchWriteSpansRequest.class), any(StreamObserver.class));
+    return accepted;
+  }
+
+  @Test
+  public void warmUp_sendsHealthcheckInBackground() throws Exception {
+    onClientCall(observer -> observer.onError(new StatusRuntimeException(Status.INVALID_ARGUMENT)));
+
+    sender = StackdriverSender.newBuilder(server.getChannel())
+        .projectId(projectId)
+        .warmUp(true)
+        .build();
+
+    assertThat(sender.awaitReady(1, TimeUnit.SECONDS)).isTrue();
+    assertThat(takeRequest().getName()).isEqualTo("projects/" + projectId);
+  }
+
+  @Test
+  public void warmUp_notReadyOnFailure() throws Exception {
+    onClientCall(observer -> observer.onError(new StatusRuntimeException(Status.UNAUTHENTICATED)));
+
+    sender = StackdriverSender.newBuilder(server.getChannel())
+        .projectId(projectId)
+        .warmUp(true)
+        .build();
+
+    assertThat(sender.awaitReady(100, TimeUnit.MILLISECONDS)).isFalse();
+  }
+
+  @Test
+  public void warmUp_retriedOnNextSend() throws Exception {
+    onClientCall(observer -> observer.onError(new StatusRuntimeException(Status.UNAVAILABLE)));
+
+    sender = StackdriverSender.newBuilder(server.getChannel())
+        .projectId(projectId)
+        .warmUp(true)
+        .build();
+    assertThat(sender.awaitReady(100, TimeUnit.MILLISECONDS)).isFalse();
+
+    onClientCall(observer -> observer.onError(new StatusRuntimeException(Status.INVALID_ARGUMENT)));
+    sender.sendSpans(ImmutableList.of()); // doesn't send a request, but retries warm-up
+
+    assertThat(sender.awaitReady(1, TimeUnit.SECONDS)).isTrue();
+  }
+
+  @Test
+  public void channelOptions_requireOwnedChannel() {
+    StackdriverSender.Builder builder = StackdriverSender.newBuilder(server.getChannel());
+
+    assertThatThrownBy(() -> builder.keepAliveTime(30, TimeUnit.SECONDS))
+        .isInstanceOf(IllegalStateException.class);
+    assertThatThrownBy(() -> builder.idleTimeout(1, TimeUnit.HOURS))
+        .isInstanceOf(IllegalStateException.class);
+  }
+
+  @Test
+  public void newBuilder_createsChannelOnBuild() {
+    StackdriverSender.Builder builder = StackdriverSender.newBuilder()
+        .projectId(projectId)
+        .keepAliveTime(30, TimeUnit.SECONDS)
+        .idleTimeout(1, TimeUnit.HOURS);
+
+    try (StackdriverSender first = builder.build(); StackdriverSender second = builder.build()) {
+      assertThat(first.channel).isNotSameAs(second.channel);
+      assertThat(first.isReady()).isFalse(); // as we didn't warm-up
+    }
+  }
+
   @Test
   public void verifyCheckReturnsFailureWhenServiceFailsWithKnownGrpcFailure() {
     onClientCall(observer -> {
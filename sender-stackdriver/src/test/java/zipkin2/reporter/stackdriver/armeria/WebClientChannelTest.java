@@ -0,0 +1,153 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter.stackdriver.armeria;
+
+import com.google.devtools.cloudtrace.v2.BatchWriteSpansRequest;
+import com.google.devtools.cloudtrace.v2.TraceServiceGrpc;
+import com.google.protobuf.Empty;
+import com.linecorp.armeria.client.WebClient;
+import com.linecorp.armeria.server.ServerBuilder;
+import com.linecorp.armeria.server.grpc.GrpcService;
+import com.linecorp.armeria.testing.junit4.server.ServerRule;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import zipkin2.CheckResult;
+import zipkin2.reporter.stackdriver.StackdriverEncoder;
+import zipkin2.reporter.stackdriver.StackdriverSender;
+import zipkin2.translation.stackdriver.SpanTranslator;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static zipkin2.TestObjects.CLIENT_SPAN;
+
+public class WebClientChannelTest {
+  List<BatchWriteSpansRequest> requests = new CopyOnWriteArrayList<>();
+  volatile Status status = Status.OK;
+
+  @Rule public final ServerRule server = new ServerRule() {
+    @Override protected void configure(ServerBuilder sb) {
+      sb.service(GrpcService.builder()
+          .addService(new TraceServiceGrpc.TraceServiceImplBase() {
+            @Override public void batchWriteSpans(BatchWriteSpansRequest request,
+                StreamObserver<Empty> responseObserver) {
+              requests.add(request);
+              if (!status.isOk()) {
+                responseObserver.onError(status.asRuntimeException());
+                return;
+              }
+              responseObserver.onNext(Empty.getDefaultInstance());
+              responseObserver.onCompleted();
+            }
+          })
+          .build());
+    }
+  };
+
+  String projectId = "test-project";
+  StackdriverSender sender;
+
+  @Before public void setUp() {
+    sender = newSender(0);
+  }
+
+  @After public void close() {
+    sender.close();
+  }
+
+  StackdriverSender newSender(int compressionMinBytes) {
+    WebClientChannel channel = WebClientChannel.create(WebClient.of(server.httpUri()));
+    return StackdriverSender.newBuilder(channel)
+        .projectId(projectId)
+        .compressionMinBytes(compressionMinBytes)
+        .build();
+  }
+
+  @Test public void authority() {
+    WebClientChannel channel = WebClientChannel.create(WebClient.of(server.httpUri()));
+
+    assertThat(channel.authority()).isEqualTo("127.0.0.1:" + server.httpPort());
+  }
+
+  @Test public void sendSpans() throws Exception {
+    sender.sendSpans(singletonList(StackdriverEncoder.V2.encode(CLIENT_SPAN))).execute();
+
+    assertThat(requests).hasSize(1);
+    assertThat(requests.get(0).getName()).isEqualTo("projects/" + projectId);
+    assertThat(requests.get(0).getSpansList())
+        .containsExactlyElementsOf(SpanTranslator.translate(projectId, asList(CLIENT_SPAN)));
+  }
+
+  @Test public void sendSpans_compressed() throws Exception {
+    sender.close();
+    sender = newSender(1);
+
+    List<byte[]> encoded = asList(
+        StackdriverEncoder.V2.encode(CLIENT_SPAN),
+        StackdriverEncoder.V2.encode(CLIENT_SPAN.toBuilder().id(2).build()));
+    sender.sendSpans(encoded).execute();
+
+    assertThat(requests).hasSize(1);
+    assertThat(requests.get(0).getSpansCount()).isEqualTo(2);
+  }
+
+  @Test public void sendSpans_error() {
+    status = Status.RESOURCE_EXHAUSTED.withDescription("over quota: 100% used");
+
+    assertThatThrownBy(() -> sender.sendSpans(
+        singletonList(StackdriverEncoder.V2.encode(CLIENT_SPAN))).execute())
+        .isInstanceOf(StatusRuntimeException.class)
+        .hasMessage("RESOURCE_EXHAUSTED: over quota: 100% used");
+  }
+
+  @Test public void sendSpans_unavailable() throws Exception {
+    WebClientChannel channel = WebClientChannel.create(WebClient.of("http://127.0.0.1:1"));
+    sender = StackdriverSender.newBuilder(channel).projectId(projectId).build();
+
+    assertThatThrownBy(() -> sender.sendSpans(
+        singletonList(StackdriverEncoder.V2.encode(CLIENT_SPAN))).execute())
+        .isInstanceOf(StatusRuntimeException.class)
+        .extracting(e -> ((StatusRuntimeException) e).getStatus().getCode())
+        .isEqualTo(Status.Code.UNAVAILABLE);
+  }
+
+  @Test public void sendSpans_decoratorThrows() {
+    WebClientChannel channel = WebClientChannel.create(WebClient.builder(server.httpUri())
+        .decorator((delegate, ctx, req) -> {
+          throw new IllegalStateException("rejected");
+        })
+        .build());
+    sender = StackdriverSender.newBuilder(channel).projectId(projectId).build();
+
+    assertThatThrownBy(() -> sender.sendSpans(
+        singletonList(StackdriverEncoder.V2.encode(CLIENT_SPAN))).execute())
+        .isInstanceOf(StatusRuntimeException.class);
+    assertThat(requests).isEmpty();
+  }
+
+  /** The health check sends an empty span, which is invalid */
+  @Test public void check() {
+    status = Status.INVALID_ARGUMENT;
+
+    assertThat(sender.check()).isEqualTo(CheckResult.OK);
+  }
+}
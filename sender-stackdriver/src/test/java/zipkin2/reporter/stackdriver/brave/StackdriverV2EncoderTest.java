@@ -0,0 +1,107 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.reporter.stackdriver.brave;
+
+import brave.Span.Kind;
+import brave.Tags;
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler.Cause;
+import brave.propagation.TraceContext;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import zipkin2.Span;
+import zipkin2.reporter.brave.ZipkinSpanHandler;
+import zipkin2.reporter.stackdriver.StackdriverEncoder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StackdriverV2EncoderTest {
+  StackdriverV2Encoder encoder = new StackdriverV2Encoder(Tags.ERROR);
+  TraceContext context = TraceContext.newBuilder().traceId(1L).spanId(2L).sampled(true).build();
+  MutableSpan span = new MutableSpan(context, null);
+
+  @Test public void matchesZipkinEncoding_serverSpan() {
+    span.parentId("0000000000000001");
+    span.name("GET /Users/{userId}");
+    span.kind(Kind.SERVER);
+    span.localServiceName("FrontEnd");
+    span.localIp("192.168.99.101");
+    span.startTimestamp(1472470996199000L);
+    span.finishTimestamp(1472470996406000L);
+    span.tag("http.url", "/users/1");
+    span.tag("http.method", "GET");
+    span.tag("clnt/finagle.version", "6.45.0");
+    span.tag("http.status_code", "200");
+    span.annotate(1472470996403000L, "wr");
+    span.annotate(1472470996238000L, "ws");
+    span.annotate(1472470996238000L, "ws"); // duplicate
+
+    assertSameBytesAsZipkinEncoding();
+  }
+
+  @Test public void matchesZipkinEncoding_rootSpan128BitTraceId() {
+    context = context.toBuilder().traceIdHigh(3L).build();
+    span = new MutableSpan(context, null);
+    span.kind(Kind.CLIENT);
+    span.startTimestamp(1472470996199000L);
+    span.finishTimestamp(1472470996199000L); // rounds up to 1 microsecond
+    span.annotate(1472470996238000L, "b");
+    span.annotate(1472470996238000L, "a");
+
+    assertSameBytesAsZipkinEncoding();
+  }
+
+  @Test public void matchesZipkinEncoding_ipv6() {
+    span.kind(Kind.SERVER);
+    span.localIp("2001:DB8:0:0:0:0:0:1");
+
+    assertSameBytesAsZipkinEncoding();
+  }
+
+  @Test public void matchesZipkinEncoding_error() {
+    span.name("");
+    span.error(new IllegalStateException("peanuts"));
+
+    assertSameBytesAsZipkinEncoding();
+    assertThat(span.tag("error")).isNull(); // didn't mutate the input
+  }
+
+  @Test public void matchesZipkinEncoding_errorTagWins() {
+    span.error(new IllegalStateException("peanuts"));
+    span.tag("error", "500");
+
+    assertSameBytesAsZipkinEncoding();
+  }
+
+  @Test public void sizeInBytes() {
+    span.name("get");
+    span.tag("http.method", "GET");
+
+    assertThat(encoder.sizeInBytes(span)).isEqualTo(encoder.encode(span).length);
+  }
+
+  void assertSameBytesAsZipkinEncoding() {
+    byte[] expected = StackdriverEncoder.V2.encode(convert(span));
+
+    assertThat(encoder.encode(span)).containsExactly(expected);
+  }
+
+  /** Uses the same conversion as Brave applications not using this encoder. */
+  Span convert(MutableSpan span) {
+    List<Span> spans = new ArrayList<>();
+    ZipkinSpanHandler.create(spans::add).end(context, new MutableSpan(span), Cause.FINISHED);
+    return spans.get(0);
+  }
+}
@@ -23,6 +23,7 @@ import io.grpc.testing.GrpcServerRule;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import org.junit.Before;
@@ -33,6 +34,7 @@ import org.mockito.stubbing.Answer;
 import zipkin2.Callback;
 
 import static io.grpc.CallOptions.DEFAULT;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.doAnswer;
@@ -52,6 +54,12 @@ public class UnaryClientCallTest {
       this.channel = channel;
     }
 
+    BatchWriteSpansCall(Channel channel, BatchWriteSpansRequest request, HedgingPolicy hedging) {
+      super(channel, TraceServiceGrpc.getBatchWriteSpansMethod(), DEFAULT, request,
+          DEFAULT_SERVER_TIMEOUT_MS, hedging);
+      this.channel = channel;
+    }
+
     @Override
     public BatchWriteSpansCall clone() {
       return new BatchWriteSpansCall(channel, request(), DEFAULT_SERVER_TIMEOUT_MS);
@@ -133,6 +141,104 @@ public class UnaryClientCallTest {
     call.execute();
   }
 
+  @Test
+  public void execute_hedgesSlowCall() throws Throwable {
+    HedgingPolicy hedging = new HedgingPolicy(server.getChannel(), 0.9, 0.5f);
+    recordLatencies(hedging, MILLISECONDS.toNanos(1));
+    call = new BatchWriteSpansCall(server.getChannel(), BatchWriteSpansRequest.getDefaultInstance(),
+        hedging);
+
+    AtomicInteger attempts = new AtomicInteger();
+    onClientCall(observer -> {
+      if (attempts.getAndIncrement() == 0) return; // the first attempt never completes
+      observer.onNext(Empty.getDefaultInstance());
+      observer.onCompleted();
+    });
+
+    call.execute();
+
+    assertThat(attempts).hasValue(2);
+  }
+
+  @Test
+  public void execute_primarySucceedsAfterHedgeFails() throws Throwable {
+    HedgingPolicy hedging = new HedgingPolicy(server.getChannel(), 0.9, 0.5f);
+    recordLatencies(hedging, MILLISECONDS.toNanos(1));
+    call = new BatchWriteSpansCall(server.getChannel(), BatchWriteSpansRequest.getDefaultInstance(),
+        hedging);
+
+    AtomicReference<StreamObserver<Empty>> primary = new AtomicReference<>();
+    onClientCall(observer -> {
+      if (primary.compareAndSet(null, observer)) return; // the primary waits for the hedge
+      observer.onError(new IllegalStateException()); // the hedge fails fast
+      primary.get().onNext(Empty.getDefaultInstance());
+      primary.get().onCompleted();
+    });
+
+    call.execute(); // doesn't throw the hedge's failure
+  }
+
+  @Test
+  public void execute_winningHedgesDontLowerHedgeDelay() throws Throwable {
+    HedgingPolicy hedging = new HedgingPolicy(server.getChannel(), 0.5, 1.0f);
+    long latency = MILLISECONDS.toNanos(20);
+    recordLatencies(hedging, latency);
+
+    AtomicInteger attempts = new AtomicInteger();
+    onClientCall(observer -> {
+      if (attempts.getAndIncrement() % 2 == 0) return; // each primary never completes
+      observer.onNext(Empty.getDefaultInstance());
+      observer.onCompleted();
+    });
+    for (int i = 0; i < HedgingPolicy.MIN_SAMPLES * 2; i++) {
+      new BatchWriteSpansCall(server.getChannel(), BatchWriteSpansRequest.getDefaultInstance(),
+          hedging).execute();
+    }
+
+    // each call took at least the hedge delay, so that is what was recorded
+    assertThat(attempts).hasValue(HedgingPolicy.MIN_SAMPLES * 4);
+    assertThat(hedging.hedgeDelayNanos()).isGreaterThanOrEqualTo(latency);
+  }
+
+  @Test
+  public void execute_doesntHedgeWithoutLatencySamples() throws Throwable {
+    HedgingPolicy hedging = new HedgingPolicy(server.getChannel(), 0.9, 0.5f);
+    call = new BatchWriteSpansCall(server.getChannel(), BatchWriteSpansRequest.getDefaultInstance(),
+        hedging);
+
+    AtomicInteger attempts = new AtomicInteger();
+    onClientCall(observer -> Executors.newSingleThreadExecutor().submit(() -> {
+      attempts.incrementAndGet();
+      Thread.sleep(50);
+      observer.onNext(Empty.getDefaultInstance());
+      observer.onCompleted();
+      return null;
+    }));
+
+    call.execute();
+
+    assertThat(attempts).hasValue(1);
+  }
+
+  @Test
+  public void hedgeRatioIsCapped() {
+    HedgingPolicy hedging = new HedgingPolicy(server.getChannel(), 0.9, 0.1f);
+    recordLatencies(hedging, MILLISECONDS.toNanos(1));
+
+    int hedges = 0;
+    for (int i = 0; i < 1000; i++) {
+      hedging.hedgeDelayNanos();
+      if (hedging.tryAcquireHedge()) hedges++;
+    }
+
+    // the initial bucket of tokens, plus 10% of calls
+    assertThat(hedges).isBetween(100, 100 + HedgingPolicy.MAX_TOKENS);
+  }
+
+  static void recordLatencies(HedgingPolicy hedging, long nanos) {
+    for (int i = 0; i < HedgingPolicy.MIN_SAMPLES; i++) hedging.recordLatency(nanos);
+  }
+
   static class TestTraceService extends TraceServiceGrpc.TraceServiceImplBase {}
 
   void awaitCallbackResult() throws Throwable {
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+/**
+ * Additive increase, multiplicative decrease of a concurrency limit, using observed round trip
+ * times (RTT).
+ *
+ * <p>A sample is a drop when the request was pushed back or timed out, or when its RTT exceeds
+ * {@link #RTT_TOLERANCE} times the baseline RTT, which means requests are queuing. Drops decrease
+ * the limit at most once per baseline RTT, like TCP does once per window. Otherwise, the limit grows
+ * by about one per window of requests, but only while it is in use.
+ */
+final class AimdLimit {
+  static final double BACKOFF_RATIO = 0.9, RTT_TOLERANCE = 2.0;
+  static final int INITIAL_LIMIT = 20;
+
+  final int maxLimit;
+  double limit; // guarded by this
+  long baselineRttNanos, lastBackoffNanos; // guarded by this
+  boolean backedOff; // guarded by this
+  volatile int currentLimit;
+
+  AimdLimit(int maxLimit) {
+    this.maxLimit = maxLimit;
+    this.limit = Math.min(INITIAL_LIMIT, maxLimit);
+    this.currentLimit = (int) limit;
+  }
+
+  int limit() {
+    return currentLimit;
+  }
+
+  synchronized void onSample(long nowNanos, long rttNanos, boolean dropped, int inFlight) {
+    if (baselineRttNanos == 0 || rttNanos < baselineRttNanos) {
+      baselineRttNanos = Math.max(1, rttNanos);
+    } else {
+      // Drift towards recent samples, so that a lasting change in latency becomes the baseline
+      baselineRttNanos += (rttNanos - baselineRttNanos) / 256;
+    }
+
+    if (dropped || rttNanos > RTT_TOLERANCE * baselineRttNanos) {
+      if (backedOff && nowNanos - lastBackoffNanos < baselineRttNanos) return;
+      backedOff = true;
+      lastBackoffNanos = nowNanos;
+      limit = Math.max(1, limit * BACKOFF_RATIO);
+    } else if (inFlight * 2 >= limit) {
+      limit = Math.min(maxLimit, limit + 1 / limit);
+    }
+    currentLimit = (int) limit;
+  }
+
+  @Override public String toString() {
+    return "AimdLimit{limit=" + currentLimit + ", maxLimit=" + maxLimit + "}";
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+import com.google.protobuf.CodedOutputStream;
+import com.linecorp.armeria.common.util.Exceptions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.Span;
+import zipkin2.storage.SpanConsumer;
+
+/**
+ * Merges spans from many {@link #accept} calls into fewer {@code BatchWriteSpans} requests.
+ *
+ * <p>Spans are queued when their call is executed, and sent when the queue reaches the maximum
+ * spans or bytes per request, or {@link #lingerNanos} after nothing else sent them. Each call
+ * completes when the request carrying its spans completes. Calls are only split across requests
+ * when larger than a request.
+ */
+final class CoalescingSpanConsumer implements SpanConsumer {
+  final StackdriverSpanConsumer delegate;
+  final int maxSpans, maxBytes;
+  final long lingerNanos;
+  final ScheduledExecutorService scheduler;
+
+  final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<>();
+  final AtomicInteger queuedSpans = new AtomicInteger(), queuedBytes = new AtomicInteger();
+  final AtomicBoolean flushScheduled = new AtomicBoolean();
+  final ReentrantLock drainLock = new ReentrantLock(); // held by the one thread draining
+
+  CoalescingSpanConsumer(StackdriverSpanConsumer delegate, long lingerNanos,
+      ScheduledExecutorService scheduler) {
+    this.delegate = delegate;
+    this.maxSpans = delegate.maxSpansPerRequest;
+    this.maxBytes = delegate.maxBytesPerRequest;
+    this.lingerNanos = lingerNanos;
+    this.scheduler = scheduler;
+  }
+
+  @Override public Call<Void> accept(List<Span> spans) {
+    if (spans.isEmpty()) return Call.create(null);
+    List<com.google.devtools.cloudtrace.v2.Span> stackdriverSpans = delegate.translate(spans);
+    int sizeInBytes = 0;
+    for (int i = 0, length = stackdriverSpans.size(); i < length; i++) {
+      sizeInBytes += CodedOutputStream.computeMessageSize(2, stackdriverSpans.get(i));
+    }
+    return new CoalescedCall(this, stackdriverSpans, sizeInBytes);
+  }
+
+  void offer(Pending pending) {
+    queue.offer(pending);
+    int spans = queuedSpans.addAndGet(pending.spans.size());
+    int bytes = queuedBytes.addAndGet(pending.sizeInBytes);
+    if (spans >= maxSpans || bytes >= maxBytes) {
+      flush();
+    } else {
+      scheduleFlush();
+    }
+  }
+
+  void scheduleFlush() {
+    if (!flushScheduled.compareAndSet(false, true)) return;
+    try {
+      scheduler.schedule(() -> {
+        flushScheduled.set(false);
+        flush();
+      }, lingerNanos, TimeUnit.NANOSECONDS);
+    } catch (RejectedExecutionException e) { // the storage is closing
+      flushScheduled.set(false);
+      flushAll();
+    }
+  }
+
+  /** Sends what's queued now. Only one thread drains at a time, others leave it to the timer. */
+  void flush() {
+    if (!drainLock.tryLock()) {
+      scheduleFlush();
+      return;
+    }
+    try {
+      // Bounded so that a caller doesn't drain forever while others keep adding spans
+      int budget = queuedSpans.get();
+      while (budget > 0 && !queue.isEmpty()) budget -= sendBatch();
+    } finally {
+      drainLock.unlock();
+    }
+    if (!queue.isEmpty()) scheduleFlush();
+  }
+
+  /** Sends the next request from the head of the queue, returning the count of spans polled. */
+  int sendBatch() {
+    List<com.google.devtools.cloudtrace.v2.Span> batch = new ArrayList<>();
+    List<Pending> callers = new ArrayList<>();
+    int polled = 0, bytes = delegate.projectNameField.length;
+    for (Pending pending; (pending = queue.peek()) != null; ) {
+      int spanCount = pending.spans.size();
+      if (!callers.isEmpty()
+          && (batch.size() + spanCount > maxSpans || bytes + pending.sizeInBytes > maxBytes)) {
+        break;
+      }
+      queue.poll(); // same as pending, as only one thread drains
+      queuedSpans.addAndGet(-spanCount);
+      queuedBytes.addAndGet(-pending.sizeInBytes);
+      polled += spanCount;
+      if (pending.cancelled) continue;
+      callers.add(pending);
+      batch.addAll(pending.spans);
+      bytes += pending.sizeInBytes;
+    }
+    if (callers.isEmpty()) return polled;
+
+    try {
+      delegate.newCall(batch).enqueue(new Callback<Void>() {
+        @Override public void onSuccess(Void value) {
+          for (Pending caller : callers) caller.result.complete(null);
+        }
+
+        @Override public void onError(Throwable t) {
+          Throwable error = Exceptions.peel(t);
+          for (Pending caller : callers) caller.result.completeExceptionally(error);
+        }
+      });
+    } catch (RuntimeException | Error e) {
+      Call.propagateIfFatal(e);
+      for (Pending caller : callers) caller.result.completeExceptionally(e);
+    }
+    return polled;
+  }
+
+  /** Sends anything queued, for example on close, waiting for any thread already draining. */
+  void flushAll() {
+    drainLock.lock();
+    try {
+      while (!queue.isEmpty()) sendBatch();
+    } finally {
+      drainLock.unlock();
+    }
+  }
+
+  @Override public String toString() {
+    return "CoalescingSpanConsumer{" + delegate.projectId + "}";
+  }
+
+  static final class Pending {
+    final List<com.google.devtools.cloudtrace.v2.Span> spans;
+    final int sizeInBytes;
+    final CompletableFuture<Void> result = new CompletableFuture<>();
+    volatile boolean cancelled;
+
+    Pending(List<com.google.devtools.cloudtrace.v2.Span> spans, int sizeInBytes) {
+      this.spans = spans;
+      this.sizeInBytes = sizeInBytes;
+    }
+  }
+
+  static final class CoalescedCall extends Call.Base<Void> {
+    final CoalescingSpanConsumer consumer;
+    final List<com.google.devtools.cloudtrace.v2.Span> spans;
+    final int sizeInBytes;
+    volatile Pending pending;
+
+    CoalescedCall(CoalescingSpanConsumer consumer,
+        List<com.google.devtools.cloudtrace.v2.Span> spans, int sizeInBytes) {
+      this.consumer = consumer;
+      this.spans = spans;
+      this.sizeInBytes = sizeInBytes;
+    }
+
+    @Override protected Void doExecute() {
+      try {
+        send().join();
+        return null;
+      } catch (CompletionException e) {
+        propagateIfFatal(e);
+        Exceptions.throwUnsafely(e.getCause());
+        return null;  // Unreachable
+      }
+    }
+
+    @Override protected void doEnqueue(Callback<Void> callback) {
+      send().handle((unused, t) -> {
+        if (t != null) {
+          callback.onError(Exceptions.peel(t));
+        } else {
+          callback.onSuccess(null);
+        }
+        return null;
+      });
+    }
+
+    /** Spans already sent can't be recalled, but those still queued are skipped. */
+    @Override protected void doCancel() {
+      Pending pending = this.pending;
+      if (pending != null) {
+        pending.cancelled = true;
+        pending.result.cancel(false);
+      }
+    }
+
+    CompletableFuture<Void> send() {
+      Pending pending = new Pending(spans, sizeInBytes);
+      this.pending = pending;
+      consumer.offer(pending);
+      return pending.result;
+    }
+
+    @Override public CoalescedCall clone() {
+      return new CoalescedCall(consumer, spans, sizeInBytes);
+    }
+
+    @Override public String toString() {
+      return "CoalescedCall{spans=" + spans + "}";
+    }
+  }
+}
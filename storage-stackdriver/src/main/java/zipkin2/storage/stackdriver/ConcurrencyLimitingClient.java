@@ -0,0 +1,83 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+import com.linecorp.armeria.client.ClientRequestContext;
+import com.linecorp.armeria.client.HttpClient;
+import com.linecorp.armeria.client.SimpleDecoratingHttpClient;
+import com.linecorp.armeria.client.UnprocessedRequestException;
+import com.linecorp.armeria.common.HttpHeaders;
+import com.linecorp.armeria.common.HttpRequest;
+import com.linecorp.armeria.common.HttpResponse;
+import com.linecorp.armeria.common.TimeoutException;
+import com.linecorp.armeria.common.grpc.protocol.GrpcHeaderNames;
+import com.linecorp.armeria.common.logging.RequestLog;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Rejects requests over an {@link AimdLimit adaptive limit} of concurrent requests, instead of
+ * opening more streams when Stackdriver Trace is already slow. Rejections fail with {@link
+ * ConcurrencyLimitExceededException}, which collectors see as over capacity.
+ */
+final class ConcurrencyLimitingClient extends SimpleDecoratingHttpClient {
+  final AimdLimit limit;
+  final AtomicInteger inFlight = new AtomicInteger();
+
+  ConcurrencyLimitingClient(HttpClient delegate, AimdLimit limit) {
+    super(delegate);
+    this.limit = limit;
+  }
+
+  @Override public HttpResponse execute(ClientRequestContext ctx, HttpRequest req)
+      throws Exception {
+    int currentLimit = limit.limit();
+    int current = inFlight.incrementAndGet();
+    if (current > currentLimit) {
+      inFlight.decrementAndGet();
+      req.abort(); // releases any pooled content
+      return HttpResponse.ofFailure(new ConcurrencyLimitExceededException(currentLimit));
+    }
+
+    long startNanos = System.nanoTime();
+    ctx.log().whenComplete().thenAccept(log -> {
+      long nowNanos = System.nanoTime();
+      limit.onSample(nowNanos, nowNanos - startNanos, isDropped(log), current);
+      inFlight.decrementAndGet();
+    });
+    return unwrap().execute(ctx, req);
+  }
+
+  /** Returns true when the server pushed back, or the request timed out. */
+  static boolean isDropped(RequestLog log) {
+    Throwable cause = log.responseCause();
+    if (cause instanceof UnprocessedRequestException) cause = cause.getCause();
+    if (cause instanceof TimeoutException) return true;
+    if (cause != null) return false;
+
+    HttpHeaders trailers = log.responseTrailers();
+    String status = trailers.get(GrpcHeaderNames.GRPC_STATUS);
+    if (status == null) status = log.responseHeaders().get(GrpcHeaderNames.GRPC_STATUS);
+    // DEADLINE_EXCEEDED, RESOURCE_EXHAUSTED or UNAVAILABLE
+    return "4".equals(status) || "8".equals(status) || "14".equals(status);
+  }
+
+  /** Thrown without a stack trace, as it is thrown often, and only when requests are rejected. */
+  static final class ConcurrencyLimitExceededException extends RuntimeException {
+    static final long serialVersionUID = 0L;
+
+    ConcurrencyLimitExceededException(int limit) {
+      super("Over the limit of " + limit + " concurrent requests", null, false, false);
+    }
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+import io.micrometer.core.instrument.Counter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import zipkin2.Annotation;
+import zipkin2.Call;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.storage.SpanConsumer;
+
+/**
+ * Drops spans already written within a time window, such as those redelivered by Kafka or sent
+ * again by a client retry. Only identical spans are repeats: a later fragment of the same span,
+ * such as one adding annotations or a duration, is still written.
+ *
+ * <p>Written spans are remembered in two Bloom filters, each covering half the window: a span is
+ * a repeat if in either, and the older filter is replaced when the newer one is half a window old.
+ * So, repeats are dropped for between half and the whole window. Memory is fixed by the expected
+ * spans per window. False positives drop about 0.1% of unique spans once that many are written.
+ *
+ * <p>Spans are only remembered once their call succeeds, so that retries of failed writes aren't
+ * dropped.
+ */
+final class DedupingSpanConsumer implements SpanConsumer {
+  static final double FALSE_POSITIVE_PROBABILITY = 0.001;
+
+  final SpanConsumer delegate;
+  final long bucketNanos;
+  final int bits, hashes;
+  final Counter suppressed;
+  volatile Generation generation;
+
+  DedupingSpanConsumer(SpanConsumer delegate, long windowNanos, int maxSpans,
+      StorageMetrics metrics) {
+    this.delegate = delegate;
+    this.bucketNanos = Math.max(1, windowNanos / 2);
+    // Optimal Bloom filter size and hash count for the false positive probability
+    double bitsPerSpan = -Math.log(FALSE_POSITIVE_PROBABILITY) / (Math.log(2) * Math.log(2));
+    this.bits = (int) Math.min(Integer.MAX_VALUE - 63, Math.ceil(maxSpans * bitsPerSpan));
+    this.hashes = Math.max(1, (int) Math.round(bitsPerSpan * Math.log(2)));
+    this.suppressed = Counter.builder(StorageMetrics.PREFIX + "dedup.suppressed")
+        .description("Spans dropped as already written within the dedup window")
+        .register(metrics.registry);
+    this.generation = new Generation(new BloomFilter(bits), new BloomFilter(bits),
+        System.nanoTime());
+  }
+
+  @Override public Call<Void> accept(List<Span> spans) {
+    Generation generation = currentGeneration();
+    List<Span> unique = new ArrayList<>(spans.size());
+    long[] keys = new long[spans.size()];
+    for (int i = 0, length = spans.size(); i < length; i++) {
+      Span span = spans.get(i);
+      long key = key(span);
+      if (generation.mightContain(key, hashes)) continue;
+      keys[unique.size()] = key;
+      unique.add(span);
+    }
+    int dropped = spans.size() - unique.size();
+    if (dropped > 0) suppressed.increment(dropped);
+    if (unique.isEmpty()) return Call.create(null);
+
+    int count = unique.size();
+    return delegate.accept(unique).map(v -> {
+      BloomFilter current = currentGeneration().current;
+      for (int i = 0; i < count; i++) current.put(keys[i], hashes);
+      return v;
+    });
+  }
+
+  /** Replaces the older filter once the newer is half a window old. */
+  Generation currentGeneration() {
+    Generation generation = this.generation;
+    long elapsed = System.nanoTime() - generation.startNanos;
+    if (elapsed < bucketNanos) return generation;
+    synchronized (this) {
+      generation = this.generation;
+      elapsed = System.nanoTime() - generation.startNanos;
+      if (elapsed < bucketNanos) return generation;
+      // After a whole window without rotation, both filters are out of date.
+      BloomFilter previous = elapsed < 2 * bucketNanos ? generation.current : new BloomFilter(bits);
+      return this.generation = new Generation(new BloomFilter(bits), previous, System.nanoTime());
+    }
+  }
+
+  /** Returns a 64-bit hash of all fields of the span, so that only identical spans collide. */
+  static long key(Span span) {
+    long h = 0xcbf29ce484222325L; // FNV-1a
+    h = hash(h, span.traceId());
+    h = hash(h, span.parentId());
+    h = hash(h, span.id());
+    h = hash(h, span.kind() != null ? span.kind().ordinal() + 1 : 0);
+    h = hash(h, span.name());
+    h = hash(h, span.timestampAsLong());
+    h = hash(h, span.durationAsLong());
+    h = hash(h, span.localEndpoint());
+    h = hash(h, span.remoteEndpoint());
+    h = hash(h, span.annotations().size());
+    for (Annotation annotation : span.annotations()) {
+      h = hash(h, annotation.timestamp());
+      h = hash(h, annotation.value());
+    }
+    h = hash(h, span.tags().size());
+    for (Map.Entry<String, String> tag : span.tags().entrySet()) {
+      h = hash(h, tag.getKey());
+      h = hash(h, tag.getValue());
+    }
+    h = hash(h, (Boolean.TRUE.equals(span.debug()) ? 1 : 0)
+        | (Boolean.TRUE.equals(span.shared()) ? 2 : 0));
+    // Murmur3's finalizer, as FNV mixes the high bits poorly
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /** Hashes the length first, so that adjacent strings can't be confused. -1 means null. */
+  static long hash(long h, String s) {
+    if (s == null) return hash(h, -1L);
+    h = hash(h, s.length());
+    for (int i = 0, length = s.length(); i < length; i++) {
+      h = (h ^ s.charAt(i)) * 0x100000001b3L;
+    }
+    return h;
+  }
+
+  static long hash(long h, long v) {
+    for (int i = 0; i < 8; i++, v >>>= 8) h = (h ^ (v & 0xff)) * 0x100000001b3L;
+    return h;
+  }
+
+  static long hash(long h, Endpoint endpoint) {
+    if (endpoint == null) return hash(h, -1L);
+    h = hash(h, endpoint.serviceName());
+    h = hash(h, endpoint.ipv4());
+    h = hash(h, endpoint.ipv6());
+    return hash(h, endpoint.portAsInt());
+  }
+
+  @Override public String toString() {
+    return "DedupingSpanConsumer{" + delegate + "}";
+  }
+
+  static final class Generation {
+    final BloomFilter current, previous;
+    final long startNanos;
+
+    Generation(BloomFilter current, BloomFilter previous, long startNanos) {
+      this.current = current;
+      this.previous = previous;
+      this.startNanos = startNanos;
+    }
+
+    boolean mightContain(long key, int hashes) {
+      return current.mightContain(key, hashes) || previous.mightContain(key, hashes);
+    }
+  }
+
+  /** A Bloom filter using double hashing of a 64-bit key, safe for concurrent use. */
+  static final class BloomFilter {
+    final AtomicLongArray words;
+    final long bits;
+
+    BloomFilter(int bits) {
+      this.words = new AtomicLongArray((bits + 63) / 64);
+      this.bits = words.length() * 64L;
+    }
+
+    boolean mightContain(long key, int hashes) {
+      int h1 = (int) key, h2 = (int) (key >>> 32);
+      for (int i = 1; i <= hashes; i++) {
+        long bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+        if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) return false;
+      }
+      return true;
+    }
+
+    void put(long key, int hashes) {
+      int h1 = (int) key, h2 = (int) (key >>> 32);
+      for (int i = 1; i <= hashes; i++) {
+        long bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+        int index = (int) (bit >>> 6);
+        long mask = 1L << bit;
+        for (long word; ((word = words.get(index)) & mask) == 0; ) {
+          if (words.compareAndSet(index, word, word | mask)) break;
+        }
+      }
+    }
+  }
+}
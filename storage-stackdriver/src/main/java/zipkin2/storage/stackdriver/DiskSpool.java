@@ -0,0 +1,232 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A log of requests on disk, split into segment files so that replayed requests can be deleted.
+ * Each record is its length, the time it was appended and its bytes. When full, appends fail.
+ *
+ * <p>Records are read oldest first, and removed once replayed. The read position isn't persisted,
+ * so after a restart the oldest segment is replayed from its start.
+ *
+ * <p>This is not thread-safe: only use it from one thread.
+ */
+final class DiskSpool implements Closeable {
+  static final Logger LOG = Logger.getLogger(DiskSpool.class.getName());
+  static final String SUFFIX = ".spool";
+  static final int RECORD_HEADER_LENGTH = 12; // length and timestamp
+
+  final Path directory;
+  final long maxBytes;
+  final int segmentBytes;
+  final ArrayDeque<Segment> segments = new ArrayDeque<>();
+  final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+  long sizeInBytes, nextSequence;
+  long evicted; // count of requests dropped as a previous process spooled more than the budget
+  int records;
+
+  DiskSpool(Path directory, long maxBytes, int segmentBytes) throws IOException {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    this.segmentBytes = segmentBytes;
+    Files.createDirectories(directory);
+    recover();
+  }
+
+  /** Returns false if the request doesn't fit in the remaining budget. */
+  boolean append(byte[] request, long timestampMillis) throws IOException {
+    long recordSize = RECORD_HEADER_LENGTH + request.length;
+    if (sizeInBytes + recordSize > maxBytes) return false; // full
+
+    Segment tail = segments.peekLast();
+    if (tail == null || (tail.size > 0 && tail.size + recordSize > segmentBytes)) {
+      tail = new Segment(directory.resolve(String.format("%020d%s", nextSequence++, SUFFIX)));
+      segments.add(tail);
+    }
+    header.clear();
+    header.putInt(request.length).putLong(timestampMillis).flip();
+    ByteBuffer[] record = {header, ByteBuffer.wrap(request)};
+    tail.channel.position(tail.size);
+    while (record[1].hasRemaining()) tail.channel.write(record);
+    tail.size += recordSize;
+    tail.records++;
+    if (tail.records == 1) tail.oldestTimestampMillis = timestampMillis;
+    sizeInBytes += recordSize;
+    records++;
+    return true;
+  }
+
+  /** Returns the oldest request, or null if there are none. */
+  Record peek() throws IOException {
+    Segment head = head();
+    if (head == null) return null;
+    ByteBuffer request = ByteBuffer.allocate(head.nextLength);
+    readFully(head, request, head.readPosition + RECORD_HEADER_LENGTH);
+    return new Record(head, head.readPosition, request.array());
+  }
+
+  /** Removes the record unless it was already evicted. */
+  void remove(Record record) throws IOException {
+    Segment head = head();
+    if (head != record.segment || head.readPosition != record.position) return;
+    long recordSize = RECORD_HEADER_LENGTH + head.nextLength;
+    head.readPosition += recordSize;
+    head.records--;
+    records--;
+    head.nextLength = -1;
+    if (head.records == 0) {
+      deleteHead();
+    } else {
+      readHeader(head);
+    }
+  }
+
+  /** Returns when the oldest request was appended, or zero if there are none. */
+  long oldestTimestampMillis() throws IOException {
+    Segment head = head();
+    return head != null ? head.oldestTimestampMillis : 0L;
+  }
+
+  Segment head() throws IOException {
+    Segment head = segments.peekFirst();
+    if (head == null || head.records == 0) return null;
+    if (head.nextLength == -1) readHeader(head);
+    return head;
+  }
+
+  void readHeader(Segment segment) throws IOException {
+    header.clear();
+    readFully(segment, header, segment.readPosition);
+    header.flip();
+    segment.nextLength = header.getInt();
+    segment.oldestTimestampMillis = header.getLong();
+  }
+
+  static void readFully(Segment segment, ByteBuffer buffer, long position) throws IOException {
+    long start = position - buffer.position();
+    while (buffer.hasRemaining()) {
+      if (segment.channel.read(buffer, start + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of " + segment.path);
+      }
+    }
+  }
+
+  void evictOldest() throws IOException {
+    Segment head = segments.peekFirst();
+    if (head == null) return;
+    LOG.log(Level.WARNING, "Spool is full: dropping {0} requests in {1}",
+        new Object[] {head.records, head.path});
+    records -= head.records;
+    evicted += head.records;
+    deleteHead();
+  }
+
+  void deleteHead() throws IOException {
+    Segment head = segments.removeFirst();
+    sizeInBytes -= head.size;
+    head.channel.close();
+    Files.deleteIfExists(head.path);
+  }
+
+  /** Loads segments left by a previous process, discarding any partially written record. */
+  void recover() throws IOException {
+    List<Path> paths = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+      for (Path path : stream) paths.add(path);
+    }
+    Collections.sort(paths); // names are zero-padded sequence numbers
+    for (Path path : paths) {
+      String name = path.getFileName().toString();
+      try {
+        long sequence = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        nextSequence = Math.max(nextSequence, sequence + 1);
+      } catch (NumberFormatException e) {
+        continue; // not ours
+      }
+      Segment segment = new Segment(path);
+      long fileSize = segment.channel.size();
+      while (segment.size + RECORD_HEADER_LENGTH <= fileSize) {
+        header.clear();
+        readFully(segment, header, segment.size);
+        header.flip();
+        int length = header.getInt();
+        long timestamp = header.getLong();
+        if (length < 0 || segment.size + RECORD_HEADER_LENGTH + length > fileSize) break;
+        if (segment.records++ == 0) segment.oldestTimestampMillis = timestamp;
+        segment.size += RECORD_HEADER_LENGTH + length;
+      }
+      if (segment.size < fileSize) segment.channel.truncate(segment.size);
+      if (segment.records == 0) {
+        segment.channel.close();
+        Files.deleteIfExists(path);
+        continue;
+      }
+      segments.add(segment);
+      sizeInBytes += segment.size;
+      records += segment.records;
+    }
+    while (sizeInBytes > maxBytes) evictOldest();
+  }
+
+  @Override public void close() throws IOException {
+    for (Segment segment : segments) segment.channel.close();
+    segments.clear();
+  }
+
+  @Override public String toString() {
+    return "DiskSpool{" + directory + "}";
+  }
+
+  static final class Record {
+    final Segment segment;
+    final long position;
+    final byte[] request;
+
+    Record(Segment segment, long position, byte[] request) {
+      this.segment = segment;
+      this.position = position;
+      this.request = request;
+    }
+  }
+
+  static final class Segment {
+    final Path path;
+    final FileChannel channel;
+    long size, readPosition, oldestTimestampMillis;
+    int records, nextLength = -1;
+
+    Segment(Path path) throws IOException {
+      this.path = path;
+      this.channel = FileChannel.open(path, CREATE, READ, WRITE);
+    }
+  }
+}
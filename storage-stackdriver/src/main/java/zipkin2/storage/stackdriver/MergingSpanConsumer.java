@@ -0,0 +1,213 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+import com.linecorp.armeria.common.util.Exceptions;
+import io.micrometer.core.instrument.Counter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.Span;
+import zipkin2.storage.SpanConsumer;
+
+/**
+ * Buffers spans for {@link #lingerNanos}, then merges fragments reported with the same trace ID,
+ * span ID and shared flag, such as a start and a finish. So, each span is translated and written
+ * once, complete. Spans are otherwise sent in the order received.
+ *
+ * <p>At most {@link #maxSpans} are buffered: reaching that sends the buffer early. Each call
+ * completes when the request carrying its buffer completes. Cancelling a call doesn't recall its
+ * spans, as they may already be merged with others.
+ */
+final class MergingSpanConsumer implements SpanConsumer {
+  final SpanConsumer delegate;
+  final long lingerNanos;
+  final int maxSpans;
+  final ScheduledExecutorService scheduler;
+  final Counter merged;
+  Buffer buffer; // guarded by this
+
+  MergingSpanConsumer(SpanConsumer delegate, long lingerNanos, int maxSpans,
+      ScheduledExecutorService scheduler, StorageMetrics metrics) {
+    this.delegate = delegate;
+    this.lingerNanos = lingerNanos;
+    this.maxSpans = maxSpans;
+    this.scheduler = scheduler;
+    this.merged = Counter.builder(StorageMetrics.PREFIX + "merge.fragments")
+        .description("Span fragments merged into another with the same ID before writing")
+        .register(metrics.registry);
+  }
+
+  @Override public Call<Void> accept(List<Span> spans) {
+    if (spans.isEmpty()) return Call.create(null);
+    return new MergingCall(this, spans);
+  }
+
+  CompletableFuture<Void> offer(List<Span> spans) {
+    Buffer buffer, full = null;
+    boolean created = false;
+    synchronized (this) {
+      buffer = this.buffer;
+      if (buffer == null) {
+        buffer = this.buffer = new Buffer();
+        created = true;
+      }
+      buffer.spans.addAll(spans);
+      if (buffer.spans.size() >= maxSpans) {
+        this.buffer = null;
+        full = buffer;
+      }
+    }
+    if (full != null) {
+      send(full);
+    } else if (created) {
+      Buffer scheduled = buffer;
+      try {
+        scheduler.schedule(() -> flush(scheduled), lingerNanos, TimeUnit.NANOSECONDS);
+      } catch (RejectedExecutionException e) { // the storage is closing
+        flush(scheduled);
+      }
+    }
+    return buffer.result;
+  }
+
+  /** Sends the buffer, unless it was already sent for being full. */
+  void flush(Buffer buffer) {
+    synchronized (this) {
+      if (this.buffer != buffer) return;
+      this.buffer = null;
+    }
+    send(buffer);
+  }
+
+  /** Sends anything buffered, for example on close. */
+  void flushAll() {
+    Buffer buffer;
+    synchronized (this) {
+      buffer = this.buffer;
+    }
+    if (buffer != null) flush(buffer);
+  }
+
+  void send(Buffer buffer) {
+    CompletableFuture<Void> result = buffer.result;
+    try {
+      List<Span> spans = merge(buffer.spans);
+      int fragments = buffer.spans.size() - spans.size();
+      if (fragments > 0) merged.increment(fragments);
+      delegate.accept(spans).enqueue(new Callback<Void>() {
+        @Override public void onSuccess(Void value) {
+          result.complete(null);
+        }
+
+        @Override public void onError(Throwable t) {
+          result.completeExceptionally(Exceptions.peel(t));
+        }
+      });
+    } catch (RuntimeException | Error e) {
+      Call.propagateIfFatal(e);
+      result.completeExceptionally(e); // no-op if already passed to the callback
+    }
+  }
+
+  /**
+   * Merges fragments into the position of the first, leaving other spans as received. Unlike
+   * {@code Trace.merge}, this doesn't sort spans or change their shared flag, as clients on either
+   * side of a shared span report it with the same ID.
+   */
+  static List<Span> merge(List<Span> spans) {
+    Map<String, Integer> positions = new HashMap<>();
+    List<Span> result = new ArrayList<>(spans.size());
+    for (Span span : spans) {
+      Integer position = positions.putIfAbsent(key(span), result.size());
+      if (position == null) {
+        result.add(span);
+      } else {
+        result.set(position, merge(result.get(position), span));
+      }
+    }
+    return result.size() == spans.size() ? spans : result;
+  }
+
+  static String key(Span span) {
+    String traceId = span.traceId();
+    // Key on the lower 64 bits, so that fragments with 64 and 128-bit trace IDs are merged
+    if (traceId.length() == 32) traceId = traceId.substring(16);
+    return traceId + '/' + span.id() + (Boolean.TRUE.equals(span.shared()) ? "/shared" : "");
+  }
+
+  /** Adds the fields of the later fragment the earlier lacks, preferring a 128-bit trace ID. */
+  static Span merge(Span earlier, Span later) {
+    Span.Builder result = earlier.toBuilder().merge(later);
+    if (later.traceId().length() > earlier.traceId().length()) result.traceId(later.traceId());
+    return result.build();
+  }
+
+  @Override public String toString() {
+    return "MergingSpanConsumer{" + delegate + "}";
+  }
+
+  static final class Buffer {
+    final List<Span> spans = new ArrayList<>();
+    final CompletableFuture<Void> result = new CompletableFuture<>();
+  }
+
+  static final class MergingCall extends Call.Base<Void> {
+    final MergingSpanConsumer consumer;
+    final List<Span> spans;
+
+    MergingCall(MergingSpanConsumer consumer, List<Span> spans) {
+      this.consumer = consumer;
+      this.spans = spans;
+    }
+
+    @Override protected Void doExecute() {
+      try {
+        consumer.offer(spans).join();
+        return null;
+      } catch (CompletionException e) {
+        propagateIfFatal(e);
+        Exceptions.throwUnsafely(e.getCause());
+        return null;  // Unreachable
+      }
+    }
+
+    @Override protected void doEnqueue(Callback<Void> callback) {
+      consumer.offer(spans).handle((unused, t) -> {
+        if (t != null) {
+          callback.onError(Exceptions.peel(t));
+        } else {
+          callback.onSuccess(null);
+        }
+        return null;
+      });
+    }
+
+    @Override public MergingCall clone() {
+      return new MergingCall(consumer, spans);
+    }
+
+    @Override public String toString() {
+      return "MergingCall{spans=" + spans + "}";
+    }
+  }
+}
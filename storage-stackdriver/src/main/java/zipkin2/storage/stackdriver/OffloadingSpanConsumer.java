@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+import com.linecorp.armeria.common.util.Exceptions;
+import com.linecorp.armeria.common.util.ThreadFactories;
+import io.micrometer.core.instrument.Timer;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.Span;
+import zipkin2.storage.SpanConsumer;
+
+/**
+ * Runs the delegate's {@link #accept} and the resulting request on a bounded worker pool, so that
+ * translation and serialization don't block the collector's thread, often an event loop.
+ *
+ * <p>When the queue is full, calls fail with a {@link RejectedExecutionException}, which is {@link
+ * StackdriverStorage#isOverCapacity(Throwable) over capacity}.
+ */
+final class OffloadingSpanConsumer implements SpanConsumer {
+  final SpanConsumer delegate;
+  final ThreadPoolExecutor worker;
+  final Timer waitTimer, executionTimer;
+  final AtomicLong queuedSpans = new AtomicLong(); // not yet passed to the delegate
+
+  OffloadingSpanConsumer(SpanConsumer delegate, int threads, int queueSize,
+      StorageMetrics metrics) {
+    this.delegate = delegate;
+    this.worker = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queueSize),
+        ThreadFactories.newThreadFactory("zipkin-stackdriver-worker", true));
+    waitTimer = Timer.builder(StorageMetrics.PREFIX + "worker.wait")
+        .description("Time calls wait in the worker queue")
+        .register(metrics.registry);
+    executionTimer = Timer.builder(StorageMetrics.PREFIX + "worker.execution")
+        .description("Time to translate, serialize and send a call on the worker")
+        .register(metrics.registry);
+    metrics.gauge(StorageMetrics.PREFIX + "worker.queue", "Calls waiting for a worker thread",
+        worker.getQueue(), BlockingQueue::size);
+  }
+
+  @Override public Call<Void> accept(List<Span> spans) {
+    if (spans.isEmpty()) return Call.create(null);
+    return new OffloadedCall(this, spans);
+  }
+
+  void close() {
+    worker.shutdown();
+  }
+
+  /** Returns false if calls were still queued or running after the timeout. */
+  boolean awaitTermination(long timeoutNanos) throws InterruptedException {
+    return worker.awaitTermination(timeoutNanos, TimeUnit.NANOSECONDS);
+  }
+
+  @Override public String toString() {
+    return "OffloadingSpanConsumer{" + delegate + "}";
+  }
+
+  static final class OffloadedCall extends Call.Base<Void> {
+    final OffloadingSpanConsumer consumer;
+    final List<Span> spans;
+    volatile Call<Void> delegate;
+
+    OffloadedCall(OffloadingSpanConsumer consumer, List<Span> spans) {
+      this.consumer = consumer;
+      this.spans = spans;
+    }
+
+    @Override protected Void doExecute() {
+      CompletableFuture<Void> result = new CompletableFuture<>();
+      doEnqueue(new Callback<Void>() {
+        @Override public void onSuccess(Void value) {
+          result.complete(null);
+        }
+
+        @Override public void onError(Throwable t) {
+          result.completeExceptionally(t);
+        }
+      });
+      try {
+        return result.join();
+      } catch (CompletionException e) {
+        propagateIfFatal(e);
+        Exceptions.throwUnsafely(e.getCause());
+        return null;  // Unreachable
+      }
+    }
+
+    @Override protected void doEnqueue(Callback<Void> callback) {
+      long queuedNanos = System.nanoTime();
+      consumer.queuedSpans.addAndGet(spans.size());
+      try {
+        consumer.worker.execute(() -> {
+          consumer.queuedSpans.addAndGet(-spans.size());
+          long startNanos = System.nanoTime();
+          consumer.waitTimer.record(startNanos - queuedNanos, TimeUnit.NANOSECONDS);
+          try {
+            send(callback);
+          } finally {
+            consumer.executionTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+          }
+        });
+      } catch (RejectedExecutionException e) { // the queue is full or we are closed
+        consumer.queuedSpans.addAndGet(-spans.size());
+        callback.onError(e);
+      }
+    }
+
+    void send(Callback<Void> callback) {
+      if (isCanceled()) {
+        callback.onError(new CancellationException());
+        return;
+      }
+      Call<Void> call;
+      try {
+        call = consumer.delegate.accept(spans);
+      } catch (RuntimeException | Error e) {
+        propagateIfFatal(e);
+        callback.onError(e);
+        return;
+      }
+      delegate = call;
+      // doCancel reads delegate after setting canceled, so one of us sees the other's write
+      if (isCanceled()) {
+        call.cancel();
+        callback.onError(new CancellationException());
+        return;
+      }
+      try {
+        call.enqueue(callback);
+      } catch (RuntimeException | Error e) {
+        propagateIfFatal(e); // otherwise, already passed to the callback
+      }
+    }
+
+    @Override protected void doCancel() {
+      Call<Void> delegate = this.delegate;
+      if (delegate != null) delegate.cancel();
+    }
+
+    @Override public OffloadedCall clone() {
+      return new OffloadedCall(consumer, spans);
+    }
+
+    @Override public String toString() {
+      return "OffloadedCall{spans=" + spans + "}";
+    }
+  }
+}
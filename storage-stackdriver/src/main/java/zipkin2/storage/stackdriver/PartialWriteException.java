@@ -0,0 +1,43 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+/**
+ * Thrown when some, but not all, requests of a {@link zipkin2.storage.SpanConsumer#accept} call
+ * failed, as it was split into several requests. The cause is the first failure, and any other
+ * failures are suppressed by it.
+ */
+public final class PartialWriteException extends RuntimeException {
+  static final long serialVersionUID = 0L;
+
+  final int failedSpans, totalSpans;
+
+  PartialWriteException(int failedSpans, int totalSpans, int failedRequests, int totalRequests,
+      Throwable cause) {
+    super("Failed to write " + failedSpans + " of " + totalSpans + " spans: " + failedRequests
+        + " of " + totalRequests + " requests failed", cause);
+    this.failedSpans = failedSpans;
+    this.totalSpans = totalSpans;
+  }
+
+  /** Count of spans in requests that failed. */
+  public int failedSpans() {
+    return failedSpans;
+  }
+
+  /** Count of spans in the call. */
+  public int totalSpans() {
+    return totalSpans;
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+import com.linecorp.armeria.client.ClientRequestContext;
+import com.linecorp.armeria.client.HttpClient;
+import com.linecorp.armeria.client.SimpleDecoratingHttpClient;
+import com.linecorp.armeria.common.HttpHeaders;
+import com.linecorp.armeria.common.HttpRequest;
+import com.linecorp.armeria.common.HttpResponse;
+import com.linecorp.armeria.common.grpc.protocol.ArmeriaStatusException;
+import com.linecorp.armeria.common.grpc.protocol.GrpcHeaderNames;
+import com.linecorp.armeria.common.grpc.protocol.StatusMessageEscaper;
+import com.linecorp.armeria.common.logging.RequestLog;
+import com.linecorp.armeria.common.stream.AbortedStreamException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.CheckResult;
+
+/**
+ * Caches the health of Stackdriver Trace, updated from the outcome of every request. When no
+ * request completed within {@link #ttlNanos}, {@link #check(Call)} sends a probe in the background.
+ * So, {@link #check(Call)} never blocks, and busy servers don't send probes at all.
+ */
+final class PassiveHealthCheck {
+  final long ttlNanos;
+  final AtomicBoolean probing = new AtomicBoolean();
+  volatile CheckResult result; // null until the first request completes
+  volatile long updatedNanos;
+
+  PassiveHealthCheck(long ttlNanos) {
+    this.ttlNanos = ttlNanos;
+  }
+
+  /**
+   * Returns the last result, sending the probe in the background if it is older than the TTL. This
+   * returns OK until a request completes, so that a server isn't reported down while starting.
+   */
+  CheckResult check(Call<Void> probe) {
+    CheckResult result = this.result;
+    if (result == null || System.nanoTime() - updatedNanos > ttlNanos) probe(probe);
+    return result != null ? result : CheckResult.OK;
+  }
+
+  void probe(Call<Void> probe) {
+    if (!probing.compareAndSet(false, true)) return;
+    // The result is recorded by the decorator, which sees the probe like any other request
+    Callback<Void> callback = new Callback<Void>() {
+      @Override public void onSuccess(Void value) {
+        probing.set(false);
+      }
+
+      @Override public void onError(Throwable t) {
+        probing.set(false);
+      }
+    };
+    try {
+      probe.clone().enqueue(callback);
+    } catch (RuntimeException | Error e) {
+      Call.propagateIfFatal(e);
+      record(CheckResult.failed(e));
+      probing.set(false);
+    }
+  }
+
+  void record(CheckResult result) {
+    this.result = result;
+    updatedNanos = System.nanoTime();
+  }
+
+  /** Records the outcome of each request. */
+  HttpClient decorate(HttpClient delegate) {
+    return new SimpleDecoratingHttpClient(delegate) {
+      @Override public HttpResponse execute(ClientRequestContext ctx, HttpRequest req)
+          throws Exception {
+        ctx.log().whenComplete().thenAccept(log -> {
+          CheckResult result = toCheckResult(log);
+          if (result != null) record(result);
+        });
+        return unwrap().execute(ctx, req);
+      }
+    };
+  }
+
+  /** Returns null when the request was cancelled, as that says nothing about health. */
+  static CheckResult toCheckResult(RequestLog log) {
+    // A trailers-only response, such as an error, has the status in its headers
+    HttpHeaders trailers =
+        log.responseTrailers().isEmpty() ? log.responseHeaders() : log.responseTrailers();
+    String status = trailers.get(GrpcHeaderNames.GRPC_STATUS);
+    if (status == null) {
+      Throwable cause = log.responseCause();
+      if (cause instanceof CancellationException || cause instanceof AbortedStreamException) {
+        return null;
+      }
+      if (cause != null) return CheckResult.failed(cause);
+      return CheckResult.failed(new ArmeriaStatusException(2 /* UNKNOWN */,
+          "Missing grpc-status in response with HTTP status " + log.responseHeaders().status()));
+    }
+
+    int code;
+    try {
+      code = Integer.parseInt(status);
+    } catch (NumberFormatException e) {
+      code = 2 /* UNKNOWN */;
+    }
+    // The probe is malformed on purpose, so INVALID_ARGUMENT means the service is up.
+    if (code == 0 || code == 3 /* INVALID_ARGUMENT */) return CheckResult.OK;
+    String message = trailers.get(GrpcHeaderNames.GRPC_MESSAGE);
+    if (message != null) message = StatusMessageEscaper.unescape(message);
+    return CheckResult.failed(new ArmeriaStatusException(code, message));
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+import io.micrometer.core.instrument.Counter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import zipkin2.Call;
+import zipkin2.Span;
+import zipkin2.storage.SpanConsumer;
+import zipkin2.storage.stackdriver.StackdriverSpanConsumer.SplitCall;
+
+/**
+ * Writes each span to the project named by its {@link #projectIdTag tag}, or else mapped from its
+ * {@link #serviceProjectIds local service name}, or else the default project. A call with spans for
+ * several projects sends a call per project, all at the same time.
+ *
+ * <p>Each project has its own consumer, created on first use and kept, which holds the encoded
+ * project name. At most {@link #maxProjects} are kept, as tag values can be anything: spans for
+ * further projects are dropped and counted, instead of being written to a project they weren't
+ * meant for.
+ */
+final class ProjectRoutingSpanConsumer implements SpanConsumer {
+  static final Logger LOG = Logger.getLogger(ProjectRoutingSpanConsumer.class.getName());
+
+  final String defaultProjectId;
+  final String projectIdTag; // null when not routing by tag
+  final Map<String, String> serviceProjectIds;
+  final Function<String, SpanConsumer> newConsumer;
+  final int maxProjects;
+  final StorageMetrics metrics;
+  final Counter dropped;
+  final AtomicBoolean loggedDrop = new AtomicBoolean();
+  final ConcurrentHashMap<String, SpanConsumer> consumers = new ConcurrentHashMap<>();
+
+  ProjectRoutingSpanConsumer(String defaultProjectId, SpanConsumer defaultConsumer,
+      String projectIdTag, Map<String, String> serviceProjectIds,
+      Function<String, SpanConsumer> newConsumer, int maxProjects, StorageMetrics metrics) {
+    this.defaultProjectId = defaultProjectId;
+    this.projectIdTag = projectIdTag;
+    this.serviceProjectIds = serviceProjectIds;
+    this.newConsumer = newConsumer;
+    this.maxProjects = maxProjects;
+    this.metrics = metrics;
+    this.dropped = Counter.builder(StorageMetrics.PREFIX + "projects.dropped")
+        .description("Spans dropped as their project was over the maximum projects")
+        .register(metrics.registry);
+    consumers.put(defaultProjectId, defaultConsumer);
+  }
+
+  @Override public Call<Void> accept(List<Span> spans) {
+    if (spans.isEmpty()) return Call.create(null);
+    // Usually, all spans of a call are for one project, so only group them when they aren't
+    String first = projectId(spans.get(0));
+    int i = 1, length = spans.size();
+    while (i < length && first.equals(projectId(spans.get(i)))) i++;
+    if (i == length) return accept(first, spans);
+
+    Map<String, List<Span>> byProject = new LinkedHashMap<>();
+    byProject.put(first, new ArrayList<>(spans.subList(0, i)));
+    for (; i < length; i++) {
+      Span span = spans.get(i);
+      byProject.computeIfAbsent(projectId(span), k -> new ArrayList<>()).add(span);
+    }
+
+    List<Call<Void>> calls = new ArrayList<>(byProject.size());
+    int[] spanCounts = new int[byProject.size()];
+    for (Map.Entry<String, List<Span>> entry : byProject.entrySet()) {
+      spanCounts[calls.size()] = entry.getValue().size();
+      calls.add(accept(entry.getKey(), entry.getValue()));
+    }
+    return new SplitCall(calls, spanCounts, calls.size(), metrics);
+  }
+
+  Call<Void> accept(String projectId, List<Span> spans) {
+    SpanConsumer consumer = consumer(projectId);
+    if (consumer != null) return consumer.accept(spans);
+    dropped.increment(spans.size());
+    if (loggedDrop.compareAndSet(false, true)) {
+      LOG.log(Level.WARNING, "Dropping spans for project {0} and any others over the maximum of "
+          + "{1} projects. See the metric {2}", new Object[] {projectId, maxProjects,
+          StorageMetrics.PREFIX + "projects.dropped"});
+    }
+    return Call.create(null);
+  }
+
+  String projectId(Span span) {
+    if (projectIdTag != null) {
+      String projectId = span.tags().get(projectIdTag);
+      if (projectId != null && !projectId.isEmpty()) return projectId;
+    }
+    String serviceName = span.localServiceName();
+    if (serviceName != null) {
+      String projectId = serviceProjectIds.get(serviceName);
+      if (projectId != null) return projectId;
+    }
+    return defaultProjectId;
+  }
+
+  /** Returns null when the project is over {@link #maxProjects}. */
+  SpanConsumer consumer(String projectId) {
+    SpanConsumer consumer = consumers.get(projectId);
+    if (consumer != null) return consumer;
+    // Racing threads may keep slightly more projects than the maximum, which is harmless
+    if (consumers.size() >= maxProjects) return null;
+    return consumers.computeIfAbsent(projectId, newConsumer);
+  }
+
+  /** Sends anything coalesced for any project, for example on close. */
+  void flushAll() {
+    for (SpanConsumer consumer : consumers.values()) {
+      if (consumer instanceof CoalescingSpanConsumer) {
+        ((CoalescingSpanConsumer) consumer).flushAll();
+      }
+    }
+  }
+
+  @Override public String toString() {
+    return "ProjectRoutingSpanConsumer{" + consumers.keySet() + "}";
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import zipkin2.Call;
+import zipkin2.Span;
+import zipkin2.storage.SpanConsumer;
+
+/**
+ * Limits the spans per second written for each local service name, so that one service can't use
+ * up the project's quota. Spans over the limit are dropped before translation.
+ *
+ * <p>Each service has its own lock-free token bucket, so services don't contend. Services with an
+ * override always have a bucket. Others share the default rate, each with its own bucket until
+ * {@link #maxServices} are tracked, then in one shared bucket tagged {@value #OTHER}.
+ */
+final class RateLimitingSpanConsumer implements SpanConsumer {
+  static final String OTHER = "_other", UNKNOWN = "_unknown";
+
+  final SpanConsumer delegate;
+  final int defaultRate, maxServices;
+  final MeterRegistry registry;
+  final ConcurrentHashMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+  final TokenBucket other; // null when services without an override aren't limited
+  final int overrides;
+
+  RateLimitingSpanConsumer(SpanConsumer delegate, int defaultRate, Map<String, Integer> overrides,
+      int maxServices, StorageMetrics metrics) {
+    this.delegate = delegate;
+    this.defaultRate = defaultRate;
+    this.maxServices = maxServices;
+    this.registry = metrics.registry;
+    for (Map.Entry<String, Integer> entry : overrides.entrySet()) {
+      buckets.put(entry.getKey(), new TokenBucket(entry.getValue(), dropped(entry.getKey())));
+    }
+    this.overrides = overrides.size();
+    this.other = defaultRate > 0 ? new TokenBucket(defaultRate, dropped(OTHER)) : null;
+  }
+
+  Counter dropped(String serviceName) {
+    return Counter.builder(StorageMetrics.PREFIX + "rate_limit.dropped")
+        .description("Spans dropped as their service was over its rate limit")
+        .tag("service", serviceName)
+        .register(registry);
+  }
+
+  @Override public Call<Void> accept(List<Span> spans) {
+    long now = System.nanoTime();
+    List<Span> allowed = null; // allocated once a span is dropped
+    String lastServiceName = null;
+    TokenBucket bucket = null;
+    for (int i = 0, length = spans.size(); i < length; i++) {
+      Span span = spans.get(i);
+      String serviceName = span.localServiceName();
+      if (serviceName == null) serviceName = UNKNOWN;
+      // Spans of a call are usually from one service, so skip the lookup when it is the same
+      if (!serviceName.equals(lastServiceName)) {
+        bucket = bucket(serviceName);
+        lastServiceName = serviceName;
+      }
+      if (bucket == null || bucket.tryAcquire(now)) {
+        if (allowed != null) allowed.add(span);
+        continue;
+      }
+      bucket.dropped.increment();
+      if (allowed == null) allowed = new ArrayList<>(spans.subList(0, i));
+    }
+    if (allowed == null) return delegate.accept(spans);
+    return allowed.isEmpty() ? Call.create(null) : delegate.accept(allowed);
+  }
+
+  /** Returns null if the service isn't limited. */
+  TokenBucket bucket(String serviceName) {
+    TokenBucket bucket = buckets.get(serviceName);
+    if (bucket != null || other == null) return bucket;
+    // Racing threads may track slightly more services than the maximum, which is harmless
+    if (buckets.size() - overrides >= maxServices) return other;
+    return buckets.computeIfAbsent(serviceName,
+        name -> new TokenBucket(defaultRate, dropped(name)));
+  }
+
+  @Override public String toString() {
+    return "RateLimitingSpanConsumer{" + delegate + "}";
+  }
+
+  /**
+   * A token bucket holding up to a second of tokens, as the time its next token is due. Taking a
+   * token moves that time forward an interval, and fails when it would be more than a second ahead.
+   */
+  static final class TokenBucket {
+    final long intervalNanos, burstNanos;
+    // Starts full. Due a second ago also covers callers who read the time before construction.
+    final AtomicLong dueNanos = new AtomicLong(System.nanoTime() - TimeUnit.SECONDS.toNanos(1));
+    final Counter dropped;
+
+    TokenBucket(int spansPerSecond, Counter dropped) {
+      this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / spansPerSecond;
+      this.burstNanos = TimeUnit.SECONDS.toNanos(1) - intervalNanos;
+      this.dropped = dropped;
+    }
+
+    boolean tryAcquire(long now) {
+      while (true) {
+        long due = dueNanos.get();
+        long start = due - now > 0 ? due : now; // tokens don't accumulate past a full bucket
+        if (start - now > burstNanos) return false;
+        if (dueNanos.compareAndSet(due, start + intervalNanos)) return true;
+      }
+    }
+  }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+import com.linecorp.armeria.client.UnprocessedRequestException;
+import com.linecorp.armeria.client.WebClient;
+import com.linecorp.armeria.common.HttpData;
+import com.linecorp.armeria.common.HttpRequest;
+import com.linecorp.armeria.common.TimeoutException;
+import com.linecorp.armeria.common.grpc.protocol.ArmeriaStatusException;
+import com.linecorp.armeria.common.util.Exceptions;
+import com.linecorp.armeria.common.util.ThreadFactories;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import zipkin2.Call;
+import zipkin2.storage.stackdriver.ConcurrencyLimitingClient.ConcurrencyLimitExceededException;
+import zipkin2.storage.stackdriver.DiskSpool.Record;
+import zipkin2.storage.stackdriver.StackdriverSpanConsumer.BatchWriteSpansCall;
+
+/**
+ * Saves requests which failed as Stackdriver Trace was {@link #shouldSpool(Throwable) unavailable}
+ * to a {@link DiskSpool}, and replays them once it is healthy again, one at a time and at most
+ * {@link #replayRate} per second. When the spool is full, requests fail as if there was no spool.
+ *
+ * <p>All disk access happens on a dedicated thread, so that callers, often event loops, don't
+ * block on it.
+ */
+final class Spool {
+  static final Logger LOG = Logger.getLogger(Spool.class.getName());
+  static final int MAX_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+  final DiskSpool disk;
+  final Predicate<Throwable> isTransient;
+  final int replayRate;
+  final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+      ThreadFactories.newThreadFactory("zipkin-stackdriver-spool", true));
+  final AtomicBoolean replaying = new AtomicBoolean();
+  final Counter spooled, rejected, replayed, evicted;
+
+  // Copied from the disk spool after each change, for metrics
+  volatile long sizeInBytes, oldestTimestampMillis;
+  volatile int records;
+  long evictedCount; // guarded by the executor
+
+  /**
+   * @param isTransient when a replayed request fails with an error which doesn't pass this, it is
+   * dropped, as retrying won't help.
+   */
+  Spool(Path directory, long maxBytes, int replayRate, Predicate<Throwable> isTransient,
+      StorageMetrics metrics) throws IOException {
+    this.disk = new DiskSpool(directory, maxBytes,
+        (int) Math.max(1, Math.min(maxBytes / 4, MAX_SEGMENT_BYTES)));
+    this.replayRate = replayRate;
+    this.isTransient = isTransient;
+
+    MeterRegistry registry = metrics.registry;
+    String prefix = StorageMetrics.PREFIX + "spool.";
+    metrics.gauge(prefix + "bytes", "Size of the spool", this, spool -> spool.sizeInBytes);
+    metrics.gauge(prefix + "requests", "Requests in the spool", this, spool -> spool.records);
+    metrics.track(TimeGauge.builder(prefix + "age", this, TimeUnit.MILLISECONDS, Spool::ageMillis)
+        .description("Age of the oldest spooled request")
+        .register(registry));
+    spooled = Counter.builder(prefix + "spooled")
+        .description("Requests saved to the spool after failing")
+        .register(registry);
+    rejected = Counter.builder(prefix + "rejected")
+        .description("Failed requests not spooled as the spool was full")
+        .register(registry);
+    replayed = Counter.builder(prefix + "replayed")
+        .description("Spooled requests sent successfully")
+        .register(registry);
+    evicted = Counter.builder(prefix + "evicted")
+        .description("Spooled requests dropped to stay within the byte budget")
+        .register(registry);
+    updateStats();
+  }
+
+  /** Starts replaying spooled requests, while the health check passes. */
+  void start(WebClient client, PassiveHealthCheck healthCheck, Call<Void> probe) {
+    executor.scheduleWithFixedDelay(() -> {
+      if (records == 0 || replaying.get()) return;
+      // checking health also probes in the background, when there was no recent request
+      if (!healthCheck.check(probe).ok()) return;
+      replayNext(client);
+    }, 0, 1_000_000 / replayRate, TimeUnit.MICROSECONDS);
+  }
+
+  /**
+   * Returns a future which completes successfully if the request either succeeded, or failed with
+   * an error which could be spooled and was.
+   */
+  CompletableFuture<Void> spoolOnFailure(CompletableFuture<Void> result, Supplier<byte[]> request) {
+    CompletableFuture<Void> spooled = new CompletableFuture<>();
+    result.whenComplete((unused, t) -> {
+      if (t == null) {
+        spooled.complete(null);
+        return;
+      }
+      Throwable error = Exceptions.peel(t);
+      if (!shouldSpool(error)) {
+        spooled.completeExceptionally(error);
+        return;
+      }
+      try {
+        executor.execute(() -> {
+          if (append(request)) {
+            spooled.complete(null);
+          } else {
+            spooled.completeExceptionally(error);
+          }
+        });
+      } catch (RejectedExecutionException e) { // closed
+        spooled.completeExceptionally(error);
+      }
+    });
+    return spooled;
+  }
+
+  /**
+   * Returns true when a request failed as Stackdriver Trace was unavailable or didn't respond in
+   * time, so is worth replaying. Other errors, including rejections by {@link
+   * StackdriverStorage.Builder#maxConcurrentRequests(int)} and {@code RESOURCE_EXHAUSTED}, reach
+   * the caller, so that it slows down.
+   */
+  static boolean shouldSpool(Throwable e) {
+    boolean unprocessed = false;
+    // Bounded in case of cyclic causes
+    for (int depth = 0; e != null && depth < 8; e = e.getCause(), depth++) {
+      if (e instanceof ConcurrencyLimitExceededException) return false;
+      if (e instanceof ArmeriaStatusException) {
+        int code = ((ArmeriaStatusException) e).getCode();
+        return code == 4 /* DEADLINE_EXCEEDED */ || code == 14 /* UNAVAILABLE */;
+      }
+      if (e instanceof TimeoutException || e instanceof java.util.concurrent.TimeoutException) {
+        return true;
+      }
+      // Not sent, for example as the connection failed, unless the cause is a local rejection
+      if (e instanceof UnprocessedRequestException) unprocessed = true;
+    }
+    return unprocessed;
+  }
+
+  boolean append(Supplier<byte[]> request) {
+    try {
+      boolean appended = disk.append(request.get(), System.currentTimeMillis());
+      if (appended) {
+        spooled.increment();
+      } else {
+        rejected.increment();
+      }
+      return appended;
+    } catch (IOException | RuntimeException e) {
+      LOG.log(Level.WARNING, "Unable to spool request: " + e.getMessage(), e);
+      return false;
+    } finally {
+      updateStats();
+    }
+  }
+
+  void replayNext(WebClient client) {
+    Record record;
+    try {
+      record = disk.peek();
+    } catch (IOException | RuntimeException e) {
+      LOG.log(Level.WARNING, "Unable to read spool: " + e.getMessage(), e);
+      return;
+    }
+    if (record == null) return;
+
+    replaying.set(true);
+    CompletableFuture<Void> result;
+    try {
+      result = client.execute(HttpRequest.of(BatchWriteSpansCall.REQUEST_HEADERS,
+          HttpData.wrap(record.request)))
+          .aggregate()
+          .thenApply(BatchWriteSpansCall::checkStatus);
+    } catch (RuntimeException e) {
+      onReplayed(record, e);
+      return;
+    }
+    result.whenComplete((unused, t) -> {
+      Throwable error = t != null ? Exceptions.peel(t) : null;
+      try {
+        executor.execute(() -> onReplayed(record, error));
+      } catch (RejectedExecutionException e) { // closed
+        replaying.set(false);
+      }
+    });
+  }
+
+  void onReplayed(Record record, Throwable error) {
+    try {
+      if (error == null) {
+        replayed.increment();
+        disk.remove(record);
+      } else if (!isTransient.test(error)) { // retrying won't help
+        LOG.log(Level.WARNING, "Dropping spooled request: " + error.getMessage(), error);
+        disk.remove(record);
+      } // otherwise, retry it later
+    } catch (IOException | RuntimeException e) {
+      LOG.log(Level.WARNING, "Unable to update spool: " + e.getMessage(), e);
+    } finally {
+      updateStats();
+      replaying.set(false);
+    }
+  }
+
+  void updateStats() {
+    sizeInBytes = disk.sizeInBytes;
+    records = disk.records;
+    try {
+      oldestTimestampMillis = disk.oldestTimestampMillis();
+    } catch (IOException e) {
+      oldestTimestampMillis = 0L;
+    }
+    if (disk.evicted > evictedCount) evicted.increment(disk.evicted - evictedCount);
+    evictedCount = disk.evicted;
+  }
+
+  double ageMillis() {
+    long oldest = oldestTimestampMillis;
+    return oldest == 0L ? 0 : Math.max(0, System.currentTimeMillis() - oldest);
+  }
+
+  void close() {
+    executor.execute(() -> {
+      try {
+        disk.close();
+      } catch (IOException e) {
+        LOG.log(Level.FINE, "Error closing spool: " + e.getMessage(), e);
+      }
+    });
+    executor.shutdown();
+  }
+
+  @Override public String toString() {
+    return "Spool{" + disk.directory + "}";
+  }
+}
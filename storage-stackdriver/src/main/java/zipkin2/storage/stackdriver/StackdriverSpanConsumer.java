@@ -14,11 +14,33 @@
 package zipkin2.storage.stackdriver;
 
 import com.google.devtools.cloudtrace.v2.BatchWriteSpansRequest;
-import com.linecorp.armeria.client.grpc.protocol.UnaryGrpcClient;
+import com.google.protobuf.CodedOutputStream;
+import com.linecorp.armeria.client.WebClient;
+import com.linecorp.armeria.common.AggregatedHttpResponse;
+import com.linecorp.armeria.common.HttpData;
+import com.linecorp.armeria.common.HttpHeaderNames;
+import com.linecorp.armeria.common.HttpHeaders;
+import com.linecorp.armeria.common.HttpMethod;
+import com.linecorp.armeria.common.HttpRequest;
+import com.linecorp.armeria.common.HttpResponse;
+import com.linecorp.armeria.common.RequestHeaders;
+import com.linecorp.armeria.common.grpc.protocol.ArmeriaStatusException;
+import com.linecorp.armeria.common.grpc.protocol.GrpcHeaderNames;
+import com.linecorp.armeria.common.grpc.protocol.StatusMessageEscaper;
 import com.linecorp.armeria.common.util.Exceptions;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import zipkin2.Call;
 import zipkin2.Callback;
 import zipkin2.Span;
@@ -34,45 +56,268 @@ final class StackdriverSpanConsumer implements SpanConsumer {
   static final String BATCH_WRITE_SPANS_PATH =
       "/google.devtools.cloudtrace.v2.TraceService/BatchWriteSpans";
 
-  final UnaryGrpcClient grpcClient;
+  final WebClient client;
   final String projectId;
-  final String projectName;
+  final byte[] projectNameField; // encoded once, as it starts every request
+  final int maxSpansPerRequest, maxBytesPerRequest, splitParallelism;
+  final StorageMetrics metrics;
+  final Spool spool; // null when not spooling
 
-  StackdriverSpanConsumer(UnaryGrpcClient grpcClient, String projectId) {
-    this.grpcClient = grpcClient;
+  StackdriverSpanConsumer(WebClient client, String projectId, int maxSpansPerRequest,
+      int maxBytesPerRequest, int splitParallelism, StorageMetrics metrics, Spool spool) {
+    this.client = client;
     this.projectId = projectId;
-    projectName = "projects/" + projectId;
+    projectNameField = encodeProjectName("projects/" + projectId);
+    this.maxSpansPerRequest = maxSpansPerRequest;
+    this.maxBytesPerRequest = maxBytesPerRequest;
+    this.splitParallelism = splitParallelism;
+    this.metrics = metrics;
+    this.spool = spool;
   }
 
   @Override public Call<Void> accept(List<Span> spans) {
     if (spans.isEmpty()) return Call.create(null);
-    List<com.google.devtools.cloudtrace.v2.Span> stackdriverSpans =
+    return newCall(translate(spans));
+  }
+
+  List<com.google.devtools.cloudtrace.v2.Span> translate(List<Span> spans) {
+    long startNanos = System.nanoTime();
+    List<com.google.devtools.cloudtrace.v2.Span> result =
         SpanTranslator.translate(projectId, spans);
-    BatchWriteSpansRequest request =
-        BatchWriteSpansRequest.newBuilder()
-            .setName(projectName)
-            .addAllSpans(stackdriverSpans)
-            .build();
-    return new BatchWriteSpansCall(grpcClient, request);
+    metrics.translation.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    return result;
+  }
+
+  /** Returns the encoded name field of a {@code BatchWriteSpansRequest}, to copy into each. */
+  static byte[] encodeProjectName(String projectName) {
+    byte[] result = new byte[CodedOutputStream.computeStringSize(1, projectName)];
+    CodedOutputStream output = CodedOutputStream.newInstance(result);
+    try {
+      output.writeString(1, projectName);
+      output.checkNoSpaceLeft();
+    } catch (IOException e) {
+      throw new AssertionError(e); // writing to an array doesn't throw IOException
+    }
+    return result;
   }
 
+  /**
+   * Returns one request, or a {@link SplitCall} when the spans exceed {@link #maxSpansPerRequest}
+   * or {@link #maxBytesPerRequest}. The span sizes computed here are memoized for serialization.
+   */
+  Call<Void> newCall(List<com.google.devtools.cloudtrace.v2.Span> spans) {
+    List<Call<Void>> calls = null;
+    int start = 0, bytes = projectNameField.length;
+    for (int i = 0, length = spans.size(); i < length; i++) {
+      int spanSize = CodedOutputStream.computeMessageSize(2, spans.get(i));
+      if (i > start
+          && (i - start == maxSpansPerRequest || bytes + spanSize > maxBytesPerRequest)) {
+        if (calls == null) calls = new ArrayList<>();
+        calls.add(new BatchWriteSpansCall(
+            client, projectNameField, spans.subList(start, i), metrics, spool));
+        start = i;
+        bytes = projectNameField.length;
+      }
+      bytes += spanSize;
+    }
+    if (calls == null) {
+      return new BatchWriteSpansCall(client, projectNameField, spans, metrics, spool);
+    }
+    calls.add(new BatchWriteSpansCall(
+        client, projectNameField, spans.subList(start, spans.size()), metrics, spool));
+    int[] spanCounts = new int[calls.size()];
+    for (int i = 0; i < spanCounts.length; i++) {
+      spanCounts[i] = ((BatchWriteSpansCall) calls.get(i)).spans.size();
+    }
+    return new SplitCall(calls, spanCounts, splitParallelism, metrics);
+  }
+
+  /**
+   * Sends calls for parts of one {@link #accept} call, at most {@link #parallelism} at a time. When
+   * only some fail, the result is a {@link PartialWriteException} counting the failed spans.
+   */
+  static final class SplitCall extends Call.Base<Void> {
+    final List<Call<Void>> calls;
+    final int[] spanCounts; // indexed like calls
+    final int parallelism;
+    final StorageMetrics metrics;
+    final AtomicReferenceArray<Call<Void>> sent;
+
+    SplitCall(List<Call<Void>> calls, int[] spanCounts, int parallelism, StorageMetrics metrics) {
+      this.calls = calls;
+      this.spanCounts = spanCounts;
+      this.parallelism = parallelism;
+      this.metrics = metrics;
+      this.sent = new AtomicReferenceArray<>(calls.size());
+    }
+
+    @Override protected Void doExecute() {
+      CompletableFuture<Void> result = new CompletableFuture<>();
+      doEnqueue(new Callback<Void>() {
+        @Override public void onSuccess(Void value) {
+          result.complete(null);
+        }
+
+        @Override public void onError(Throwable t) {
+          result.completeExceptionally(t);
+        }
+      });
+      try {
+        return result.join();
+      } catch (CompletionException e) {
+        propagateIfFatal(e);
+        Exceptions.throwUnsafely(e.getCause());
+        return null;  // Unreachable
+      }
+    }
+
+    @Override protected void doEnqueue(Callback<Void> callback) {
+      new SplitCallback(callback).start();
+    }
+
+    @Override protected void doCancel() {
+      for (int i = 0, length = sent.length(); i < length; i++) {
+        Call<Void> call = sent.get(i);
+        if (call != null) call.cancel();
+      }
+    }
+
+    @Override public SplitCall clone() {
+      return new SplitCall(calls, spanCounts, parallelism, metrics);
+    }
+
+    @Override public String toString() {
+      return "SplitCall{calls=" + calls + "}";
+    }
+
+    final class SplitCallback {
+      final Callback<Void> delegate;
+      final AtomicInteger next = new AtomicInteger(), remaining = new AtomicInteger(calls.size());
+      final AtomicReferenceArray<Throwable> errors = new AtomicReferenceArray<>(calls.size());
+      final AtomicIntegerArray completed = new AtomicIntegerArray(calls.size());
+      final CompletableFuture<Void> done = new CompletableFuture<>();
+
+      SplitCallback(Callback<Void> delegate) {
+        this.delegate = delegate;
+      }
+
+      /**
+       * Counts all spans in flight until their request is sent, as later requests wait for earlier
+       * ones to complete. Once sent, each request counts its own spans.
+       */
+      void start() {
+        int totalSpans = 0;
+        for (int spanCount : spanCounts) totalSpans += spanCount;
+        metrics.spansInFlight.addAndGet(totalSpans);
+        metrics.trackWrite(done);
+        for (int i = 0; i < parallelism; i++) sendNext();
+      }
+
+      void sendNext() {
+        int index = next.getAndIncrement();
+        if (index >= calls.size()) return;
+        metrics.spansInFlight.addAndGet(-spanCounts[index]);
+        if (isCanceled()) {
+          onDone(index, new CancellationException());
+          return;
+        }
+        Call<Void> call = calls.get(index).clone();
+        sent.set(index, call);
+        try {
+          call.enqueue(new Callback<Void>() {
+            @Override public void onSuccess(Void value) {
+              onDone(index, null);
+            }
+
+            @Override public void onError(Throwable t) {
+              onDone(index, Exceptions.peel(t));
+            }
+          });
+        } catch (RuntimeException | Error e) {
+          propagateIfFatal(e);
+          onDone(index, e); // ignored if already passed to the callback
+        }
+      }
+
+      void onDone(int index, Throwable error) {
+        if (!completed.compareAndSet(index, 0, 1)) return; // each call completes once
+        if (error != null) errors.set(index, error);
+        if (remaining.decrementAndGet() == 0) {
+          finish();
+        } else {
+          sendNext();
+        }
+      }
+
+      void finish() {
+        done.complete(null);
+        Throwable first = null;
+        int failedRequests = 0, failedSpans = 0, totalSpans = 0;
+        for (int i = 0, length = calls.size(); i < length; i++) {
+          int spanCount = spanCounts[i];
+          totalSpans += spanCount;
+          Throwable error = errors.get(i);
+          if (error == null) continue;
+          failedRequests++;
+          // A call for one project may itself be split, and only partially fail
+          failedSpans += error instanceof PartialWriteException
+              ? ((PartialWriteException) error).failedSpans
+              : spanCount;
+          if (first == null) {
+            first = error;
+          } else if (first != error) {
+            first.addSuppressed(error);
+          }
+        }
+        if (first == null) {
+          delegate.onSuccess(null);
+        } else if (failedRequests == calls.size() && failedSpans == totalSpans) {
+          delegate.onError(first); // same as if the call wasn't split
+        } else {
+          delegate.onError(new PartialWriteException(failedSpans, totalSpans, failedRequests,
+              calls.size(), first));
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes the {@link BatchWriteSpansRequest} fields directly into a pooled buffer, instead of
+   * building the request and copying its bytes. Armeria releases the buffer once written.
+   */
   static final class BatchWriteSpansCall extends Call.Base<Void> {
-    final UnaryGrpcClient grpcClient;
-    final BatchWriteSpansRequest request;
+    // Many Google services do not support the standard application/grpc+proto header.
+    static final RequestHeaders REQUEST_HEADERS =
+        RequestHeaders.builder(HttpMethod.POST, BATCH_WRITE_SPANS_PATH)
+            .set(HttpHeaderNames.CONTENT_TYPE, "application/grpc")
+            .set(HttpHeaderNames.TE, "trailers")
+            .build();
+    static final int HEADER_LENGTH = 5; // compressed flag and message length
 
-    volatile CompletableFuture<byte[]> responseFuture;
+    final WebClient client;
+    final byte[] projectNameField;
+    final List<com.google.devtools.cloudtrace.v2.Span> spans;
+    final StorageMetrics metrics;
+    final Spool spool; // null when not spooling
 
-    BatchWriteSpansCall(UnaryGrpcClient grpcClient, BatchWriteSpansRequest request) {
-      this.grpcClient = grpcClient;
-      this.request = request;
+    volatile HttpResponse response;
+    volatile CompletableFuture<Void> responseFuture;
+
+    BatchWriteSpansCall(WebClient client, byte[] projectNameField,
+        List<com.google.devtools.cloudtrace.v2.Span> spans, StorageMetrics metrics, Spool spool) {
+      this.client = client;
+      this.projectNameField = projectNameField;
+      this.spans = spans;
+      this.metrics = metrics;
+      this.spool = spool;
     }
 
     @Override public String toString() {
-      return "BatchWriteSpansCall{" + request + "}";
+      return "BatchWriteSpansCall{spans=" + spans + "}";
     }
 
     @Override public BatchWriteSpansCall clone() {
-      return new BatchWriteSpansCall(grpcClient, request);
+      return new BatchWriteSpansCall(client, projectNameField, spans, metrics, spool);
     }
 
     @Override protected Void doExecute() {
@@ -104,17 +349,92 @@ final class StackdriverSpanConsumer implements SpanConsumer {
     }
 
     @Override protected void doCancel() {
-      CompletableFuture<byte[]> responseFuture = this.responseFuture;
-      if (responseFuture != null) {
-        responseFuture.cancel(true);
-      }
+      HttpResponse response = this.response;
+      if (response != null) response.abort();
+      CompletableFuture<Void> responseFuture = this.responseFuture;
+      if (responseFuture != null) responseFuture.cancel(true);
     }
 
-    private CompletableFuture<byte[]> sendRequest() {
-      CompletableFuture<byte[]> responseFuture = grpcClient.execute(
-          BATCH_WRITE_SPANS_PATH, request.toByteArray());
+    private CompletableFuture<Void> sendRequest() {
+      ByteBuf request = encodeRequest();
+      metrics.requestBytes.record(request.readableBytes());
+      metrics.requestSpans.record(spans.size());
+      HttpResponse response =
+          client.execute(HttpRequest.of(REQUEST_HEADERS, HttpData.wrap(request)));
+      this.response = response;
+      CompletableFuture<Void> responseFuture =
+          response.aggregate().thenApply(BatchWriteSpansCall::checkStatus);
+      // Only span requests are spooled, not health checks
+      if (spool != null && !spans.isEmpty()) {
+        responseFuture = spool.spoolOnFailure(responseFuture, this::encodeBytes);
+      }
+      // Counted until written or spooled, so that close can wait for them
+      if (!spans.isEmpty()) {
+        int spanCount = spans.size();
+        metrics.spansInFlight.addAndGet(spanCount);
+        responseFuture.whenComplete((unused, t) -> metrics.spansInFlight.addAndGet(-spanCount));
+        metrics.trackWrite(responseFuture);
+      }
       this.responseFuture = responseFuture;
       return responseFuture;
     }
+
+    /** Returns the length-prefixed request, sized exactly from the already computed span sizes. */
+    ByteBuf encodeRequest() {
+      int messageSize = projectNameField.length;
+      for (int i = 0, length = spans.size(); i < length; i++) {
+        messageSize += CodedOutputStream.computeMessageSize(2, spans.get(i));
+      }
+
+      ByteBuf buf = ByteBufAllocator.DEFAULT.directBuffer(HEADER_LENGTH + messageSize);
+      try {
+        buf.writeByte(0); // uncompressed
+        buf.writeInt(messageSize);
+        CodedOutputStream output =
+            CodedOutputStream.newInstance(buf.nioBuffer(HEADER_LENGTH, messageSize));
+        output.writeRawBytes(projectNameField);
+        for (int i = 0, length = spans.size(); i < length; i++) {
+          output.writeMessage(2, spans.get(i));
+        }
+        output.checkNoSpaceLeft();
+        buf.writerIndex(HEADER_LENGTH + messageSize);
+        return buf;
+      } catch (IOException | RuntimeException e) {
+        buf.release();
+        throw new IllegalStateException("Unable to serialize BatchWriteSpansRequest", e);
+      }
+    }
+
+    /** Encodes again for the spool, as the request's buffer was released once written. */
+    byte[] encodeBytes() {
+      ByteBuf buf = encodeRequest();
+      try {
+        return ByteBufUtil.getBytes(buf);
+      } finally {
+        buf.release();
+      }
+    }
+
+    /** Throws the same exception as {@code UnaryGrpcClient} when the call failed. */
+    static Void checkStatus(AggregatedHttpResponse response) {
+      // A trailers-only response, such as an error, has the status in its headers
+      HttpHeaders trailers = response.trailers().isEmpty() ? response.headers() : response.trailers();
+      String status = trailers.get(GrpcHeaderNames.GRPC_STATUS);
+      int code;
+      try {
+        code = status != null ? Integer.parseInt(status) : 2 /* UNKNOWN */;
+      } catch (NumberFormatException e) {
+        code = 2 /* UNKNOWN */;
+      }
+      if (code == 0) return null;
+
+      String message = trailers.get(GrpcHeaderNames.GRPC_MESSAGE);
+      if (message != null) {
+        message = StatusMessageEscaper.unescape(message);
+      } else if (status == null) {
+        message = "Missing grpc-status in response with HTTP status " + response.status();
+      }
+      throw new ArmeriaStatusException(code, message);
+    }
   }
 }
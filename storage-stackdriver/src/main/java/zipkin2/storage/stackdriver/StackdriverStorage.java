@@ -13,18 +13,30 @@
  */
 package zipkin2.storage.stackdriver;
 
-import com.google.devtools.cloudtrace.v2.BatchWriteSpansRequest;
 import com.linecorp.armeria.client.ClientFactory;
 import com.linecorp.armeria.client.ClientOptions;
-import com.linecorp.armeria.client.ClientRequestContext;
-import com.linecorp.armeria.client.HttpClient;
-import com.linecorp.armeria.client.SimpleDecoratingHttpClient;
+import com.linecorp.armeria.client.UnprocessedRequestException;
 import com.linecorp.armeria.client.WebClient;
-import com.linecorp.armeria.client.grpc.protocol.UnaryGrpcClient;
-import com.linecorp.armeria.common.HttpHeaderNames;
-import com.linecorp.armeria.common.HttpRequest;
-import com.linecorp.armeria.common.HttpResponse;
+import com.linecorp.armeria.client.WebClientBuilder;
+import com.linecorp.armeria.common.TimeoutException;
 import com.linecorp.armeria.common.grpc.protocol.ArmeriaStatusException;
+import com.linecorp.armeria.common.util.ThreadFactories;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import zipkin2.Call;
 import zipkin2.CheckResult;
 import zipkin2.storage.AutocompleteTags;
@@ -33,6 +45,7 @@ import zipkin2.storage.SpanConsumer;
 import zipkin2.storage.SpanStore;
 import zipkin2.storage.StorageComponent;
 import zipkin2.storage.Traces;
+import zipkin2.storage.stackdriver.ConcurrencyLimitingClient.ConcurrencyLimitExceededException;
 import zipkin2.storage.stackdriver.StackdriverSpanConsumer.BatchWriteSpansCall;
 
 /**
@@ -42,6 +55,11 @@ import zipkin2.storage.stackdriver.StackdriverSpanConsumer.BatchWriteSpansCall;
  * <p>No SpanStore methods are implemented because read operations are not yet supported.
  */
 public final class StackdriverStorage extends StorageComponent {
+  static final Logger LOG = Logger.getLogger(StackdriverStorage.class.getName());
+  static final SpanConsumer CLOSED = spans -> Call.<Void>create(null).map(unused -> {
+    throw new IllegalStateException("StackdriverStorage is closed");
+  });
+
   public static Builder newBuilder() {
     return new Builder("https://cloudtrace.googleapis.com/");
   }
@@ -63,6 +81,29 @@ public final class StackdriverStorage extends StorageComponent {
     String projectId;
     ClientFactory clientFactory = ClientFactory.ofDefault();
     ClientOptions clientOptions = ClientOptions.of();
+    long coalesceLingerNanos;
+    int maxSpansPerRequest = 1000, maxBytesPerRequest = 1024 * 1024; // 1 MiB
+    int splitParallelism = 4, maxConcurrentRequests;
+    int workerThreads, workerQueueSize = 1000;
+    long healthCheckTtlNanos = TimeUnit.SECONDS.toNanos(30);
+    Path spoolDirectory;
+    long spoolMaxBytes = 1024L * 1024 * 1024; // 1 GiB
+    int spoolReplayRate = 10;
+    long dedupWindowNanos;
+    int dedupMaxSpans = 1_000_000;
+    long mergeLingerNanos;
+    int mergeMaxSpans = 10_000;
+    long tailSamplingIdleNanos, tailSamplingLatencyNanos;
+    int tailSamplingBaselineRate = 10;
+    int tailSamplingMaxSpans = 100_000, tailSamplingMaxSpansPerTrace = 1000;
+    float sampleRate = 1.0f;
+    int serviceRateLimit, serviceRateLimitMaxServices = 1000;
+    final Map<String, Integer> serviceRateLimits = new LinkedHashMap<>();
+    String projectIdTag;
+    final Map<String, String> serviceProjectIds = new LinkedHashMap<>();
+    int maxProjects = 1000;
+    long closeTimeoutNanos;
+    MeterRegistry meterRegistry;
 
     public Builder(String url) {
       if (url == null) throw new NullPointerException("url == null");
@@ -91,6 +132,43 @@ public final class StackdriverStorage extends StorageComponent {
       return this;
     }
 
+    /**
+     * When set, spans with this tag are written to the project it names, instead of {@link
+     * #projectId(String)}. This lets one collector write spans of many teams to their own projects.
+     * The tag takes precedence over {@link #serviceProjectId(String, String)}. Defaults to unset.
+     *
+     * <p>A call with spans for several projects sends a request per project, at the same time.
+     */
+    public Builder projectIdTag(String projectIdTag) {
+      if (projectIdTag == null) throw new NullPointerException("projectIdTag == null");
+      this.projectIdTag = projectIdTag;
+      return this;
+    }
+
+    /**
+     * Writes spans of a local service name to this project, instead of {@link #projectId(String)}.
+     *
+     * @see #projectIdTag(String)
+     */
+    public Builder serviceProjectId(String serviceName, String projectId) {
+      if (serviceName == null) throw new NullPointerException("serviceName == null");
+      if (projectId == null) throw new NullPointerException("projectId == null");
+      // Span lower-cases service names
+      this.serviceProjectIds.put(serviceName.toLowerCase(Locale.ROOT), projectId);
+      return this;
+    }
+
+    /**
+     * Maximum projects written to when using {@link #projectIdTag(String)} or {@link
+     * #serviceProjectId(String, String)}, which bounds memory as tag values can be anything. Spans
+     * for further projects are dropped. Defaults to 1000.
+     */
+    public Builder maxProjects(int maxProjects) {
+      if (maxProjects <= 0) throw new IllegalArgumentException("maxProjects <= 0");
+      this.maxProjects = maxProjects;
+      return this;
+    }
+
     public Builder clientFactory(ClientFactory clientFactory) {
       if (clientFactory == null) throw new NullPointerException("clientFactory == null");
       this.clientFactory = clientFactory;
@@ -103,6 +181,343 @@ public final class StackdriverStorage extends StorageComponent {
       return this;
     }
 
+    /**
+     * When positive, spans from separate {@link SpanConsumer#accept} calls are merged into shared
+     * requests, waiting up to this long for more spans. This reduces the request count when
+     * collectors receive small messages, such as single spans from Kafka. Defaults to zero, which
+     * sends each call as its own request.
+     *
+     * <p>Each call completes when the request carrying its spans completes.
+     *
+     * @see #maxSpansPerRequest(int)
+     * @see #maxBytesPerRequest(int)
+     */
+    public Builder coalesceLinger(long linger, TimeUnit unit) {
+      if (linger < 0) throw new IllegalArgumentException("coalesceLinger < 0");
+      if (unit == null) throw new NullPointerException("unit == null");
+      this.coalesceLingerNanos = unit.toNanos(linger);
+      return this;
+    }
+
+    /**
+     * Maximum spans in a request. Larger {@link SpanConsumer#accept} calls are split into several
+     * requests, and coalesced calls are merged up to this size. Defaults to 1000.
+     *
+     * @see #splitParallelism(int)
+     */
+    public Builder maxSpansPerRequest(int maxSpansPerRequest) {
+      if (maxSpansPerRequest <= 0) throw new IllegalArgumentException("maxSpansPerRequest <= 0");
+      this.maxSpansPerRequest = maxSpansPerRequest;
+      return this;
+    }
+
+    /**
+     * Maximum encoded size of a request. Larger {@link SpanConsumer#accept} calls are split into
+     * several requests, and coalesced calls are merged up to this size. A single span larger than
+     * this is sent alone. Defaults to 1 MiB.
+     */
+    public Builder maxBytesPerRequest(int maxBytesPerRequest) {
+      if (maxBytesPerRequest <= 0) throw new IllegalArgumentException("maxBytesPerRequest <= 0");
+      this.maxBytesPerRequest = maxBytesPerRequest;
+      return this;
+    }
+
+    /**
+     * Maximum requests sent at the same time for one {@link SpanConsumer#accept} call split due to
+     * {@link #maxSpansPerRequest(int)} or {@link #maxBytesPerRequest(int)}. Defaults to 4.
+     */
+    public Builder splitParallelism(int splitParallelism) {
+      if (splitParallelism <= 0) throw new IllegalArgumentException("splitParallelism <= 0");
+      this.splitParallelism = splitParallelism;
+      return this;
+    }
+
+    /**
+     * When positive, limits concurrent requests to Stackdriver Trace with a limit which adapts to
+     * observed latency and pushback, up to this maximum. Requests over the limit fail immediately,
+     * which collectors see as {@link #isOverCapacity(Throwable) over capacity}, so they throttle.
+     * Defaults to zero, which doesn't limit concurrent requests.
+     */
+    public Builder maxConcurrentRequests(int maxConcurrentRequests) {
+      if (maxConcurrentRequests < 0) {
+        throw new IllegalArgumentException("maxConcurrentRequests < 0");
+      }
+      this.maxConcurrentRequests = maxConcurrentRequests;
+      return this;
+    }
+
+    /**
+     * When positive, {@link SpanConsumer#accept} calls are translated, serialized and sent on a
+     * pool of this many threads instead of the caller's. Use this when the caller is an event loop,
+     * such as the HTTP collector's, so that large messages don't delay other requests. Defaults to
+     * zero, which uses the caller's thread.
+     *
+     * @see #workerQueueSize(int)
+     */
+    public Builder workerThreads(int workerThreads) {
+      if (workerThreads < 0) throw new IllegalArgumentException("workerThreads < 0");
+      this.workerThreads = workerThreads;
+      return this;
+    }
+
+    /**
+     * Maximum calls waiting for a {@link #workerThreads(int) worker thread}. Calls over this fail
+     * immediately, which collectors see as {@link #isOverCapacity(Throwable) over capacity}.
+     * Defaults to 1000.
+     */
+    public Builder workerQueueSize(int workerQueueSize) {
+      if (workerQueueSize <= 0) throw new IllegalArgumentException("workerQueueSize <= 0");
+      this.workerQueueSize = workerQueueSize;
+      return this;
+    }
+
+    /**
+     * How long {@link #check()} trusts the outcome of the last request to Stackdriver Trace. When
+     * no request completed for longer, it probes in the background. Defaults to 30 seconds.
+     */
+    public Builder healthCheckTtl(long ttl, TimeUnit unit) {
+      if (ttl <= 0) throw new IllegalArgumentException("healthCheckTtl <= 0");
+      if (unit == null) throw new NullPointerException("unit == null");
+      this.healthCheckTtlNanos = unit.toNanos(ttl);
+      return this;
+    }
+
+    /**
+     * When set, requests which fail as Stackdriver Trace is unavailable or doesn't respond in time,
+     * for example during an outage, are saved to files in this directory instead of failing. Once the {@link
+     * #check() health check} passes again, they are replayed, oldest first. Defaults to unset, which
+     * fails these requests.
+     *
+     * <p>Spooled requests survive restarts. They are sent at least once, so may be duplicated.
+     *
+     * @see #spoolMaxBytes(long)
+     * @see #spoolReplayRate(int)
+     */
+    public Builder spoolDirectory(Path spoolDirectory) {
+      if (spoolDirectory == null) throw new NullPointerException("spoolDirectory == null");
+      this.spoolDirectory = spoolDirectory;
+      return this;
+    }
+
+    /**
+     * Maximum size of the {@link #spoolDirectory(Path) spool}. When full, requests fail as if there
+     * was no spool. Defaults to 1 GiB.
+     */
+    public Builder spoolMaxBytes(long spoolMaxBytes) {
+      if (spoolMaxBytes <= 0) throw new IllegalArgumentException("spoolMaxBytes <= 0");
+      this.spoolMaxBytes = spoolMaxBytes;
+      return this;
+    }
+
+    /**
+     * Maximum requests per second replayed from the {@link #spoolDirectory(Path) spool}, so that
+     * recovering from an outage doesn't compete with new spans. Defaults to 10.
+     */
+    public Builder spoolReplayRate(int spoolReplayRate) {
+      if (spoolReplayRate <= 0 || spoolReplayRate > 1_000_000) {
+        throw new IllegalArgumentException("spoolReplayRate must be between 1 and 1000000");
+      }
+      this.spoolReplayRate = spoolReplayRate;
+      return this;
+    }
+
+    /**
+     * When positive, spans already written within this window are dropped before translation, such
+     * as those redelivered by Kafka or sent again by client retries. Only identical spans are
+     * repeats, so later fragments of a span are still written. Defaults to zero, which writes every
+     * span.
+     *
+     * <p>Written spans are remembered in probabilistic sets, so that memory is bounded. Repeats are
+     * dropped for between half and the whole window.
+     *
+     * @see #dedupMaxSpans(int)
+     */
+    public Builder dedupWindow(long window, TimeUnit unit) {
+      if (window < 0) throw new IllegalArgumentException("dedupWindow < 0");
+      if (unit == null) throw new NullPointerException("unit == null");
+      this.dedupWindowNanos = unit.toNanos(window);
+      return this;
+    }
+
+    /**
+     * Expected spans written per {@link #dedupWindow(long, TimeUnit) dedup window}, which sizes its
+     * memory at about 3.6 bytes per span. Beyond this, more unique spans are mistaken for repeats.
+     * Defaults to one million.
+     */
+    public Builder dedupMaxSpans(int dedupMaxSpans) {
+      if (dedupMaxSpans <= 0) throw new IllegalArgumentException("dedupMaxSpans <= 0");
+      this.dedupMaxSpans = dedupMaxSpans;
+      return this;
+    }
+
+    /**
+     * When positive, spans are buffered up to this long, and fragments reported with the same trace
+     * and span ID, such as a start and a finish, are merged before translation. This writes fewer,
+     * complete spans. Defaults to zero, which writes each fragment as received.
+     *
+     * <p>Each call completes when the request carrying its merged spans completes.
+     *
+     * @see #mergeMaxSpans(int)
+     */
+    public Builder mergeLinger(long linger, TimeUnit unit) {
+      if (linger < 0) throw new IllegalArgumentException("mergeLinger < 0");
+      if (unit == null) throw new NullPointerException("unit == null");
+      this.mergeLingerNanos = unit.toNanos(linger);
+      return this;
+    }
+
+    /**
+     * Maximum spans buffered for {@link #mergeLinger(long, TimeUnit) merging}. Reaching this sends
+     * the buffer early. Defaults to 10000.
+     */
+    public Builder mergeMaxSpans(int mergeMaxSpans) {
+      if (mergeMaxSpans <= 0) throw new IllegalArgumentException("mergeMaxSpans <= 0");
+      this.mergeMaxSpans = mergeMaxSpans;
+      return this;
+    }
+
+    /**
+     * Fraction of traces written, decided by a hash of the trace ID. As the decision only depends
+     * on the trace ID, collectors behind a load balancer keep or drop the same traces without
+     * coordinating. Spans dropped are neither translated nor buffered. Defaults to 1.0, which
+     * writes every trace.
+     */
+    public Builder sampleRate(float sampleRate) {
+      if (!(sampleRate >= 0.0f && sampleRate <= 1.0f)) { // also rejects NaN
+        throw new IllegalArgumentException("sampleRate must be between 0.0 and 1.0");
+      }
+      this.sampleRate = sampleRate;
+      return this;
+    }
+
+    /**
+     * When positive, limits the spans per second written for each local service name, so that one
+     * service can't use up the project's quota. Spans over the limit are dropped before translation.
+     * Defaults to zero, which only limits services with an {@link #serviceRateLimit(String, int)
+     * override}.
+     *
+     * <p>Up to {@link #serviceRateLimitMaxServices(int)} services are limited separately. Further
+     * services share one limit.
+     */
+    public Builder serviceRateLimit(int spansPerSecond) {
+      if (spansPerSecond < 0) throw new IllegalArgumentException("serviceRateLimit < 0");
+      this.serviceRateLimit = spansPerSecond;
+      return this;
+    }
+
+    /** Overrides the {@link #serviceRateLimit(int) default rate limit} for one service. */
+    public Builder serviceRateLimit(String serviceName, int spansPerSecond) {
+      if (serviceName == null) throw new NullPointerException("serviceName == null");
+      if (spansPerSecond <= 0) throw new IllegalArgumentException("spansPerSecond <= 0");
+      // Span lower-cases service names
+      this.serviceRateLimits.put(serviceName.toLowerCase(Locale.ROOT), spansPerSecond);
+      return this;
+    }
+
+    /**
+     * Maximum services with their own {@link #serviceRateLimit(int) default rate limit}, which
+     * bounds memory. Defaults to 1000.
+     */
+    public Builder serviceRateLimitMaxServices(int serviceRateLimitMaxServices) {
+      if (serviceRateLimitMaxServices <= 0) {
+        throw new IllegalArgumentException("serviceRateLimitMaxServices <= 0");
+      }
+      this.serviceRateLimitMaxServices = serviceRateLimitMaxServices;
+      return this;
+    }
+
+    /**
+     * When positive, spans are buffered by trace until none arrived for this long, and only traces
+     * kept by a policy are written: those with an error, those {@link
+     * #tailSamplingLatencyThreshold(long, TimeUnit) slow enough} and a {@link
+     * #tailSamplingBaselineRate(int) baseline} of others. Defaults to zero, which writes every
+     * trace.
+     *
+     * <p>Calls complete once their spans are buffered. Spans arriving after their trace was decided
+     * follow the same decision.
+     *
+     * @see #tailSamplingMaxSpans(int)
+     * @see #tailSamplingMaxSpansPerTrace(int)
+     */
+    public Builder tailSamplingIdle(long idle, TimeUnit unit) {
+      if (idle < 0) throw new IllegalArgumentException("tailSamplingIdle < 0");
+      if (unit == null) throw new NullPointerException("unit == null");
+      this.tailSamplingIdleNanos = unit.toNanos(idle);
+      return this;
+    }
+
+    /**
+     * When positive, {@link #tailSamplingIdle(long, TimeUnit) tail sampling} keeps traces with a
+     * span lasting at least this long. Defaults to zero, which doesn't keep traces for latency.
+     */
+    public Builder tailSamplingLatencyThreshold(long threshold, TimeUnit unit) {
+      if (threshold < 0) throw new IllegalArgumentException("tailSamplingLatencyThreshold < 0");
+      if (unit == null) throw new NullPointerException("unit == null");
+      this.tailSamplingLatencyNanos = unit.toNanos(threshold);
+      return this;
+    }
+
+    /**
+     * Traces per second {@link #tailSamplingIdle(long, TimeUnit) tail sampling} keeps regardless of
+     * errors or latency, so that healthy requests are still represented. Zero keeps none. Defaults
+     * to 10.
+     */
+    public Builder tailSamplingBaselineRate(int tailSamplingBaselineRate) {
+      if (tailSamplingBaselineRate < 0) {
+        throw new IllegalArgumentException("tailSamplingBaselineRate < 0");
+      }
+      this.tailSamplingBaselineRate = tailSamplingBaselineRate;
+      return this;
+    }
+
+    /**
+     * Maximum spans buffered for {@link #tailSamplingIdle(long, TimeUnit) tail sampling}. Over this,
+     * the oldest traces are decided instead of waiting for them to go idle. Defaults to 100000.
+     */
+    public Builder tailSamplingMaxSpans(int tailSamplingMaxSpans) {
+      if (tailSamplingMaxSpans <= 0) {
+        throw new IllegalArgumentException("tailSamplingMaxSpans <= 0");
+      }
+      this.tailSamplingMaxSpans = tailSamplingMaxSpans;
+      return this;
+    }
+
+    /**
+     * Maximum spans buffered per trace for {@link #tailSamplingIdle(long, TimeUnit) tail sampling}.
+     * A trace reaching this is decided without waiting for it to be idle. Defaults to 1000.
+     */
+    public Builder tailSamplingMaxSpansPerTrace(int tailSamplingMaxSpansPerTrace) {
+      if (tailSamplingMaxSpansPerTrace <= 0) {
+        throw new IllegalArgumentException("tailSamplingMaxSpansPerTrace <= 0");
+      }
+      this.tailSamplingMaxSpansPerTrace = tailSamplingMaxSpansPerTrace;
+      return this;
+    }
+
+    /**
+     * How long {@link #close()} waits for buffered spans and in-flight requests to complete before
+     * closing connections, for example during a rolling deploy. Once closing, {@link
+     * #spanConsumer()} fails new calls. Spans not written by then are lost, and their count logged.
+     * Defaults to zero, which closes connections without waiting.
+     */
+    public Builder closeTimeout(long timeout, TimeUnit unit) {
+      if (timeout < 0) throw new IllegalArgumentException("closeTimeout < 0");
+      if (unit == null) throw new NullPointerException("unit == null");
+      this.closeTimeoutNanos = unit.toNanos(timeout);
+      return this;
+    }
+
+    /**
+     * Records metrics of writes to Stackdriver Trace, named {@code zipkin_storage.stackdriver.*}:
+     * translation time, request sizes, request latency by gRPC status and in-flight requests.
+     * Defaults to not recording metrics.
+     */
+    public Builder meterRegistry(MeterRegistry meterRegistry) {
+      if (meterRegistry == null) throw new NullPointerException("meterRegistry == null");
+      this.meterRegistry = meterRegistry;
+      return this;
+    }
+
     @Override public StackdriverStorage build() {
       if (projectId == null) throw new NullPointerException("projectId == null");
       return new StackdriverStorage(this);
@@ -110,22 +525,128 @@ public final class StackdriverStorage extends StorageComponent {
   }
 
   final ClientFactory clientFactory;
-  final UnaryGrpcClient grpcClient;
+  final WebClient client;
   final String projectId;
   final BatchWriteSpansCall healthcheckCall;
+  final PassiveHealthCheck healthCheck;
+  final StackdriverSpanConsumer spanConsumer;
+  final CoalescingSpanConsumer coalescingSpanConsumer; // null when not coalescing
+  final ProjectRoutingSpanConsumer projectRoutingSpanConsumer; // null when using one project
+  final OffloadingSpanConsumer offloadingSpanConsumer; // null without worker threads
+  final DedupingSpanConsumer dedupingSpanConsumer; // null when not deduplicating
+  final MergingSpanConsumer mergingSpanConsumer; // null when not merging
+  final TailSamplingSpanConsumer tailSamplingSpanConsumer; // null when not tail sampling
+  final SpanConsumer head; // the outermost stage
+  final StorageMetrics metrics;
+  final Spool spool; // null when not spooling
+  // Runs linger and sweep timers, off the client's event loops. Null when no stage needs one
+  final ScheduledExecutorService scheduler;
+  final long closeTimeoutNanos;
+  volatile boolean closeCalled;
 
   StackdriverStorage(Builder builder) {
     this.clientFactory = builder.clientFactory;
-    this.grpcClient = new UnaryGrpcClient(WebClient.builder(builder.url)
-        .decorator(SetGrpcContentType::new)
+    closeTimeoutNanos = builder.closeTimeoutNanos;
+    metrics = new StorageMetrics(builder.meterRegistry);
+    healthCheck = new PassiveHealthCheck(builder.healthCheckTtlNanos);
+    WebClientBuilder clientBuilder = WebClient.builder(builder.url)
         .factory(builder.clientFactory)
         .options(builder.clientOptions)
-        .build());
+        .decorator(metrics::decorate)
+        .decorator(healthCheck::decorate);
+    if (builder.maxConcurrentRequests > 0) {
+      AimdLimit limit = new AimdLimit(builder.maxConcurrentRequests);
+      clientBuilder.decorator(delegate -> new ConcurrencyLimitingClient(delegate, limit));
+    }
+    this.client = clientBuilder.build();
     projectId = builder.projectId;
-    BatchWriteSpansRequest healthcheckRequest = BatchWriteSpansRequest.newBuilder()
-        .setName("projects/" + builder.projectId)
-        .build();
-    healthcheckCall = new BatchWriteSpansCall(grpcClient, healthcheckRequest);
+    healthcheckCall = new BatchWriteSpansCall(client,
+        StackdriverSpanConsumer.encodeProjectName("projects/" + builder.projectId),
+        Collections.emptyList(), metrics, null);
+    if (builder.spoolDirectory != null) {
+      try {
+        spool = new Spool(builder.spoolDirectory, builder.spoolMaxBytes, builder.spoolReplayRate,
+            this::isOverCapacity, metrics);
+      } catch (IOException e) {
+        throw new IllegalStateException("Unable to open spool in " + builder.spoolDirectory, e);
+      }
+      spool.start(client, healthCheck, healthcheckCall);
+    } else {
+      spool = null;
+    }
+    scheduler = builder.coalesceLingerNanos > 0 || builder.mergeLingerNanos > 0
+        || builder.tailSamplingIdleNanos > 0
+        ? Executors.newSingleThreadScheduledExecutor(
+        ThreadFactories.newThreadFactory("zipkin-stackdriver-scheduler", true))
+        : null;
+    spanConsumer = new StackdriverSpanConsumer(client, projectId, builder.maxSpansPerRequest,
+        builder.maxBytesPerRequest, builder.splitParallelism, metrics, spool);
+    // Each stage wraps the one before it, so the last built sees spans first.
+    SpanConsumer head = spanConsumer;
+    coalescingSpanConsumer = builder.coalesceLingerNanos > 0
+        ? new CoalescingSpanConsumer(spanConsumer, builder.coalesceLingerNanos, scheduler)
+        : null;
+    if (coalescingSpanConsumer != null) head = coalescingSpanConsumer;
+    projectRoutingSpanConsumer =
+        builder.projectIdTag != null || !builder.serviceProjectIds.isEmpty()
+            ? new ProjectRoutingSpanConsumer(projectId, head, builder.projectIdTag,
+            new LinkedHashMap<>(builder.serviceProjectIds), this::newProjectConsumer,
+            builder.maxProjects, metrics)
+            : null;
+    if (projectRoutingSpanConsumer != null) head = projectRoutingSpanConsumer;
+    offloadingSpanConsumer = builder.workerThreads > 0
+        ? new OffloadingSpanConsumer(head, builder.workerThreads, builder.workerQueueSize, metrics)
+        : null;
+    if (offloadingSpanConsumer != null) head = offloadingSpanConsumer;
+    dedupingSpanConsumer = builder.dedupWindowNanos > 0
+        ? new DedupingSpanConsumer(head, builder.dedupWindowNanos, builder.dedupMaxSpans, metrics)
+        : null;
+    if (dedupingSpanConsumer != null) head = dedupingSpanConsumer;
+    // Merge first, so that fragments are deduplicated as one span, not dropped as repeats
+    mergingSpanConsumer = builder.mergeLingerNanos > 0
+        ? new MergingSpanConsumer(head, builder.mergeLingerNanos, builder.mergeMaxSpans, scheduler,
+        metrics)
+        : null;
+    if (mergingSpanConsumer != null) head = mergingSpanConsumer;
+    tailSamplingSpanConsumer = builder.tailSamplingIdleNanos > 0
+        ? new TailSamplingSpanConsumer(head, tailSamplingPolicies(builder),
+        builder.tailSamplingIdleNanos, builder.tailSamplingMaxSpans,
+        builder.tailSamplingMaxSpansPerTrace, scheduler, metrics)
+        : null;
+    if (tailSamplingSpanConsumer != null) head = tailSamplingSpanConsumer;
+    if (builder.serviceRateLimit > 0 || !builder.serviceRateLimits.isEmpty()) {
+      head = new RateLimitingSpanConsumer(head, builder.serviceRateLimit,
+          new LinkedHashMap<>(builder.serviceRateLimits), builder.serviceRateLimitMaxServices,
+          metrics);
+    }
+    // Sample by trace ID first, as it is the cheapest way to drop spans
+    if (builder.sampleRate < 1.0f) {
+      head = new TraceIdSamplingSpanConsumer(head, builder.sampleRate, metrics);
+    }
+    this.head = head;
+  }
+
+  /** Returns the base stages for a project other than the default, configured the same. */
+  SpanConsumer newProjectConsumer(String projectId) {
+    StackdriverSpanConsumer result = new StackdriverSpanConsumer(client, projectId,
+        spanConsumer.maxSpansPerRequest, spanConsumer.maxBytesPerRequest,
+        spanConsumer.splitParallelism, metrics, spool);
+    if (coalescingSpanConsumer == null) return result;
+    return new CoalescingSpanConsumer(result, coalescingSpanConsumer.lingerNanos,
+        coalescingSpanConsumer.scheduler);
+  }
+
+  static List<TailSamplingPolicy> tailSamplingPolicies(Builder builder) {
+    List<TailSamplingPolicy> policies = new ArrayList<>();
+    policies.add(TailSamplingPolicy.errors());
+    if (builder.tailSamplingLatencyNanos > 0) {
+      policies.add(
+          TailSamplingPolicy.latency(builder.tailSamplingLatencyNanos, TimeUnit.NANOSECONDS));
+    }
+    if (builder.tailSamplingBaselineRate > 0) {
+      policies.add(TailSamplingPolicy.rateLimited(builder.tailSamplingBaselineRate));
+    }
+    return policies;
   }
 
   @Override public SpanStore spanStore() {
@@ -145,58 +666,115 @@ public final class StackdriverStorage extends StorageComponent {
   }
 
   @Override public SpanConsumer spanConsumer() {
-    return new StackdriverSpanConsumer(grpcClient, projectId);
+    return closeCalled ? CLOSED : head;
   }
 
   /**
-   * Sends a malformed call to Stackdriver Trace to validate service health.
+   * Returns the health of Stackdriver Trace, from the outcome of the last request. This never
+   * blocks: when no request completed within {@link Builder#healthCheckTtl(long, TimeUnit)}, this
+   * returns the last result and sends a malformed call in the background, so that the next check
+   * is up-to-date. A validation error in response means the service is healthy.
    *
-   * @return successful status if Stackdriver Trace API responds with expected validation error (or
-   * happens to respond as success -- unexpected but okay); otherwise returns error status wrapping
-   * the underlying exception.
+   * <p>Until the first request completes, this returns OK.
    */
-  // Same code as zipkin2.reporter.stackdriver.StackDriverSender.check() ported to armeria
   @Override public CheckResult check() {
+    return healthCheck.check(healthcheckCall);
+  }
+
+  /**
+   * Sends buffered spans, then waits up to {@link Builder#closeTimeout(long, TimeUnit)} for them
+   * and any in-flight requests to be written or spooled before closing connections. Spans still
+   * queued or in flight at the deadline are lost, which is logged as a warning.
+   */
+  @Override public void close() {
+    if (closeCalled) return;
+    closeCalled = true;
+    long deadline = System.nanoTime() + closeTimeoutNanos;
+    // Flush stages outermost first, as each flush sends to the next
+    if (tailSamplingSpanConsumer != null) tailSamplingSpanConsumer.decideAll();
+    if (mergingSpanConsumer != null) mergingSpanConsumer.flushAll();
     try {
-      healthcheckCall.clone().execute();
-    } catch (ArmeriaStatusException ase) {
-      if (ase.getCode() == 3 /* INVALID_ARGUMENT */) {
-        return CheckResult.OK;
+      if (offloadingSpanConsumer != null) {
+        offloadingSpanConsumer.close();
+        offloadingSpanConsumer.awaitTermination(remainingNanos(deadline));
       }
-      return CheckResult.failed(ase);
-    } catch (Throwable t) {
-      Call.propagateIfFatal(t);
-      return CheckResult.failed(t);
+      flushCoalesced();
+      awaitWrites(deadline);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt(); // stop waiting, but still close
     }
-
-    // Currently the rpc throws a validation exception on malformed input, which we handle above.
-    // If we get here despite the known malformed input, the implementation changed and we need to
-    // update this check. It's unlikely enough that we can wait and see.
-    return CheckResult.OK;
+    flushCoalesced(); // in case worker threads were still running
+    long lost = metrics.spansInFlight.get();
+    if (offloadingSpanConsumer != null) lost += offloadingSpanConsumer.queuedSpans.get();
+    if (lost > 0) {
+      LOG.log(Level.WARNING, "Closed with {0} spans not written after waiting {1}ms",
+          new Object[] {lost, TimeUnit.NANOSECONDS.toMillis(closeTimeoutNanos)});
+    }
+    if (scheduler != null) scheduler.shutdownNow(); // buffers were flushed above
+    if (spool != null) spool.close();
+    clientFactory.close();
+    metrics.close();
   }
 
-  @Override public void close() {
-    clientFactory.close();
+  void flushCoalesced() {
+    if (projectRoutingSpanConsumer != null) {
+      projectRoutingSpanConsumer.flushAll(); // includes the default project's
+    } else if (coalescingSpanConsumer != null) {
+      coalescingSpanConsumer.flushAll();
+    }
   }
 
-  @Override public boolean isOverCapacity(Throwable e) {
-    return super.isOverCapacity(e); // TODO
+  /** Waits until no writes are in flight, or the deadline passes. */
+  void awaitWrites(long deadline) throws InterruptedException {
+    // Coalesced spans may still be flushed by the scheduler, adding writes while waiting
+    while (!metrics.writesInFlight.isEmpty()) {
+      CompletableFuture<?>[] writes = metrics.writesInFlight.toArray(new CompletableFuture<?>[0]);
+      try {
+        CompletableFuture.allOf(writes).get(remainingNanos(deadline), TimeUnit.NANOSECONDS);
+      } catch (ExecutionException e) {
+        // Failed writes are handled by their callers: they are no longer in flight
+      } catch (java.util.concurrent.TimeoutException e) {
+        return;
+      }
+    }
   }
 
-  @Override public final String toString() {
-    return "StackdriverStorage{" + projectId + "}";
+  static long remainingNanos(long deadline) {
+    return Math.max(0L, deadline - System.nanoTime());
   }
 
-  // Many Google services do not support the standard application/grpc+proto header.
-  static final class SetGrpcContentType extends SimpleDecoratingHttpClient {
-    SetGrpcContentType(HttpClient client) {
-      super(client);
+  /**
+   * Returns true when Stackdriver Trace pushes back or can't be reached in time, so that collectors
+   * throttle: {@code RESOURCE_EXHAUSTED}, {@code UNAVAILABLE} and {@code DEADLINE_EXCEEDED}
+   * statuses, requests never sent to the server, timeouts and requests rejected by {@link
+   * Builder#maxConcurrentRequests(int)} or {@link Builder#workerQueueSize(int)}. Causes are checked
+   * too, as errors of split calls are wrapped.
+   */
+  @Override public boolean isOverCapacity(Throwable e) {
+    // Bounded in case of cyclic causes
+    for (int depth = 0; e != null && depth < 8; e = e.getCause(), depth++) {
+      if (super.isOverCapacity(e)) return true;
+      if (e instanceof ArmeriaStatusException) {
+        switch (((ArmeriaStatusException) e).getCode()) {
+          case 4: // DEADLINE_EXCEEDED
+          case 8: // RESOURCE_EXHAUSTED
+          case 14: // UNAVAILABLE
+            return true;
+          default:
+            return false;
+        }
+      }
+      if (e instanceof ConcurrencyLimitExceededException
+          || e instanceof UnprocessedRequestException
+          || e instanceof TimeoutException
+          || e instanceof java.util.concurrent.TimeoutException) {
+        return true;
+      }
     }
+    return false;
+  }
 
-    @Override
-    public HttpResponse execute(ClientRequestContext ctx, HttpRequest req) throws Exception {
-      ctx.addAdditionalRequestHeader(HttpHeaderNames.CONTENT_TYPE, "application/grpc");
-      return unwrap().execute(ctx, req);
-    }
+  @Override public final String toString() {
+    return "StackdriverStorage{" + projectId + "}";
   }
 }
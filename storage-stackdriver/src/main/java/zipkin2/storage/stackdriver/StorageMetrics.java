@@ -0,0 +1,161 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+import com.linecorp.armeria.client.ClientRequestContext;
+import com.linecorp.armeria.client.HttpClient;
+import com.linecorp.armeria.client.SimpleDecoratingHttpClient;
+import com.linecorp.armeria.client.UnprocessedRequestException;
+import com.linecorp.armeria.common.HttpRequest;
+import com.linecorp.armeria.common.HttpResponse;
+import com.linecorp.armeria.common.grpc.protocol.GrpcHeaderNames;
+import com.linecorp.armeria.common.logging.RequestLog;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Micrometer metrics of the write path, named {@code zipkin_storage.stackdriver.*}. Without a
+ * configured registry, meters are registered to an empty composite registry, so are no-op.
+ */
+final class StorageMetrics {
+  static final String PREFIX = "zipkin_storage.stackdriver.";
+  // Names of gRPC status codes, indexed by value
+  static final String[] STATUS_NAMES = {
+      "OK", "CANCELLED", "UNKNOWN", "INVALID_ARGUMENT", "DEADLINE_EXCEEDED", "NOT_FOUND",
+      "ALREADY_EXISTS", "PERMISSION_DENIED", "RESOURCE_EXHAUSTED", "FAILED_PRECONDITION", "ABORTED",
+      "OUT_OF_RANGE", "UNIMPLEMENTED", "INTERNAL", "UNAVAILABLE", "DATA_LOSS", "UNAUTHENTICATED"
+  };
+
+  final MeterRegistry registry;
+  final Timer translation;
+  final DistributionSummary requestBytes, requestSpans;
+  final AtomicInteger activeRequests = new AtomicInteger();
+  final AtomicLong spansInFlight = new AtomicLong(); // including unsent requests of split calls
+  final Set<CompletableFuture<Void>> writesInFlight = ConcurrentHashMap.newKeySet();
+  // Lazily registered, as each timer publishes a histogram. Racing is fine: register is idempotent.
+  final Timer[] requestsByCode = new Timer[STATUS_NAMES.length];
+  final ConcurrentHashMap<String, Timer> requestsByException = new ConcurrentHashMap<>();
+  final List<Meter> gauges = new CopyOnWriteArrayList<>();
+
+  StorageMetrics(MeterRegistry registry) {
+    this.registry = registry != null ? registry : new CompositeMeterRegistry();
+    translation = Timer.builder(PREFIX + "translation")
+        .description("Time to translate the spans of one accept call")
+        .register(this.registry);
+    requestBytes = DistributionSummary.builder(PREFIX + "request.bytes")
+        .description("Size of BatchWriteSpans request messages")
+        .baseUnit("bytes")
+        .register(this.registry);
+    requestSpans = DistributionSummary.builder(PREFIX + "request.spans")
+        .description("Spans in BatchWriteSpans requests")
+        .register(this.registry);
+    gauge(PREFIX + "requests.active", "Requests not yet completed", activeRequests,
+        AtomicInteger::get);
+    gauge(PREFIX + "spans.in_flight", "Spans in requests not yet completed", spansInFlight,
+        AtomicLong::get);
+  }
+
+  /**
+   * Registers a gauge which strongly references its object. Gauges are removed on {@link #close()},
+   * as otherwise the registry would keep reporting this instance's values to a storage built later.
+   */
+  <T> void gauge(String name, String description, T obj, ToDoubleFunction<T> f) {
+    track(Gauge.builder(name, obj, f).description(description).strongReference(true)
+        .register(registry));
+  }
+
+  /** Keeps the write until it completes, so that {@code close} can wait for it. */
+  void trackWrite(CompletableFuture<Void> write) {
+    writesInFlight.add(write);
+    write.whenComplete((unused, t) -> writesInFlight.remove(write));
+  }
+
+  /** Adds a gauge registered by the caller, to be removed on {@link #close()}. */
+  void track(Meter gauge) {
+    gauges.add(gauge);
+  }
+
+  void close() {
+    for (Meter gauge : gauges) registry.remove(gauge);
+    gauges.clear();
+  }
+
+  Timer requestTimer(String status) {
+    return Timer.builder(PREFIX + "requests")
+        .description("Latency of BatchWriteSpans requests")
+        .tag("status", status)
+        .publishPercentileHistogram()
+        .register(registry);
+  }
+
+  /** Records the latency of each request, tagged by its gRPC status or exception. */
+  HttpClient decorate(HttpClient delegate) {
+    return new SimpleDecoratingHttpClient(delegate) {
+      @Override public HttpResponse execute(ClientRequestContext ctx, HttpRequest req)
+          throws Exception {
+        activeRequests.incrementAndGet();
+        long startNanos = System.nanoTime();
+        ctx.log().whenComplete().thenAccept(log -> {
+          activeRequests.decrementAndGet();
+          requests(log).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        });
+        return unwrap().execute(ctx, req);
+      }
+    };
+  }
+
+  /** Returns the timer of the gRPC status code, or the exception if there was none. */
+  Timer requests(RequestLog log) {
+    String status = log.responseTrailers().get(GrpcHeaderNames.GRPC_STATUS);
+    if (status == null) status = log.responseHeaders().get(GrpcHeaderNames.GRPC_STATUS);
+    if (status != null) return requests(code(status));
+    Throwable cause = log.responseCause();
+    if (cause instanceof UnprocessedRequestException && cause.getCause() != null) {
+      cause = cause.getCause();
+    }
+    if (cause == null) return requests(2); // UNKNOWN
+    return requestsByException.computeIfAbsent(cause.getClass().getSimpleName(),
+        this::requestTimer);
+  }
+
+  Timer requests(int code) {
+    Timer timer = requestsByCode[code];
+    if (timer == null) requestsByCode[code] = timer = requestTimer(STATUS_NAMES[code]);
+    return timer;
+  }
+
+  /** Returns the gRPC status code, or UNKNOWN (2) when it isn't valid. */
+  static int code(String status) {
+    try {
+      int code = Integer.parseInt(status);
+      if (code >= 0 && code < STATUS_NAMES.length) return code;
+    } catch (NumberFormatException e) {
+      // fall through
+    }
+    return 2;
+  }
+}
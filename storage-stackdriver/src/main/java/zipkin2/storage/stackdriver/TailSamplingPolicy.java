@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import zipkin2.Span;
+
+/** Decides whether to keep a trace, once {@link TailSamplingSpanConsumer} has buffered it. */
+abstract class TailSamplingPolicy {
+  /** Keeps traces with a span tagged "error". */
+  static TailSamplingPolicy errors() {
+    return new TailSamplingPolicy("error") {
+      @Override boolean keep(List<Span> trace) {
+        for (int i = 0, length = trace.size(); i < length; i++) {
+          if (trace.get(i).tags().containsKey("error")) return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /** Keeps traces with a span lasting at least this long. */
+  static TailSamplingPolicy latency(long threshold, TimeUnit unit) {
+    long thresholdMicros = unit.toMicros(threshold);
+    return new TailSamplingPolicy("latency") {
+      @Override boolean keep(List<Span> trace) {
+        for (int i = 0, length = trace.size(); i < length; i++) {
+          if (trace.get(i).durationAsLong() >= thresholdMicros) return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /** Keeps up to this many traces per second, regardless of their spans. */
+  static TailSamplingPolicy rateLimited(int tracesPerSecond) {
+    long intervalNanos = TimeUnit.SECONDS.toNanos(1) / tracesPerSecond;
+    AtomicLong nextNanos = new AtomicLong(System.nanoTime());
+    return new TailSamplingPolicy("baseline") {
+      @Override boolean keep(List<Span> trace) {
+        long now = System.nanoTime();
+        while (true) {
+          long next = nextNanos.get();
+          if (now - next < 0) return false;
+          // Permits unused for over a second are dropped, which bounds bursts
+          long updated = Math.max(next, now - TimeUnit.SECONDS.toNanos(1)) + intervalNanos;
+          if (nextNanos.compareAndSet(next, updated)) return true;
+        }
+      }
+    };
+  }
+
+  /** Used as a metric tag. */
+  final String name;
+
+  TailSamplingPolicy(String name) {
+    this.name = name;
+  }
+
+  abstract boolean keep(List<Span> trace);
+
+  @Override public String toString() {
+    return "TailSamplingPolicy{" + name + "}";
+  }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.Span;
+import zipkin2.storage.SpanConsumer;
+
+/**
+ * Buffers spans by trace until no span of the trace arrived for {@link #idleNanos}, then writes the
+ * trace only if a {@link TailSamplingPolicy} keeps it. Later spans of a decided trace follow the
+ * same decision, while it is remembered.
+ *
+ * <p>A trace is decided early when it reaches {@link #maxSpansPerTrace}. When over {@link
+ * #maxSpans} are buffered in total, the oldest traces are decided early. So, memory is bounded even
+ * when traces never go idle.
+ *
+ * <p>Calls complete once their spans are buffered, as writes happen later. Failed writes are logged
+ * and their spans counted.
+ */
+final class TailSamplingSpanConsumer implements SpanConsumer {
+  static final Logger LOG = Logger.getLogger(TailSamplingSpanConsumer.class.getName());
+
+  final SpanConsumer delegate;
+  final List<TailSamplingPolicy> policies;
+  final long idleNanos;
+  final int maxSpans, maxSpansPerTrace;
+  final ConcurrentHashMap<String, TraceBuffer> traces = new ConcurrentHashMap<>();
+  // Buffers in order of creation, so the oldest can be decided first. Decided ones are swept.
+  final ConcurrentLinkedQueue<TraceBuffer> oldest = new ConcurrentLinkedQueue<>();
+  final AtomicInteger bufferedSpans = new AtomicInteger();
+  final Decisions decisions; // recently decided traces, keyed like traces
+  final Counter[] kept; // indexed like policies
+  final Counter dropped, droppedSpans, failedSpans;
+  final ScheduledFuture<?> sweep;
+
+  TailSamplingSpanConsumer(SpanConsumer delegate, List<TailSamplingPolicy> policies,
+      long idleNanos, int maxSpans, int maxSpansPerTrace, ScheduledExecutorService scheduler,
+      StorageMetrics metrics) {
+    this.delegate = delegate;
+    this.policies = policies;
+    this.idleNanos = idleNanos;
+    this.maxSpans = maxSpans;
+    this.maxSpansPerTrace = maxSpansPerTrace;
+    // Bounded by the same count as spans, as a decision is smaller than any span
+    this.decisions = new Decisions(maxSpans);
+
+    MeterRegistry registry = metrics.registry;
+    String prefix = StorageMetrics.PREFIX + "tail_sampling.";
+    kept = new Counter[policies.size()];
+    for (int i = 0; i < kept.length; i++) {
+      kept[i] = decisionCounter(registry, "kept", policies.get(i).name);
+    }
+    dropped = decisionCounter(registry, "dropped", "none");
+    droppedSpans = Counter.builder(prefix + "spans.dropped")
+        .description("Spans dropped as their trace wasn't sampled")
+        .register(registry);
+    failedSpans = Counter.builder(prefix + "spans.failed")
+        .description("Spans of sampled traces which failed to write")
+        .register(registry);
+    metrics.gauge(prefix + "buffered.spans", "Spans waiting for a sampling decision",
+        bufferedSpans, AtomicInteger::get);
+    metrics.gauge(prefix + "buffered.traces", "Traces waiting for a sampling decision", traces,
+        Map::size);
+
+    long period = Math.max(1, idleNanos / 2);
+    sweep = scheduler.scheduleWithFixedDelay(this::decideIdle, period, period,
+        TimeUnit.NANOSECONDS);
+  }
+
+  static Counter decisionCounter(MeterRegistry registry, String decision, String policy) {
+    return Counter.builder(StorageMetrics.PREFIX + "tail_sampling.traces")
+        .description("Traces decided, by decision and the policy which kept them")
+        .tag("decision", decision)
+        .tag("policy", policy)
+        .register(registry);
+  }
+
+  @Override public Call<Void> accept(List<Span> spans) {
+    if (spans.isEmpty()) return Call.create(null);
+    return new BufferCall(this, spans);
+  }
+
+  void add(List<Span> spans) {
+    List<Span> late = null; // spans of traces already kept
+    for (int i = 0, length = spans.size(); i < length; i++) {
+      Span span = spans.get(i);
+      String key = key(span);
+      Boolean decision;
+      TraceBuffer buffer = null;
+      while (true) {
+        decision = decisions.get(key);
+        if (decision != null) break;
+        buffer = traces.computeIfAbsent(key, this::newBuffer);
+        if (buffer.add(span)) break; // otherwise, decided meanwhile: retry with its decision
+      }
+      if (decision != null) {
+        if (decision) {
+          if (late == null) late = new ArrayList<>();
+          late.add(span);
+        } else {
+          droppedSpans.increment();
+        }
+        continue;
+      }
+      int total = bufferedSpans.incrementAndGet();
+      if (buffer.size() >= maxSpansPerTrace) {
+        decide(buffer);
+      } else if (total > maxSpans) {
+        decideOldest();
+      }
+    }
+    if (late != null) write(late);
+  }
+
+  TraceBuffer newBuffer(String key) {
+    TraceBuffer buffer = new TraceBuffer(key);
+    oldest.offer(buffer);
+    return buffer;
+  }
+
+  /** Decides the oldest traces until no more than {@link #maxSpans} are buffered. */
+  void decideOldest() {
+    for (TraceBuffer buffer; bufferedSpans.get() > maxSpans && (buffer = oldest.poll()) != null; ) {
+      decide(buffer); // no-op if already decided
+    }
+  }
+
+  /** Decides idle traces, and forgets decided ones. */
+  void decideIdle() {
+    long now = System.nanoTime();
+    for (Iterator<TraceBuffer> i = oldest.iterator(); i.hasNext(); ) {
+      TraceBuffer buffer = i.next();
+      if (!buffer.isDecided() && now - buffer.updatedNanos < idleNanos) continue;
+      decide(buffer);
+      i.remove();
+    }
+  }
+
+  /** Decides all buffered traces, for example on close. */
+  void decideAll() {
+    sweep.cancel(false);
+    for (TraceBuffer buffer; (buffer = oldest.poll()) != null; ) decide(buffer);
+  }
+
+  void decide(TraceBuffer buffer) {
+    List<Span> spans;
+    int policy = -1;
+    synchronized (buffer) {
+      if (buffer.decided) return;
+      buffer.decided = true;
+      spans = buffer.spans;
+      for (int i = 0, length = policies.size(); i < length; i++) {
+        if (policies.get(i).keep(spans)) {
+          policy = i;
+          break;
+        }
+      }
+      decisions.put(buffer.key, policy != -1);
+    }
+    traces.remove(buffer.key, buffer);
+    bufferedSpans.addAndGet(-spans.size());
+
+    if (policy == -1) {
+      dropped.increment();
+      droppedSpans.increment(spans.size());
+      return;
+    }
+    kept[policy].increment();
+    write(spans);
+  }
+
+  void write(List<Span> spans) {
+    Call<Void> call;
+    try {
+      call = delegate.accept(spans);
+    } catch (RuntimeException | Error e) {
+      Call.propagateIfFatal(e);
+      onWriteError(spans, e);
+      return;
+    }
+    try {
+      call.enqueue(new Callback<Void>() {
+        @Override public void onSuccess(Void value) {
+        }
+
+        @Override public void onError(Throwable t) {
+          onWriteError(spans, t);
+        }
+      });
+    } catch (RuntimeException | Error e) {
+      Call.propagateIfFatal(e); // otherwise, already passed to the callback
+    }
+  }
+
+  /** No caller sees the error, as calls completed when buffered, so log it as a warning. */
+  void onWriteError(List<Span> spans, Throwable t) {
+    failedSpans.increment(spans.size());
+    LOG.log(Level.WARNING, "Unable to write " + spans.size() + " sampled spans: " + t.getMessage(),
+        t);
+  }
+
+  /** Keys on the lower 64 bits, so that 64 and 128-bit IDs of the same trace are grouped. */
+  static String key(Span span) {
+    String traceId = span.traceId();
+    return traceId.length() == 32 ? traceId.substring(16) : traceId;
+  }
+
+  @Override public String toString() {
+    return "TailSamplingSpanConsumer{" + delegate + "}";
+  }
+
+  static final class TraceBuffer {
+    final String key;
+    final List<Span> spans = new ArrayList<>();
+    volatile long updatedNanos;
+    boolean decided; // guarded by this
+
+    TraceBuffer(String key) {
+      this.key = key;
+    }
+
+    synchronized boolean isDecided() {
+      return decided;
+    }
+
+    /** Returns false if the trace was already decided. */
+    synchronized boolean add(Span span) {
+      if (decided) return false;
+      spans.add(span);
+      updatedNanos = System.nanoTime();
+      return true;
+    }
+
+    synchronized int size() {
+      return spans.size();
+    }
+  }
+
+  /**
+   * A bounded map of recent decisions, safe for concurrent use. Over the bound, the oldest decision
+   * is forgotten.
+   */
+  static final class Decisions {
+    final int maxSize;
+    final ConcurrentHashMap<String, Boolean> map = new ConcurrentHashMap<>();
+    final ConcurrentLinkedQueue<String> order = new ConcurrentLinkedQueue<>();
+    final AtomicInteger size = new AtomicInteger();
+
+    Decisions(int maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    Boolean get(String key) {
+      return map.get(key);
+    }
+
+    void put(String key, boolean keep) {
+      if (map.put(key, keep) != null) return; // already ordered
+      order.offer(key);
+      if (size.incrementAndGet() <= maxSize) return;
+      String eldest = order.poll();
+      if (eldest != null && map.remove(eldest) != null) size.decrementAndGet();
+    }
+  }
+
+  static final class BufferCall extends Call.Base<Void> {
+    final TailSamplingSpanConsumer consumer;
+    final List<Span> spans;
+
+    BufferCall(TailSamplingSpanConsumer consumer, List<Span> spans) {
+      this.consumer = consumer;
+      this.spans = spans;
+    }
+
+    @Override protected Void doExecute() {
+      consumer.add(spans);
+      return null;
+    }
+
+    @Override protected void doEnqueue(Callback<Void> callback) {
+      try {
+        consumer.add(spans);
+      } catch (RuntimeException | Error e) {
+        propagateIfFatal(e);
+        callback.onError(e);
+        return;
+      }
+      callback.onSuccess(null);
+    }
+
+    @Override public BufferCall clone() {
+      return new BufferCall(consumer, spans);
+    }
+
+    @Override public String toString() {
+      return "BufferCall{spans=" + spans + "}";
+    }
+  }
+}
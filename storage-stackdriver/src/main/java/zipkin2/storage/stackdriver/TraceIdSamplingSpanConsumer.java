@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+import io.micrometer.core.instrument.Counter;
+import java.util.ArrayList;
+import java.util.List;
+import zipkin2.Call;
+import zipkin2.Span;
+import zipkin2.storage.SpanConsumer;
+
+/**
+ * Drops spans of traces not sampled, deciding by a hash of the lower 64 bits of the trace ID. As
+ * the decision only depends on the trace ID and rate, every collector makes the same one for a
+ * trace without coordinating, so kept traces are complete.
+ *
+ * <p>When all spans are kept, which is the usual case at high rates, nothing is allocated.
+ */
+final class TraceIdSamplingSpanConsumer implements SpanConsumer {
+  final SpanConsumer delegate;
+  final float rate;
+  final long threshold; // unsigned: hashes below this are sampled
+  final Counter dropped;
+
+  TraceIdSamplingSpanConsumer(SpanConsumer delegate, float rate, StorageMetrics metrics) {
+    this.delegate = delegate;
+    this.rate = rate;
+    // 2^64 * rate, computed as 2^63 * rate * 2 to stay in range of a signed long
+    this.threshold = rate >= 1.0f ? -1L : ((long) (rate * (double) Long.MAX_VALUE)) << 1;
+    this.dropped = Counter.builder(StorageMetrics.PREFIX + "sampling.dropped")
+        .description("Spans dropped as their trace ID wasn't sampled")
+        .register(metrics.registry);
+  }
+
+  @Override public Call<Void> accept(List<Span> spans) {
+    int length = spans.size(), firstDropped = 0;
+    while (firstDropped < length && isSampled(spans.get(firstDropped).traceId())) firstDropped++;
+    if (firstDropped == length) return delegate.accept(spans);
+
+    List<Span> sampled = new ArrayList<>(length - 1);
+    for (int i = 0; i < firstDropped; i++) sampled.add(spans.get(i));
+    for (int i = firstDropped + 1; i < length; i++) {
+      Span span = spans.get(i);
+      if (isSampled(span.traceId())) sampled.add(span);
+    }
+    dropped.increment(length - sampled.size());
+    return sampled.isEmpty() ? Call.create(null) : delegate.accept(sampled);
+  }
+
+  boolean isSampled(String traceId) {
+    if (threshold == -1L) return true; // the only hash not below it is also sampled
+    return Long.compareUnsigned(hash(lowerHexToLong(traceId)), threshold) < 0;
+  }
+
+  /** Parses the lower 64 bits of a lower-hex trace ID, which are its last 16 characters. */
+  static long lowerHexToLong(String traceId) {
+    long result = 0;
+    for (int i = Math.max(0, traceId.length() - 16), length = traceId.length(); i < length; i++) {
+      char c = traceId.charAt(i);
+      result = (result << 4) | (c <= '9' ? c - '0' : c - 'a' + 10);
+    }
+    return result;
+  }
+
+  /** Murmur3's finalizer, so that sequential or low-entropy trace IDs are sampled evenly. */
+  static long hash(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  @Override public String toString() {
+    return "TraceIdSamplingSpanConsumer{rate=" + rate + ", " + delegate + "}";
+  }
+}
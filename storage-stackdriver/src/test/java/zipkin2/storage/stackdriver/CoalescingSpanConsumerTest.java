@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+import com.google.devtools.cloudtrace.v2.BatchWriteSpansRequest;
+import com.linecorp.armeria.common.grpc.protocol.ArmeriaStatusException;
+import io.grpc.Status;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import zipkin2.Callback;
+import zipkin2.Span;
+import zipkin2.TestObjects;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.awaitility.Awaitility.await;
+
+public class CoalescingSpanConsumerTest {
+  @Rule public final TraceServiceRule server = new TraceServiceRule();
+
+  StackdriverStorage storage;
+
+  @After public void close() {
+    if (storage != null) storage.close();
+  }
+
+  @Test public void spanConsumer_sharedWhenCoalescing() {
+    storage = server.storageBuilder().coalesceLinger(1, TimeUnit.SECONDS).build();
+
+    assertThat(storage.spanConsumer())
+        .isInstanceOf(CoalescingSpanConsumer.class)
+        .isSameAs(storage.spanConsumer());
+  }
+
+  @Test public void accept_coalescesUntilMaxSpans() {
+    storage = server.storageBuilder()
+        .coalesceLinger(1, TimeUnit.HOURS) // only max spans should trigger a request
+        .maxSpansPerRequest(3)
+        .build();
+
+    List<CompletableFuture<Void>> results = new ArrayList<>();
+    for (int i = 1; i <= 3; i++) {
+      results.add(enqueue(storage.spanConsumer().accept(singletonList(span(i)))));
+    }
+
+    CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).join();
+    assertThat(server.requests).hasSize(1);
+    assertThat(server.requests.get(0).getSpansCount()).isEqualTo(3);
+  }
+
+  @Test public void accept_sendsAfterLinger() throws Exception {
+    storage = server.storageBuilder().coalesceLinger(10, TimeUnit.MILLISECONDS).build();
+
+    storage.spanConsumer().accept(singletonList(span(1))).execute();
+
+    assertThat(server.requests).hasSize(1);
+  }
+
+  @Test public void accept_startsNewRequestWhenCallDoesntFit() {
+    storage = server.storageBuilder()
+        .coalesceLinger(1, TimeUnit.HOURS)
+        .maxSpansPerRequest(2)
+        .build();
+
+    CompletableFuture<Void> first = enqueue(storage.spanConsumer().accept(singletonList(span(1))));
+    CompletableFuture<Void> second =
+        enqueue(storage.spanConsumer().accept(asList(span(2), span(3))));
+
+    CompletableFuture.allOf(first, second).join();
+    assertThat(server.requests).extracting(BatchWriteSpansRequest::getSpansCount)
+        .containsExactly(1, 2);
+  }
+
+  @Test public void accept_failsAllCallersOfARequest() {
+    server.status(Status.RESOURCE_EXHAUSTED);
+    storage = server.storageBuilder()
+        .coalesceLinger(1, TimeUnit.HOURS)
+        .maxSpansPerRequest(2)
+        .build();
+
+    CompletableFuture<Void> first = enqueue(storage.spanConsumer().accept(singletonList(span(1))));
+    CompletableFuture<Void> second = enqueue(storage.spanConsumer().accept(singletonList(span(2))));
+
+    for (CompletableFuture<Void> result : asList(first, second)) {
+      assertThatThrownBy(result::join)
+          .hasCauseInstanceOf(ArmeriaStatusException.class);
+    }
+    assertThat(server.requests).hasSize(1);
+  }
+
+  @Test public void close_sendsQueuedSpans() {
+    storage = server.storageBuilder().coalesceLinger(1, TimeUnit.HOURS).build();
+
+    enqueue(storage.spanConsumer().accept(singletonList(span(1))));
+    storage.close();
+    storage = null;
+
+    await().until(() -> server.requests.size() == 1);
+  }
+
+  @Test public void maxSpansPerRequest_mustBePositive() {
+    assertThatThrownBy(() -> server.storageBuilder().maxSpansPerRequest(0))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  static CompletableFuture<Void> enqueue(zipkin2.Call<Void> call) {
+    CompletableFuture<Void> result = new CompletableFuture<>();
+    call.enqueue(new Callback<Void>() {
+      @Override public void onSuccess(Void value) {
+        result.complete(null);
+      }
+
+      @Override public void onError(Throwable t) {
+        result.completeExceptionally(t);
+      }
+    });
+    return result;
+  }
+
+  static Span span(int id) {
+    return TestObjects.CLIENT_SPAN.toBuilder().id(id).build();
+  }
+}
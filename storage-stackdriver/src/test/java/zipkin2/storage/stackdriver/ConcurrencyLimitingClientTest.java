@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+import com.linecorp.armeria.client.ClientRequestContext;
+import com.linecorp.armeria.common.HttpMethod;
+import com.linecorp.armeria.common.HttpRequest;
+import com.linecorp.armeria.common.HttpResponse;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import zipkin2.storage.stackdriver.ConcurrencyLimitingClient.ConcurrencyLimitExceededException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ConcurrencyLimitingClientTest {
+  static final long RTT = TimeUnit.MILLISECONDS.toNanos(10);
+
+  @Test public void execute_rejectsOverLimit() throws Exception {
+    ConcurrencyLimitingClient client = new ConcurrencyLimitingClient(
+        (ctx, req) -> HttpResponse.streaming(), // never completes
+        new AimdLimit(1));
+
+    HttpRequest first = HttpRequest.of(HttpMethod.POST, "/");
+    client.execute(ClientRequestContext.of(first), first);
+    HttpRequest second = HttpRequest.of(HttpMethod.POST, "/");
+    HttpResponse rejected = client.execute(ClientRequestContext.of(second), second);
+
+    assertThatThrownBy(() -> rejected.aggregate().join())
+        .isInstanceOf(CompletionException.class)
+        .hasCauseInstanceOf(ConcurrencyLimitExceededException.class);
+    assertThat(client.inFlight).hasValue(1);
+  }
+
+  @Test public void limit_growsWhileInUse() {
+    AimdLimit limit = new AimdLimit(100);
+    for (int i = 0; i < 100; i++) limit.onSample(i * RTT, RTT, false, limit.limit());
+
+    assertThat(limit.limit()).isGreaterThan(AimdLimit.INITIAL_LIMIT);
+  }
+
+  @Test public void limit_doesntGrowWhenIdle() {
+    AimdLimit limit = new AimdLimit(100);
+    for (int i = 0; i < 100; i++) limit.onSample(i * RTT, RTT, false, 1);
+
+    assertThat(limit.limit()).isEqualTo(AimdLimit.INITIAL_LIMIT);
+  }
+
+  @Test public void limit_neverExceedsMax() {
+    AimdLimit limit = new AimdLimit(5);
+    for (int i = 0; i < 1000; i++) limit.onSample(i * RTT, RTT, false, limit.limit());
+
+    assertThat(limit.limit()).isEqualTo(5);
+  }
+
+  @Test public void limit_backsOffOncePerRtt() {
+    AimdLimit limit = new AimdLimit(100);
+    limit.onSample(0, RTT, true, 1);
+    limit.onSample(RTT / 2, RTT, true, 1); // same window
+
+    assertThat(limit.limit()).isEqualTo(18); // 20 * 0.9
+
+    limit.onSample(RTT * 2, RTT, true, 1);
+    assertThat(limit.limit()).isEqualTo(16); // 18 * 0.9
+  }
+
+  @Test public void limit_backsOffWhenLatencyDoubles() {
+    AimdLimit limit = new AimdLimit(100);
+    limit.onSample(0, RTT, false, 1);
+    limit.onSample(RTT * 2, RTT * 3, false, 1);
+
+    assertThat(limit.limit()).isEqualTo(18);
+  }
+
+  @Test public void limit_neverBelowOne() {
+    AimdLimit limit = new AimdLimit(100);
+    for (int i = 0; i < 1000; i++) limit.onSample(i * RTT * 2, RTT, true, 1);
+
+    assertThat(limit.limit()).isEqualTo(1);
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.Span;
+import zipkin2.TestObjects;
+import zipkin2.storage.stackdriver.DedupingSpanConsumer.BloomFilter;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class DedupingSpanConsumerTest {
+  SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  List<Span> written = new ArrayList<>();
+  IOException error;
+
+  DedupingSpanConsumer consumer = newConsumer(TimeUnit.MINUTES.toNanos(1));
+
+  DedupingSpanConsumer newConsumer(long windowNanos) {
+    return new DedupingSpanConsumer(spans -> {
+      if (error != null) return new FailedCall(error);
+      written.addAll(spans);
+      return Call.create(null);
+    }, windowNanos, 1000, new StorageMetrics(registry));
+  }
+
+  @Test public void accept_dropsRepeats() throws IOException {
+    consumer.accept(asList(span(1), span(2))).execute();
+    consumer.accept(asList(span(2), span(3))).execute();
+
+    assertThat(written).containsExactly(span(1), span(2), span(3));
+    assertThat(registry.get("zipkin_storage.stackdriver.dedup.suppressed").counter().count())
+        .isEqualTo(1);
+  }
+
+  @Test public void accept_allRepeats() throws IOException {
+    consumer.accept(asList(span(1))).execute();
+    consumer.accept(asList(span(1))).execute();
+
+    assertThat(written).containsExactly(span(1));
+  }
+
+  @Test public void accept_sharedSpanIsDistinct() throws IOException {
+    Span server = span(1).toBuilder().kind(Span.Kind.SERVER).shared(true).build();
+
+    consumer.accept(asList(span(1))).execute();
+    consumer.accept(asList(server)).execute();
+
+    assertThat(written).containsExactly(span(1), server);
+  }
+
+  @Test public void accept_writesLaterFragmentsOfSpan() throws IOException {
+    Span start = span(1).toBuilder().clearAnnotations().duration(null).build();
+    Span annotated = start.toBuilder().addAnnotation(start.timestampAsLong() + 1, "retry").build();
+    Span finish = annotated.toBuilder().duration(10L).build();
+
+    consumer.accept(asList(start)).execute();
+    consumer.accept(asList(annotated)).execute();
+    consumer.accept(asList(finish)).execute();
+
+    assertThat(written).containsExactly(start, annotated, finish);
+  }
+
+  @Test public void accept_retriesFailedWrites() throws IOException {
+    error = new IOException();
+    assertThatThrownBy(consumer.accept(asList(span(1)))::execute).isSameAs(error);
+
+    error = null;
+    consumer.accept(asList(span(1))).execute();
+
+    assertThat(written).containsExactly(span(1));
+  }
+
+  @Test public void accept_forgetsAfterWindow() throws Exception {
+    consumer = newConsumer(TimeUnit.MILLISECONDS.toNanos(10));
+
+    consumer.accept(asList(span(1))).execute();
+    Thread.sleep(20);
+    consumer.accept(asList(span(1))).execute();
+
+    assertThat(written).containsExactly(span(1), span(1));
+  }
+
+  @Test public void bloomFilter_falsePositivesWithinBudget() {
+    int count = 10_000;
+    BloomFilter filter = new BloomFilter(consumer.bits * 10); // sized for 10k spans
+    for (int i = 0; i < count; i++) {
+      filter.put(DedupingSpanConsumer.key(span(i + 1)), consumer.hashes);
+    }
+
+    int falsePositives = 0;
+    for (int i = 0; i < count; i++) {
+      assertThat(filter.mightContain(DedupingSpanConsumer.key(span(i + 1)), consumer.hashes))
+          .isTrue();
+      if (filter.mightContain(DedupingSpanConsumer.key(span(count + i + 1)), consumer.hashes)) {
+        falsePositives++;
+      }
+    }
+    assertThat(falsePositives).isLessThan(count / 100); // expect about 0.1%
+  }
+
+  static Span span(long id) {
+    return TestObjects.CLIENT_SPAN.toBuilder().id(id).build();
+  }
+
+  static final class FailedCall extends Call.Base<Void> {
+    final IOException error;
+
+    FailedCall(IOException error) {
+      this.error = error;
+    }
+
+    @Override protected Void doExecute() throws IOException {
+      throw error;
+    }
+
+    @Override protected void doEnqueue(Callback<Void> callback) {
+      callback.onError(error);
+    }
+
+    @Override public Call<Void> clone() {
+      return new FailedCall(error);
+    }
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import zipkin2.storage.stackdriver.DiskSpool.Record;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DiskSpoolTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test public void appendPeekRemove_oldestFirst() throws IOException {
+    try (DiskSpool spool = new DiskSpool(folder.getRoot().toPath(), 1000, 100)) {
+      assertThat(spool.peek()).isNull();
+      assertThat(spool.oldestTimestampMillis()).isZero();
+
+      for (int i = 1; i <= 10; i++) {
+        assertThat(spool.append(new byte[] {(byte) i, (byte) i}, i)).isTrue();
+      }
+      assertThat(spool.records).isEqualTo(10);
+      assertThat(spool.segments).hasSizeGreaterThan(1); // 100 byte segments
+
+      for (int i = 1; i <= 10; i++) {
+        assertThat(spool.oldestTimestampMillis()).isEqualTo(i);
+        Record record = spool.peek();
+        assertThat(record.request).containsExactly(i, i);
+        spool.remove(record);
+      }
+      assertThat(spool.peek()).isNull();
+      assertThat(spool.sizeInBytes).isZero();
+      assertThat(folder.getRoot().list()).isEmpty();
+    }
+  }
+
+  @Test public void append_rejectsWhenFull() throws IOException {
+    int recordSize = DiskSpool.RECORD_HEADER_LENGTH + 8;
+    try (DiskSpool spool = new DiskSpool(folder.getRoot().toPath(), recordSize * 4, recordSize)) {
+      for (int i = 1; i <= 4; i++) assertThat(spool.append(new byte[8], i)).isTrue();
+
+      assertThat(spool.append(new byte[8], 5)).isFalse();
+      assertThat(spool.records).isEqualTo(4);
+      assertThat(spool.evicted).isZero();
+      assertThat(spool.oldestTimestampMillis()).isEqualTo(1);
+    }
+  }
+
+  @Test public void append_rejectsRequestLargerThanBudget() throws IOException {
+    try (DiskSpool spool = new DiskSpool(folder.getRoot().toPath(), 100, 100)) {
+      assertThat(spool.append(new byte[100], 1)).isFalse();
+      assertThat(spool.records).isZero();
+    }
+  }
+
+  @Test public void remove_ignoresRemovedRecord() throws IOException {
+    int recordSize = DiskSpool.RECORD_HEADER_LENGTH + 8;
+    try (DiskSpool spool = new DiskSpool(folder.getRoot().toPath(), recordSize * 2, recordSize)) {
+      spool.append(new byte[8], 1);
+      spool.append(new byte[8], 2);
+      Record record = spool.peek();
+
+      spool.remove(record);
+      spool.remove(record);
+
+      assertThat(spool.records).isEqualTo(1);
+      assertThat(spool.oldestTimestampMillis()).isEqualTo(2);
+    }
+  }
+
+  @Test public void recover_evictsOldestWhenOverBudget() throws IOException {
+    Path directory = folder.getRoot().toPath();
+    int recordSize = DiskSpool.RECORD_HEADER_LENGTH + 8;
+    try (DiskSpool spool = new DiskSpool(directory, recordSize * 4, recordSize)) {
+      for (int i = 1; i <= 4; i++) spool.append(new byte[8], i);
+    }
+
+    try (DiskSpool spool = new DiskSpool(directory, recordSize * 2, recordSize)) {
+      assertThat(spool.records).isEqualTo(2);
+      assertThat(spool.evicted).isEqualTo(2);
+      assertThat(spool.oldestTimestampMillis()).isEqualTo(3);
+    }
+  }
+
+  @Test public void recover_reopensExistingSegments() throws IOException {
+    Path directory = folder.getRoot().toPath();
+    try (DiskSpool spool = new DiskSpool(directory, 1000, 50)) {
+      for (int i = 1; i <= 5; i++) spool.append(new byte[] {(byte) i}, i);
+    }
+
+    try (DiskSpool spool = new DiskSpool(directory, 1000, 50)) {
+      assertThat(spool.records).isEqualTo(5);
+      assertThat(spool.oldestTimestampMillis()).isEqualTo(1);
+      spool.append(new byte[] {6}, 6);
+      for (int i = 1; i <= 6; i++) {
+        Record record = spool.peek();
+        assertThat(record.request).containsExactly(i);
+        spool.remove(record);
+      }
+    }
+  }
+
+  @Test public void recover_discardsPartialRecord() throws IOException {
+    Path directory = folder.getRoot().toPath();
+    try (DiskSpool spool = new DiskSpool(directory, 1000, 1000)) {
+      spool.append(new byte[] {1, 2, 3}, 1);
+      spool.append(new byte[] {4, 5, 6}, 2);
+    }
+    Path segment = Files.list(directory).findFirst().get();
+    try (FileChannel channel = FileChannel.open(segment, WRITE)) {
+      channel.truncate(channel.size() - 1); // as if the process crashed while writing
+    }
+
+    try (DiskSpool spool = new DiskSpool(directory, 1000, 1000)) {
+      assertThat(spool.records).isEqualTo(1);
+      assertThat(spool.peek().request).containsExactly(1, 2, 3);
+      assertThat(Files.size(segment)).isEqualTo(DiskSpool.RECORD_HEADER_LENGTH + 3);
+    }
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.Span;
+import zipkin2.TestObjects;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+public class MergingSpanConsumerTest {
+  static final Span START = Span.newBuilder().traceId("1").id("2").name("get")
+      .localEndpoint(TestObjects.FRONTEND).timestamp(TestObjects.TODAY * 1000L).build();
+  static final Span FINISH = Span.newBuilder().traceId("1").id("2")
+      .localEndpoint(TestObjects.FRONTEND).duration(1000L).putTag("error", "").build();
+
+  SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+  List<List<Span>> requests = new CopyOnWriteArrayList<>();
+  volatile IOException error;
+
+  MergingSpanConsumer consumer = newConsumer(TimeUnit.MILLISECONDS.toNanos(50), 100);
+
+  MergingSpanConsumer newConsumer(long lingerNanos, int maxSpans) {
+    return new MergingSpanConsumer(spans -> {
+      requests.add(spans);
+      return error != null ? new DedupingSpanConsumerTest.FailedCall(error) : Call.create(null);
+    }, lingerNanos, maxSpans, scheduler, new StorageMetrics(registry));
+  }
+
+  @After public void close() {
+    scheduler.shutdownNow();
+  }
+
+  @Test public void accept_mergesFragments() {
+    CompletableFuture<Void> start = enqueue(singletonList(START));
+    CompletableFuture<Void> finish = enqueue(singletonList(FINISH));
+
+    await().untilAsserted(() -> assertThat(finish).isCompleted());
+    assertThat(start).isCompleted();
+    assertThat(requests).containsExactly(singletonList(START.toBuilder().merge(FINISH).build()));
+    assertThat(registry.get("zipkin_storage.stackdriver.merge.fragments").counter().count())
+        .isEqualTo(1);
+  }
+
+  @Test public void accept_leavesOtherSpans() {
+    List<Span> spans = asList(TestObjects.CLIENT_SPAN, START);
+
+    enqueue(spans).join();
+
+    assertThat(requests).containsExactly(spans);
+  }
+
+  @Test public void accept_keepsOrderOfFirstFragment() {
+    enqueue(asList(START, TestObjects.CLIENT_SPAN, FINISH)).join();
+
+    assertThat(requests).containsExactly(
+        asList(START.toBuilder().merge(FINISH).build(), TestObjects.CLIENT_SPAN));
+  }
+
+  @Test public void accept_doesntMergeSharedSpanWithItsClient() {
+    Span client = START.toBuilder().kind(Span.Kind.CLIENT).build();
+    Span server = Span.newBuilder().traceId("1").id("2").kind(Span.Kind.SERVER).shared(true)
+        .localEndpoint(TestObjects.BACKEND).timestamp(TestObjects.TODAY * 1000L + 1).build();
+    Span serverFinish = server.toBuilder().timestamp(0L).duration(500L).build();
+
+    enqueue(asList(server, client, serverFinish)).join();
+
+    assertThat(requests).containsExactly(
+        asList(server.toBuilder().merge(serverFinish).build(), client));
+    assertThat(requests.get(0).get(0).shared()).isTrue();
+  }
+
+  @Test public void accept_prefers128BitTraceId() {
+    Span finish = FINISH.toBuilder().traceId("00000000000000020000000000000001").build();
+
+    enqueue(asList(START, finish)).join();
+
+    assertThat(requests.get(0)).extracting(Span::traceId)
+        .containsExactly("00000000000000020000000000000001");
+  }
+
+  @Test public void spanConsumer_lingersOnStorageScheduler() {
+    StackdriverStorage storage = StackdriverStorage.newBuilder()
+        .projectId("test")
+        .mergeLinger(1, TimeUnit.SECONDS)
+        .build();
+    try {
+      assertThat(storage.mergingSpanConsumer.scheduler).isSameAs(storage.scheduler);
+    } finally {
+      storage.close();
+    }
+    assertThat(storage.scheduler.isShutdown()).isTrue();
+  }
+
+  @Test public void accept_sendsEarlyWhenFull() {
+    consumer = newConsumer(TimeUnit.HOURS.toNanos(1), 2);
+
+    CompletableFuture<Void> result = enqueue(asList(START, FINISH));
+
+    assertThat(result).isCompleted();
+    assertThat(requests).hasSize(1);
+  }
+
+  @Test public void accept_failsAllCallers() {
+    error = new IOException();
+
+    CompletableFuture<Void> start = enqueue(singletonList(START));
+    CompletableFuture<Void> finish = enqueue(singletonList(FINISH));
+
+    await().untilAsserted(() -> assertThat(finish).isCompletedExceptionally());
+    assertThat(start).isCompletedExceptionally();
+    assertThat(requests).hasSize(1);
+  }
+
+  @Test public void flushAll() {
+    consumer = newConsumer(TimeUnit.HOURS.toNanos(1), 100);
+
+    CompletableFuture<Void> result = enqueue(singletonList(START));
+    assertThat(requests).isEmpty();
+
+    consumer.flushAll();
+
+    assertThat(result).isCompleted();
+    assertThat(requests).containsExactly(singletonList(START));
+  }
+
+  CompletableFuture<Void> enqueue(List<Span> spans) {
+    CompletableFuture<Void> result = new CompletableFuture<>();
+    consumer.accept(spans).enqueue(new Callback<Void>() {
+      @Override public void onSuccess(Void value) {
+        result.complete(null);
+      }
+
+      @Override public void onError(Throwable t) {
+        result.completeExceptionally(t);
+      }
+    });
+    return result;
+  }
+}
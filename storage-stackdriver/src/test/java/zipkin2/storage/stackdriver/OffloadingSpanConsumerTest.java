@@ -0,0 +1,154 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Test;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.TestObjects;
+import zipkin2.storage.SpanConsumer;
+
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.awaitility.Awaitility.await;
+import static zipkin2.storage.stackdriver.CoalescingSpanConsumerTest.enqueue;
+
+public class OffloadingSpanConsumerTest {
+  SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  OffloadingSpanConsumer consumer;
+
+  @After public void close() {
+    if (consumer != null) consumer.close();
+  }
+
+  OffloadingSpanConsumer newConsumer(SpanConsumer delegate, int threads, int queueSize) {
+    return consumer =
+        new OffloadingSpanConsumer(delegate, threads, queueSize, new StorageMetrics(registry));
+  }
+
+  @Test public void accept_runsDelegateOnWorker() throws Exception {
+    AtomicReference<String> threadName = new AtomicReference<>();
+    newConsumer(spans -> {
+      threadName.set(Thread.currentThread().getName());
+      return Call.create(null);
+    }, 1, 1);
+
+    consumer.accept(singletonList(TestObjects.CLIENT_SPAN)).execute();
+
+    assertThat(threadName.get()).startsWith("zipkin-stackdriver-worker");
+    assertThat(registry.get("zipkin_storage.stackdriver.worker.wait").timer().count())
+        .isEqualTo(1);
+    // recorded after the call completes
+    await().untilAsserted(() -> assertThat(
+        registry.get("zipkin_storage.stackdriver.worker.execution").timer().count()).isEqualTo(1));
+  }
+
+  @Test public void accept_doesntRunUntilEnqueued() {
+    AtomicReference<String> threadName = new AtomicReference<>();
+    newConsumer(spans -> {
+      threadName.set(Thread.currentThread().getName());
+      return Call.create(null);
+    }, 1, 1);
+
+    consumer.accept(singletonList(TestObjects.CLIENT_SPAN));
+
+    assertThat(threadName.get()).isNull();
+  }
+
+  @Test public void accept_propagatesDelegateError() {
+    IllegalStateException error = new IllegalStateException();
+    newConsumer(spans -> {
+      throw error;
+    }, 1, 1);
+
+    assertThatThrownBy(consumer.accept(singletonList(TestObjects.CLIENT_SPAN))::execute)
+        .isSameAs(error);
+  }
+
+  @Test public void cancel_whileDelegateAccepts() {
+    AtomicReference<Call<Void>> offloaded = new AtomicReference<>();
+    AtomicBoolean enqueued = new AtomicBoolean();
+    Call<Void> delegateCall = new Call.Base<Void>() {
+      @Override protected Void doExecute() {
+        throw new AssertionError();
+      }
+
+      @Override protected void doEnqueue(Callback<Void> callback) {
+        enqueued.set(true);
+        callback.onSuccess(null);
+      }
+
+      @Override public Call<Void> clone() {
+        throw new AssertionError();
+      }
+    };
+    newConsumer(spans -> {
+      offloaded.get().cancel(); // before the delegate call is assigned
+      return delegateCall;
+    }, 1, 1);
+
+    offloaded.set(consumer.accept(singletonList(TestObjects.CLIENT_SPAN)));
+
+    assertThatThrownBy(offloaded.get()::execute).isInstanceOf(CancellationException.class);
+    assertThat(delegateCall.isCanceled()).isTrue();
+    assertThat(enqueued).isFalse();
+  }
+
+  @Test public void accept_rejectsWhenQueueFull() throws Exception {
+    CountDownLatch blocked = new CountDownLatch(1), release = new CountDownLatch(1);
+    newConsumer(spans -> {
+      blocked.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return Call.create(null);
+    }, 1, 1);
+
+    enqueue(consumer.accept(singletonList(TestObjects.CLIENT_SPAN))); // running
+    blocked.await();
+    enqueue(consumer.accept(singletonList(TestObjects.CLIENT_SPAN))); // queued
+
+    assertThatThrownBy(consumer.accept(singletonList(TestObjects.CLIENT_SPAN))::execute)
+        .isInstanceOf(RejectedExecutionException.class);
+    assertThat(registry.get("zipkin_storage.stackdriver.worker.queue").gauge().value())
+        .isEqualTo(1);
+    release.countDown();
+  }
+
+  @Test public void spanConsumer_wrapsCoalescing() {
+    StackdriverStorage storage = StackdriverStorage.newBuilder()
+        .projectId("test")
+        .coalesceLinger(1, TimeUnit.SECONDS)
+        .workerThreads(2)
+        .build();
+    try {
+      assertThat(storage.spanConsumer()).isInstanceOf(OffloadingSpanConsumer.class);
+      assertThat(((OffloadingSpanConsumer) storage.spanConsumer()).delegate)
+          .isSameAs(storage.coalescingSpanConsumer);
+    } finally {
+      storage.close();
+    }
+  }
+}
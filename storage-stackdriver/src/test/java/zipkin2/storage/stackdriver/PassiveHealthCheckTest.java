@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+import com.google.devtools.cloudtrace.v2.BatchWriteSpansRequest;
+import com.linecorp.armeria.common.grpc.protocol.ArmeriaStatusException;
+import io.grpc.Status;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import zipkin2.CheckResult;
+import zipkin2.TestObjects;
+
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.awaitility.Awaitility.await;
+
+public class PassiveHealthCheckTest {
+  @Rule public final TraceServiceRule server = new TraceServiceRule();
+
+  StackdriverStorage storage;
+
+  @After public void close() {
+    if (storage != null) storage.close();
+  }
+
+  @Test public void check_okUntilFirstRequestCompletes() {
+    server.status(Status.UNAVAILABLE);
+    storage = server.storageBuilder().build();
+
+    assertThat(storage.check()).isSameAs(CheckResult.OK); // starts a probe
+
+    await().until(() -> !storage.check().ok());
+  }
+
+  @Test public void check_usesOutcomeOfWrites() throws Exception {
+    storage = server.storageBuilder().build();
+
+    storage.spanConsumer().accept(singletonList(TestObjects.CLIENT_SPAN)).execute();
+
+    await().until(() -> storage.healthCheck.result != null);
+    assertThat(storage.check()).isSameAs(CheckResult.OK);
+    assertThat(server.requests).hasSize(1); // no probe
+  }
+
+  @Test public void check_failedWrite() {
+    server.status(Status.UNAVAILABLE);
+    storage = server.storageBuilder().build();
+
+    assertThatThrownBy(
+        storage.spanConsumer().accept(singletonList(TestObjects.CLIENT_SPAN))::execute)
+        .isInstanceOf(ArmeriaStatusException.class);
+
+    await().untilAsserted(() -> assertThat(storage.check().error())
+        .isInstanceOf(ArmeriaStatusException.class)
+        .satisfies(e -> assertThat(((ArmeriaStatusException) e).getCode())
+            .isEqualTo(Status.UNAVAILABLE.getCode().value())));
+  }
+
+  @Test public void check_invalidSpansAreHealthy() {
+    server.status(Status.INVALID_ARGUMENT);
+    storage = server.storageBuilder().build();
+
+    assertThatThrownBy(
+        storage.spanConsumer().accept(singletonList(TestObjects.CLIENT_SPAN))::execute)
+        .isInstanceOf(ArmeriaStatusException.class);
+
+    await().until(() -> storage.healthCheck.result != null);
+    assertThat(storage.check()).isSameAs(CheckResult.OK);
+  }
+
+  @Test public void check_probesWhenStale() throws Exception {
+    storage = server.storageBuilder().healthCheckTtl(1, TimeUnit.MILLISECONDS).build();
+
+    storage.spanConsumer().accept(singletonList(TestObjects.CLIENT_SPAN)).execute();
+    await().until(() -> storage.healthCheck.result == CheckResult.OK);
+    Thread.sleep(10);
+
+    server.status(Status.UNAVAILABLE);
+    assertThat(storage.check()).isSameAs(CheckResult.OK); // stale, but doesn't block
+
+    await().until(() -> !storage.check().ok());
+    List<BatchWriteSpansRequest> requests = server.requests;
+    assertThat(requests.get(requests.size() - 1).getSpansCount()).isZero(); // the probe
+  }
+
+  @Test public void healthCheckTtl_mustBePositive() {
+    assertThatThrownBy(() -> server.storageBuilder().healthCheckTtl(0, TimeUnit.SECONDS))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+}
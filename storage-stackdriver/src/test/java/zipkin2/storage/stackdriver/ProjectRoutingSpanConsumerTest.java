@@ -0,0 +1,116 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+import com.google.devtools.cloudtrace.v2.BatchWriteSpansRequest;
+import io.grpc.Status;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.TestObjects;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
+
+public class ProjectRoutingSpanConsumerTest {
+  static final Span DEFAULT = TestObjects.CLIENT_SPAN.toBuilder().clearTags().build();
+  static final Span TAGGED = DEFAULT.toBuilder().putTag("gcp.project_id", "tagged-project").build();
+  static final Span BACKEND = DEFAULT.toBuilder()
+      .localEndpoint(Endpoint.newBuilder().serviceName("backend").build()).build();
+
+  @Rule public final TraceServiceRule server = new TraceServiceRule();
+
+  SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  StackdriverStorage storage;
+  ProjectRoutingSpanConsumer consumer;
+
+  @Before public void open() {
+    storage = server.storageBuilder()
+        .projectIdTag("gcp.project_id")
+        .serviceProjectId("Backend", "backend-project")
+        .maxProjects(3)
+        .meterRegistry(registry)
+        .build();
+    consumer = (ProjectRoutingSpanConsumer) storage.spanConsumer();
+  }
+
+  @After public void close() {
+    storage.close();
+  }
+
+  @Test public void projectId() {
+    assertThat(consumer.projectId(DEFAULT)).isEqualTo("test-project");
+    assertThat(consumer.projectId(TAGGED)).isEqualTo("tagged-project");
+    assertThat(consumer.projectId(BACKEND)).isEqualTo("backend-project");
+    // the tag takes precedence over the service name
+    assertThat(consumer.projectId(
+        BACKEND.toBuilder().putTag("gcp.project_id", "tagged-project").build()))
+        .isEqualTo("tagged-project");
+  }
+
+  @Test public void accept_requestPerProject() throws IOException {
+    consumer.accept(asList(DEFAULT, TAGGED, BACKEND, DEFAULT)).execute();
+
+    assertThat(server.requests)
+        .extracting(BatchWriteSpansRequest::getName, BatchWriteSpansRequest::getSpansCount)
+        .containsExactlyInAnyOrder(
+            tuple("projects/test-project", 2),
+            tuple("projects/tagged-project", 1),
+            tuple("projects/backend-project", 1));
+    // spans are named in their own project
+    for (BatchWriteSpansRequest request : server.requests) {
+      assertThat(request.getSpansList())
+          .allMatch(span -> span.getName().startsWith(request.getName() + "/"));
+    }
+  }
+
+  @Test public void accept_oneProject() throws IOException {
+    consumer.accept(asList(TAGGED, TAGGED)).execute();
+
+    assertThat(server.requests)
+        .extracting(BatchWriteSpansRequest::getName)
+        .containsExactly("projects/tagged-project");
+    assertThat(consumer.consumers).containsOnlyKeys("test-project", "tagged-project");
+  }
+
+  @Test public void accept_partialFailure() {
+    server.status(request -> request.getName().equals("projects/tagged-project")
+        ? Status.PERMISSION_DENIED : Status.OK);
+
+    assertThatThrownBy(consumer.accept(asList(DEFAULT, TAGGED, BACKEND))::execute)
+        .isInstanceOf(PartialWriteException.class)
+        .hasMessage("Failed to write 1 of 3 spans: 1 of 3 requests failed");
+  }
+
+  @Test public void accept_dropsSpansOverMaxProjects() throws IOException {
+    Span other = DEFAULT.toBuilder().putTag("gcp.project_id", "other-project").build();
+    consumer.accept(asList(DEFAULT, TAGGED, BACKEND, other, other)).execute();
+
+    assertThat(server.requests)
+        .extracting(BatchWriteSpansRequest::getName)
+        .containsExactlyInAnyOrder(
+            "projects/test-project", "projects/tagged-project", "projects/backend-project");
+    assertThat(consumer.consumers)
+        .containsOnlyKeys("test-project", "tagged-project", "backend-project");
+    assertThat(registry.get("zipkin_storage.stackdriver.projects.dropped").counter().count())
+        .isEqualTo(2);
+  }
+}
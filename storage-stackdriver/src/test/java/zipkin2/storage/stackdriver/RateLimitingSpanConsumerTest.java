@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import zipkin2.Call;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.TestObjects;
+import zipkin2.storage.stackdriver.RateLimitingSpanConsumer.TokenBucket;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.nCopies;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RateLimitingSpanConsumerTest {
+  static final Span FRONTEND = span("frontend"), BACKEND = span("backend"), DB = span("db");
+
+  SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  List<Span> written = new ArrayList<>();
+
+  RateLimitingSpanConsumer newConsumer(int defaultRate, Map<String, Integer> overrides,
+      int maxServices) {
+    return new RateLimitingSpanConsumer(spans -> {
+      written.addAll(spans);
+      return Call.create(null);
+    }, defaultRate, overrides, maxServices, new StorageMetrics(registry));
+  }
+
+  @Test public void accept_limitsEachService() {
+    RateLimitingSpanConsumer consumer = newConsumer(2, Collections.emptyMap(), 10);
+
+    consumer.accept(asList(FRONTEND, FRONTEND, FRONTEND, BACKEND, BACKEND, BACKEND));
+
+    assertThat(written).containsExactly(FRONTEND, FRONTEND, BACKEND, BACKEND);
+    assertThat(dropped("frontend")).isEqualTo(1);
+    assertThat(dropped("backend")).isEqualTo(1);
+  }
+
+  @Test public void accept_overrides() {
+    RateLimitingSpanConsumer consumer =
+        newConsumer(0, Collections.singletonMap("frontend", 1), 10);
+
+    consumer.accept(asList(FRONTEND, FRONTEND, BACKEND, BACKEND));
+
+    assertThat(written).containsExactly(FRONTEND, BACKEND, BACKEND);
+    assertThat(consumer.bucket("backend")).isNull();
+  }
+
+  @Test public void accept_sharesLimitOverMaxServices() {
+    RateLimitingSpanConsumer consumer = newConsumer(1, Collections.emptyMap(), 1);
+
+    consumer.accept(asList(FRONTEND, BACKEND, DB));
+
+    assertThat(written).containsExactly(FRONTEND, BACKEND);
+    assertThat(consumer.buckets).containsOnlyKeys("frontend");
+    assertThat(dropped(RateLimitingSpanConsumer.OTHER)).isEqualTo(1);
+  }
+
+  @Test public void accept_keepsSameListWhenUnderLimit() {
+    List<Span> spans = nCopies(100, FRONTEND);
+
+    List<List<Span>> requests = new ArrayList<>();
+    new RateLimitingSpanConsumer(s -> {
+      requests.add(s);
+      return Call.create(null);
+    }, 100, Collections.emptyMap(), 10, new StorageMetrics(registry)).accept(spans);
+
+    assertThat(requests).hasSize(1);
+    assertThat(requests.get(0)).isSameAs(spans);
+  }
+
+  @Test public void tokenBucket_refills() {
+    TokenBucket bucket = new TokenBucket(10, null);
+    long now = System.nanoTime();
+
+    int acquired = 0;
+    while (bucket.tryAcquire(now)) acquired++;
+    assertThat(acquired).isEqualTo(10);
+
+    assertThat(bucket.tryAcquire(now + TimeUnit.MILLISECONDS.toNanos(100))).isTrue();
+    assertThat(bucket.tryAcquire(now + TimeUnit.MILLISECONDS.toNanos(100))).isFalse();
+  }
+
+  double dropped(String serviceName) {
+    return registry.get("zipkin_storage.stackdriver.rate_limit.dropped")
+        .tag("service", serviceName).counter().count();
+  }
+
+  static Span span(String serviceName) {
+    return TestObjects.CLIENT_SPAN.toBuilder()
+        .localEndpoint(Endpoint.newBuilder().serviceName(serviceName).build()).build();
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+import com.google.devtools.cloudtrace.v2.BatchWriteSpansRequest;
+import com.linecorp.armeria.client.UnprocessedRequestException;
+import com.linecorp.armeria.common.grpc.protocol.ArmeriaStatusException;
+import io.grpc.Status;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.net.ConnectException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import zipkin2.TestObjects;
+import zipkin2.storage.stackdriver.ConcurrencyLimitingClient.ConcurrencyLimitExceededException;
+
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.awaitility.Awaitility.await;
+
+public class SpoolTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+  @Rule public final TraceServiceRule server = new TraceServiceRule();
+
+  SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  StackdriverStorage storage;
+
+  @After public void close() {
+    if (storage != null) storage.close();
+  }
+
+  StackdriverStorage.Builder storageBuilder() {
+    return server.storageBuilder()
+        .meterRegistry(registry)
+        .healthCheckTtl(10, TimeUnit.MILLISECONDS)
+        .spoolDirectory(folder.getRoot().toPath())
+        .spoolReplayRate(100);
+  }
+
+  @Test public void accept_spoolsTransientFailureAndReplays() throws Exception {
+    server.status(Status.UNAVAILABLE);
+    storage = storageBuilder().build();
+
+    storage.spanConsumer().accept(singletonList(TestObjects.CLIENT_SPAN)).execute(); // no error
+
+    assertThat(registry.get("zipkin_storage.stackdriver.spool.requests").gauge().value())
+        .isEqualTo(1);
+
+    server.status(Status.OK); // the outage is over
+    server.requests.clear(); // only keep requests which see the new status
+    await().untilAsserted(() -> assertThat(server.requests)
+        .extracting(BatchWriteSpansRequest::getSpansCount)
+        .contains(1));
+    await().untilAsserted(() -> assertThat(
+        registry.get("zipkin_storage.stackdriver.spool.requests").gauge().value()).isZero());
+    assertThat(registry.get("zipkin_storage.stackdriver.spool.replayed").counter().count())
+        .isEqualTo(1);
+  }
+
+  @Test public void accept_doesntSpoolInvalidRequests() {
+    server.status(Status.INVALID_ARGUMENT);
+    storage = storageBuilder().build();
+
+    assertThatThrownBy(
+        storage.spanConsumer().accept(singletonList(TestObjects.CLIENT_SPAN))::execute)
+        .isInstanceOf(ArmeriaStatusException.class);
+
+    assertThat(storage.spool.records).isZero();
+  }
+
+  @Test public void accept_failsWhenSpoolFull() {
+    server.status(Status.UNAVAILABLE);
+    storage = server.storageBuilder().meterRegistry(registry)
+        .spoolDirectory(folder.getRoot().toPath())
+        .spoolMaxBytes(1) // smaller than any request
+        .build();
+
+    assertThatThrownBy(
+        storage.spanConsumer().accept(singletonList(TestObjects.CLIENT_SPAN))::execute)
+        .isInstanceOf(ArmeriaStatusException.class);
+
+    assertThat(registry.get("zipkin_storage.stackdriver.spool.rejected").counter().count())
+        .isEqualTo(1);
+  }
+
+  @Test public void shouldSpool() {
+    assertThat(Spool.shouldSpool(new ArmeriaStatusException(14, "unavailable"))).isTrue();
+    assertThat(Spool.shouldSpool(new ArmeriaStatusException(4, "deadline exceeded"))).isTrue();
+    assertThat(Spool.shouldSpool(UnprocessedRequestException.of(new ConnectException())))
+        .isTrue();
+
+    assertThat(Spool.shouldSpool(new ArmeriaStatusException(8, "resource exhausted"))).isFalse();
+    assertThat(Spool.shouldSpool(new ArmeriaStatusException(3, "invalid argument"))).isFalse();
+    ConcurrencyLimitExceededException rejected = new ConcurrencyLimitExceededException(1);
+    assertThat(Spool.shouldSpool(rejected)).isFalse();
+    assertThat(Spool.shouldSpool(UnprocessedRequestException.of(rejected))).isFalse();
+  }
+
+  @Test public void replaysSpoolOfPreviousProcess() throws Exception {
+    server.status(Status.UNAVAILABLE);
+    storage = storageBuilder().build();
+    storage.spanConsumer().accept(singletonList(TestObjects.CLIENT_SPAN)).execute();
+    storage.close();
+
+    server.status(Status.OK);
+    server.requests.clear();
+    storage = storageBuilder().build();
+
+    await().untilAsserted(() -> assertThat(server.requests)
+        .extracting(BatchWriteSpansRequest::getSpansCount)
+        .contains(1));
+  }
+
+  @Test public void spoolReplayRate_mustBePositive() {
+    assertThatThrownBy(() -> storageBuilder().spoolReplayRate(0))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+}
@@ -23,24 +23,38 @@ import com.linecorp.armeria.testing.junit4.server.ServerRule;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.stubbing.Answer;
+import zipkin2.Call;
+import zipkin2.Callback;
 import zipkin2.CheckResult;
+import zipkin2.Span;
 import zipkin2.TestObjects;
 import zipkin2.storage.SpanConsumer;
+import zipkin2.storage.stackdriver.StackdriverSpanConsumer.BatchWriteSpansCall;
+import zipkin2.storage.stackdriver.StackdriverSpanConsumer.SplitCall;
 import zipkin2.translation.stackdriver.SpanTranslator;
 
 import static java.util.Arrays.asList;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.awaitility.Awaitility.await;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 /** Same as AsyncReporterStackdriverSenderTest: tests everything wired together */
@@ -96,13 +110,91 @@ public class StackdriverSpanConsumerTest {
         .isEqualTo(SpanTranslator.translate(projectId, asList(TestObjects.CLIENT_SPAN)));
   }
 
+  @Test
+  public void accept_splitsByMaxSpansPerRequest() throws Exception {
+    onClientCall(observer -> {
+      observer.onNext(Empty.getDefaultInstance());
+      observer.onCompleted();
+    });
+    spanConsumer = StackdriverStorage.newBuilder("http://localhost:" + server.httpPort())
+        .projectId(projectId)
+        .maxSpansPerRequest(2)
+        .build().spanConsumer();
+
+    List<Span> spans = new ArrayList<>();
+    for (int i = 1; i <= 5; i++) spans.add(TestObjects.CLIENT_SPAN.toBuilder().id(i).build());
+    spanConsumer.accept(spans).execute();
+
+    ArgumentCaptor<BatchWriteSpansRequest> requestCaptor =
+        ArgumentCaptor.forClass(BatchWriteSpansRequest.class);
+    verify(traceService, times(3)).batchWriteSpans(requestCaptor.capture(), any());
+    assertThat(requestCaptor.getAllValues())
+        .flatExtracting(BatchWriteSpansRequest::getSpansList)
+        .containsExactlyInAnyOrderElementsOf(SpanTranslator.translate(projectId, spans));
+    assertThat(requestCaptor.getAllValues())
+        .extracting(BatchWriteSpansRequest::getSpansCount)
+        .containsExactlyInAnyOrder(2, 2, 1);
+  }
+
+  @Test
+  public void accept_partialFailure() {
+    String failedSpanId = "0000000000000003";
+    doAnswer(invocation -> {
+      BatchWriteSpansRequest request = invocation.getArgument(0);
+      StreamObserver<Empty> observer = invocation.getArgument(1);
+      if (request.getSpansList().stream().anyMatch(s -> s.getSpanId().equals(failedSpanId))) {
+        observer.onError(new StatusRuntimeException(Status.INVALID_ARGUMENT));
+      } else {
+        observer.onNext(Empty.getDefaultInstance());
+        observer.onCompleted();
+      }
+      return null;
+    }).when(traceService)
+        .batchWriteSpans(any(BatchWriteSpansRequest.class), any(StreamObserver.class));
+    spanConsumer = StackdriverStorage.newBuilder("http://localhost:" + server.httpPort())
+        .projectId(projectId)
+        .maxSpansPerRequest(2)
+        .splitParallelism(1)
+        .build().spanConsumer();
+
+    List<Span> spans = new ArrayList<>();
+    for (int i = 1; i <= 5; i++) spans.add(TestObjects.CLIENT_SPAN.toBuilder().id(i).build());
+
+    assertThatThrownBy(() -> spanConsumer.accept(spans).execute())
+        .isInstanceOf(PartialWriteException.class)
+        .hasMessage("Failed to write 2 of 5 spans: 1 of 3 requests failed")
+        .hasCauseInstanceOf(ArmeriaStatusException.class)
+        .satisfies(e -> assertThat(((PartialWriteException) e).failedSpans()).isEqualTo(2));
+  }
+
+  @Test
+  public void encodeRequest_sameBytesAsBatchWriteSpansRequest() {
+    List<com.google.devtools.cloudtrace.v2.Span> spans = SpanTranslator.translate(projectId,
+        asList(TestObjects.CLIENT_SPAN, TestObjects.CLIENT_SPAN.toBuilder().id(2).build()));
+    BatchWriteSpansRequest request = BatchWriteSpansRequest.newBuilder()
+        .setName("projects/" + projectId)
+        .addAllSpans(spans)
+        .build();
+
+    byte[] projectNameField = StackdriverSpanConsumer.encodeProjectName("projects/" + projectId);
+    ByteBuf buf =
+        new BatchWriteSpansCall(null, projectNameField, spans, null, null).encodeRequest();
+    try {
+      assertThat(buf.readByte()).isZero(); // uncompressed
+      assertThat(buf.readInt()).isEqualTo(request.getSerializedSize());
+      assertThat(ByteBufUtil.getBytes(buf)).containsExactly(request.toByteArray());
+    } finally {
+      buf.release();
+    }
+  }
+
   @Test
   public void verifyCheckReturnsFailureWhenServiceFailsWithKnownGrpcFailure() {
     onClientCall(observer -> {
       observer.onError(new StatusRuntimeException(Status.RESOURCE_EXHAUSTED));
     });
 
-    CheckResult result = storage.check();
+    CheckResult result = awaitCheck();
     assertThat(result.ok()).isFalse();
     assertThat(result.error())
         .isInstanceOf(ArmeriaStatusException.class)
@@ -116,7 +208,7 @@ public class StackdriverSpanConsumerTest {
     onClientCall(observer -> {
       observer.onError(new RuntimeException("oh no"));
     });
-    CheckResult result = storage.check();
+    CheckResult result = awaitCheck();
     assertThat(result.ok()).isFalse();
     assertThat(result.error())
         .isInstanceOf(ArmeriaStatusException.class)
@@ -125,12 +217,67 @@ public class StackdriverSpanConsumerTest {
             .isEqualTo(Status.UNKNOWN.getCode().value()));
   }
 
+  /** Like {@link BatchWriteSpansCall}, a call may pass an error to its callback, then throw it. */
+  @Test
+  public void splitCall_completesOnceWhenEnqueueThrows() {
+    List<String> events = new CopyOnWriteArrayList<>();
+    IllegalStateException error = new IllegalStateException("Unable to serialize");
+    Call<Void> throwing = new TestCall(callback -> {
+      callback.onError(error);
+      throw error;
+    });
+    AtomicReference<Callback<Void>> second = new AtomicReference<>();
+    Call<Void> inFlight = new TestCall(second::set);
+    SplitCall call =
+        new SplitCall(asList(throwing, inFlight), new int[] {1, 2}, 1, new StorageMetrics(null));
+
+    call.enqueue(new Callback<Void>() {
+      @Override public void onSuccess(Void value) {
+        events.add("success");
+      }
+
+      @Override public void onError(Throwable t) {
+        events.add("error");
+        assertThat(t).isInstanceOf(PartialWriteException.class)
+            .hasMessage("Failed to write 1 of 3 spans: 1 of 2 requests failed");
+      }
+    });
+
+    assertThat(second).doesNotHaveValue(null);
+    assertThat(events).isEmpty(); // waits for the second call
+
+    second.get().onSuccess(null);
+    assertThat(events).containsExactly("error");
+    assertThat(call.metrics.spansInFlight).hasValue(0);
+    assertThat(call.metrics.writesInFlight).isEmpty();
+  }
+
+  static final class TestCall extends Call.Base<Void> {
+    final Consumer<Callback<Void>> onEnqueue;
+
+    TestCall(Consumer<Callback<Void>> onEnqueue) {
+      this.onEnqueue = onEnqueue;
+    }
+
+    @Override protected Void doExecute() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override protected void doEnqueue(Callback<Void> callback) {
+      onEnqueue.accept(callback);
+    }
+
+    @Override public Call<Void> clone() {
+      return new TestCall(onEnqueue);
+    }
+  }
+
   @Test
   public void verifyCheckReturnsOkWhenExpectedValidationFailure() {
     onClientCall(observer -> {
       observer.onError(new StatusRuntimeException(Status.INVALID_ARGUMENT));
     });
-    assertThat(storage.check()).isSameAs(CheckResult.OK);
+    assertThat(awaitCheck()).isSameAs(CheckResult.OK);
   }
 
   @Test
@@ -139,7 +286,14 @@ public class StackdriverSpanConsumerTest {
       observer.onNext(Empty.getDefaultInstance());
       observer.onCompleted();
     });
-    assertThat(storage.check()).isSameAs(CheckResult.OK);
+    assertThat(awaitCheck()).isSameAs(CheckResult.OK);
+  }
+
+  /** The first check starts a probe in the background. This returns the first probe's result. */
+  CheckResult awaitCheck() {
+    assertThat(storage.check()).isSameAs(CheckResult.OK); // until the probe completes
+    await().until(() -> storage.healthCheck.result != null);
+    return storage.check();
   }
 
   void onClientCall(Consumer<StreamObserver<Empty>> onClientCall) {
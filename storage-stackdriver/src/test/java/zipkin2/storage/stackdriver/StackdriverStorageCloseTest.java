@@ -0,0 +1,153 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import zipkin2.Callback;
+import zipkin2.TestObjects;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class StackdriverStorageCloseTest {
+  @Rule public final TraceServiceRule server = new TraceServiceRule();
+
+  List<LogRecord> logged = new CopyOnWriteArrayList<>();
+  Handler handler = new Handler() {
+    @Override public void publish(LogRecord record) {
+      logged.add(record);
+    }
+
+    @Override public void flush() {
+    }
+
+    @Override public void close() {
+    }
+  };
+
+  StackdriverStorage storage;
+
+  StackdriverStorage.Builder newBuilder() {
+    StackdriverStorage.LOG.addHandler(handler);
+    return server.storageBuilder();
+  }
+
+  @After public void close() {
+    StackdriverStorage.LOG.removeHandler(handler);
+    if (storage != null) storage.close();
+  }
+
+  @Test public void close_waitsForInFlightRequests() {
+    server.delay(200, TimeUnit.MILLISECONDS);
+    storage = newBuilder().closeTimeout(10, TimeUnit.SECONDS).build();
+    CompletableFuture<Void> result = enqueue();
+
+    storage.close();
+
+    assertThat(result).isCompleted().isNotCompletedExceptionally();
+    assertThat(storage.metrics.spansInFlight).hasValue(0);
+    assertThat(logged).isEmpty();
+  }
+
+  @Test public void close_waitsForUnsentRequestsOfSplitCall() {
+    server.delay(100, TimeUnit.MILLISECONDS);
+    storage = newBuilder()
+        .maxSpansPerRequest(1)
+        .splitParallelism(1)
+        .closeTimeout(10, TimeUnit.SECONDS)
+        .build();
+    CompletableFuture<Void> result = enqueue();
+
+    storage.close();
+
+    assertThat(server.requests).hasSize(2);
+    assertThat(result).isCompleted().isNotCompletedExceptionally();
+    assertThat(storage.metrics.writesInFlight).isEmpty();
+    assertThat(logged).isEmpty();
+  }
+
+  @Test public void close_sendsBufferedSpans() {
+    storage = newBuilder()
+        .coalesceLinger(1, TimeUnit.MINUTES)
+        .workerThreads(1)
+        .closeTimeout(10, TimeUnit.SECONDS)
+        .build();
+    CompletableFuture<Void> result = enqueue();
+
+    storage.close();
+
+    assertThat(server.requests).hasSize(1);
+    assertThat(result).isCompleted().isNotCompletedExceptionally();
+  }
+
+  @Test public void close_logsLostSpans() {
+    server.delay(-1, TimeUnit.MILLISECONDS);
+    storage = newBuilder().closeTimeout(100, TimeUnit.MILLISECONDS).build();
+    enqueue();
+
+    storage.close();
+
+    assertThat(logged).extracting(LogRecord::getLevel).containsExactly(Level.WARNING);
+    assertThat(logged.get(0).getParameters()).containsExactly(2L, 100L);
+  }
+
+  @Test public void close_logsUnsentRequestsOfSplitCallAsLost() {
+    server.delay(-1, TimeUnit.MILLISECONDS);
+    storage = newBuilder()
+        .maxSpansPerRequest(1)
+        .splitParallelism(1)
+        .closeTimeout(100, TimeUnit.MILLISECONDS)
+        .build();
+    enqueue();
+
+    storage.close();
+
+    assertThat(server.requests).hasSize(1);
+    assertThat(logged.get(0).getParameters()).containsExactly(2L, 100L);
+  }
+
+  @Test public void spanConsumer_failsAfterClose() {
+    storage = newBuilder().build();
+    storage.close();
+
+    assertThatThrownBy(storage.spanConsumer().accept(asList(TestObjects.CLIENT_SPAN))::execute)
+        .isInstanceOf(IllegalStateException.class)
+        .hasMessage("StackdriverStorage is closed");
+  }
+
+  CompletableFuture<Void> enqueue() {
+    CompletableFuture<Void> result = new CompletableFuture<>();
+    storage.spanConsumer().accept(asList(TestObjects.CLIENT_SPAN, TestObjects.CLIENT_SPAN))
+        .enqueue(new Callback<Void>() {
+          @Override public void onSuccess(Void value) {
+            result.complete(null);
+          }
+
+          @Override public void onError(Throwable t) {
+            result.completeExceptionally(t);
+          }
+        });
+    return result;
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+import com.linecorp.armeria.client.ResponseTimeoutException;
+import com.linecorp.armeria.client.UnprocessedRequestException;
+import com.linecorp.armeria.common.grpc.protocol.ArmeriaStatusException;
+import java.io.IOException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import org.junit.After;
+import org.junit.Test;
+import zipkin2.storage.stackdriver.ConcurrencyLimitingClient.ConcurrencyLimitExceededException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StackdriverStorageTest {
+  StackdriverStorage storage = StackdriverStorage.newBuilder("http://localhost:9411")
+      .projectId("test-project")
+      .build();
+
+  @After public void close() {
+    storage.close();
+  }
+
+  @Test public void isOverCapacity_pushback() {
+    assertThat(storage.isOverCapacity(new ArmeriaStatusException(8, "RESOURCE_EXHAUSTED")))
+        .isTrue();
+    assertThat(storage.isOverCapacity(new ArmeriaStatusException(14, "UNAVAILABLE"))).isTrue();
+    assertThat(storage.isOverCapacity(new ArmeriaStatusException(4, "DEADLINE_EXCEEDED")))
+        .isTrue();
+  }
+
+  @Test public void isOverCapacity_notPushback() {
+    assertThat(storage.isOverCapacity(new ArmeriaStatusException(3, "INVALID_ARGUMENT")))
+        .isFalse();
+    assertThat(storage.isOverCapacity(new IOException("connection reset"))).isFalse();
+  }
+
+  @Test public void isOverCapacity_transport() {
+    assertThat(storage.isOverCapacity(
+        UnprocessedRequestException.of(new IOException("connection refused")))).isTrue();
+    assertThat(storage.isOverCapacity(ResponseTimeoutException.get())).isTrue();
+    assertThat(storage.isOverCapacity(new RejectedExecutionException())).isTrue();
+  }
+
+  @Test public void isOverCapacity_concurrencyLimit() {
+    assertThat(storage.isOverCapacity(new ConcurrencyLimitExceededException(1))).isTrue();
+  }
+
+  @Test public void isOverCapacity_checksCauses() {
+    assertThat(storage.isOverCapacity(new PartialWriteException(1, 2, 1, 2,
+        new ArmeriaStatusException(8, "RESOURCE_EXHAUSTED")))).isTrue();
+    assertThat(storage.isOverCapacity(
+        new CompletionException(ResponseTimeoutException.get()))).isTrue();
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+import com.linecorp.armeria.common.grpc.protocol.ArmeriaStatusException;
+import io.grpc.Status;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import zipkin2.TestObjects;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.awaitility.Awaitility.await;
+
+public class StorageMetricsTest {
+
+  @Rule public final TraceServiceRule server = new TraceServiceRule();
+
+  SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  StackdriverStorage storage;
+
+  @Before public void setUp() {
+    storage = server.storageBuilder()
+        .meterRegistry(registry)
+        .build();
+  }
+
+  @After public void close() {
+    storage.close();
+  }
+
+  @Test public void accept_recordsRequest() throws Exception {
+    storage.spanConsumer().accept(asList(TestObjects.CLIENT_SPAN, TestObjects.CLIENT_SPAN))
+        .execute();
+
+    assertThat(registry.get("zipkin_storage.stackdriver.translation").timer().count())
+        .isEqualTo(1);
+    assertThat(registry.get("zipkin_storage.stackdriver.request.spans").summary().totalAmount())
+        .isEqualTo(2);
+    assertThat(registry.get("zipkin_storage.stackdriver.request.bytes").summary().totalAmount())
+        .isPositive();
+    await().untilAsserted(() -> assertThat(requests("OK").count()).isEqualTo(1));
+    assertThat(registry.get("zipkin_storage.stackdriver.requests.active").gauge().value())
+        .isZero();
+  }
+
+  @Test public void accept_tagsRequestsWithStatus() {
+    server.status(Status.RESOURCE_EXHAUSTED);
+
+    assertThatThrownBy(() -> storage.spanConsumer().accept(asList(TestObjects.CLIENT_SPAN))
+        .execute())
+        .isInstanceOf(ArmeriaStatusException.class);
+
+    await().untilAsserted(
+        () -> assertThat(requests("RESOURCE_EXHAUSTED").count()).isEqualTo(1));
+    assertThat(requests("RESOURCE_EXHAUSTED").totalTime(TimeUnit.NANOSECONDS)).isPositive();
+  }
+
+  @Test public void accept_reusesTimerPerStatus() throws Exception {
+    storage.spanConsumer().accept(asList(TestObjects.CLIENT_SPAN)).execute();
+    storage.spanConsumer().accept(asList(TestObjects.CLIENT_SPAN)).execute();
+
+    await().untilAsserted(() -> assertThat(requests("OK").count()).isEqualTo(2));
+    assertThat(storage.metrics.requests(0)).isSameAs(requests("OK"));
+  }
+
+  @Test public void close_removesGauges() {
+    storage.close();
+
+    assertThat(registry.find("zipkin_storage.stackdriver.requests.active").gauge()).isNull();
+
+    // so that the next storage reports its own values
+    storage = server.storageBuilder()
+        .meterRegistry(registry)
+        .build();
+    storage.metrics.activeRequests.set(3);
+    assertThat(registry.get("zipkin_storage.stackdriver.requests.active").gauge().value())
+        .isEqualTo(3);
+  }
+
+  @Test public void withoutRegistry_recordsNothing() throws Exception {
+    StackdriverStorage storage =
+        server.storageBuilder()
+            .build();
+    try {
+      storage.spanConsumer().accept(asList(TestObjects.CLIENT_SPAN)).execute();
+    } finally {
+      storage.close();
+    }
+
+    assertThat(registry.find("zipkin_storage.stackdriver.requests").timers()).isEmpty();
+  }
+
+  Timer requests(String status) {
+    return registry.get("zipkin_storage.stackdriver.requests").tag("status", status).timer();
+  }
+}
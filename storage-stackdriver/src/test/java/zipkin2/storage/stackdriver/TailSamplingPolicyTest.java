@@ -0,0 +1,51 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import zipkin2.Span;
+import zipkin2.TestObjects;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TailSamplingPolicyTest {
+  static final Span SPAN = TestObjects.CLIENT_SPAN.toBuilder().clearTags().duration(1000L).build();
+
+  @Test public void errors() {
+    TailSamplingPolicy policy = TailSamplingPolicy.errors();
+
+    assertThat(policy.keep(singletonList(SPAN))).isFalse();
+    assertThat(policy.keep(asList(SPAN, SPAN.toBuilder().putTag("error", "500").build())))
+        .isTrue();
+  }
+
+  @Test public void latency() {
+    TailSamplingPolicy policy = TailSamplingPolicy.latency(2, TimeUnit.MILLISECONDS);
+
+    assertThat(policy.keep(singletonList(SPAN))).isFalse();
+    assertThat(policy.keep(asList(SPAN, SPAN.toBuilder().duration(2000L).build()))).isTrue();
+  }
+
+  @Test public void rateLimited() {
+    TailSamplingPolicy policy = TailSamplingPolicy.rateLimited(1);
+    List<Span> trace = singletonList(SPAN);
+
+    assertThat(policy.keep(trace)).isTrue();
+    assertThat(policy.keep(trace)).isFalse();
+  }
+}
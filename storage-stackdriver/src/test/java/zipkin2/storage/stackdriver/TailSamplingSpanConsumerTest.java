@@ -0,0 +1,175 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import zipkin2.Call;
+import zipkin2.Span;
+import zipkin2.TestObjects;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+public class TailSamplingSpanConsumerTest {
+  SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+  List<Span> written = new CopyOnWriteArrayList<>();
+
+  TailSamplingSpanConsumer consumer = newConsumer(TimeUnit.HOURS.toNanos(1), 100, 100);
+
+  TailSamplingSpanConsumer newConsumer(long idleNanos, int maxSpans, int maxSpansPerTrace) {
+    registry = new SimpleMeterRegistry(); // gauges are bound to the first consumer registered
+    return new TailSamplingSpanConsumer(spans -> {
+      written.addAll(spans);
+      return Call.create(null);
+    }, singletonList(TailSamplingPolicy.errors()), idleNanos, maxSpans, maxSpansPerTrace,
+        scheduler, new StorageMetrics(registry));
+  }
+
+  @After public void close() {
+    scheduler.shutdownNow();
+  }
+
+  @Test public void accept_buffersUntilDecided() throws IOException {
+    consumer.accept(asList(span(1, 1, false), span(1, 2, true), span(2, 1, false))).execute();
+    assertThat(written).isEmpty();
+    assertThat(gauge("buffered.spans")).isEqualTo(3);
+    assertThat(gauge("buffered.traces")).isEqualTo(2);
+
+    consumer.decideAll();
+
+    assertThat(written).containsExactly(span(1, 1, false), span(1, 2, true));
+    assertThat(gauge("buffered.spans")).isZero();
+    assertThat(traces("kept", "error")).isEqualTo(1);
+    assertThat(traces("dropped", "none")).isEqualTo(1);
+    assertThat(registry.get("zipkin_storage.stackdriver.tail_sampling.spans.dropped").counter()
+        .count()).isEqualTo(1);
+  }
+
+  @Test public void accept_lateSpansFollowDecision() throws IOException {
+    consumer.accept(asList(span(1, 1, true), span(2, 1, false))).execute();
+    consumer.decideAll();
+    written.clear();
+
+    consumer.accept(asList(span(1, 2, false), span(2, 2, true))).execute();
+
+    assertThat(written).containsExactly(span(1, 2, false));
+    assertThat(gauge("buffered.spans")).isZero();
+  }
+
+  @Test public void accept_decidesWhenIdle() throws IOException {
+    consumer = newConsumer(TimeUnit.MILLISECONDS.toNanos(10), 100, 100);
+
+    consumer.accept(asList(span(1, 1, true))).execute();
+
+    await().untilAsserted(() -> assertThat(written).containsExactly(span(1, 1, true)));
+  }
+
+  @Test public void accept_decidesWhenTraceFull() throws IOException {
+    consumer = newConsumer(TimeUnit.HOURS.toNanos(1), 100, 2);
+
+    consumer.accept(asList(span(1, 1, true), span(1, 2, false), span(2, 1, true))).execute();
+
+    assertThat(written).containsExactly(span(1, 1, true), span(1, 2, false));
+    assertThat(gauge("buffered.spans")).isEqualTo(1);
+  }
+
+  @Test public void accept_boundsBufferedSpans_decidingOldestTrace() throws IOException {
+    consumer = newConsumer(TimeUnit.HOURS.toNanos(1), 2, 100);
+
+    consumer.accept(asList(span(1, 1, true), span(2, 1, true), span(3, 1, true))).execute();
+
+    assertThat(written).containsExactly(span(1, 1, true));
+    assertThat(gauge("buffered.spans")).isEqualTo(2);
+    assertThat(gauge("buffered.traces")).isEqualTo(2);
+  }
+
+  @Test public void accept_countsFailedWrites() throws IOException {
+    registry = new SimpleMeterRegistry();
+    consumer = new TailSamplingSpanConsumer(spans -> {
+      throw new IllegalStateException("unavailable");
+    }, singletonList(TailSamplingPolicy.errors()), TimeUnit.HOURS.toNanos(1), 100, 100,
+        scheduler, new StorageMetrics(registry));
+
+    consumer.accept(asList(span(1, 1, true), span(1, 2, false))).execute();
+    consumer.decideAll();
+
+    assertThat(registry.get("zipkin_storage.stackdriver.tail_sampling.spans.failed").counter()
+        .count()).isEqualTo(2);
+  }
+
+  @Test public void decisions_forgetOldest() {
+    TailSamplingSpanConsumer.Decisions decisions = new TailSamplingSpanConsumer.Decisions(2);
+
+    decisions.put("1", true);
+    decisions.put("2", false);
+    decisions.put("3", true);
+
+    assertThat(decisions.get("1")).isNull();
+    assertThat(decisions.get("2")).isFalse();
+    assertThat(decisions.get("3")).isTrue();
+  }
+
+  @Test public void decideIdle_forgetsDecidedTraces() throws IOException {
+    consumer = newConsumer(TimeUnit.HOURS.toNanos(1), 100, 1);
+
+    consumer.accept(asList(span(1, 1, true))).execute(); // decided as the trace is full
+    assertThat(consumer.oldest).hasSize(1);
+
+    consumer.decideIdle();
+
+    assertThat(consumer.oldest).isEmpty();
+  }
+
+  @Test public void spanConsumer_sweepsOnStorageScheduler() {
+    StackdriverStorage storage = StackdriverStorage.newBuilder()
+        .projectId("test")
+        .tailSamplingIdle(1, TimeUnit.SECONDS)
+        .build();
+    try {
+      assertThat(storage.scheduler).isNotNull();
+      assertThat(storage.spanConsumer()).isSameAs(storage.tailSamplingSpanConsumer);
+    } finally {
+      storage.close();
+    }
+    assertThat(storage.tailSamplingSpanConsumer.sweep.isCancelled()).isTrue();
+    assertThat(storage.scheduler.isShutdown()).isTrue();
+  }
+
+  double gauge(String name) {
+    return registry.get("zipkin_storage.stackdriver.tail_sampling." + name).gauge().value();
+  }
+
+  double traces(String decision, String policy) {
+    return registry.get("zipkin_storage.stackdriver.tail_sampling.traces")
+        .tag("decision", decision).tag("policy", policy).counter().count();
+  }
+
+  static Span span(long traceId, long id, boolean error) {
+    Span.Builder builder = TestObjects.CLIENT_SPAN.toBuilder()
+        .traceId(Long.toHexString(traceId)).parentId(null).id(id).clearTags();
+    if (error) builder.putTag("error", "");
+    return builder.build();
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import zipkin2.Call;
+import zipkin2.Span;
+import zipkin2.TestObjects;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class TraceIdSamplingSpanConsumerTest {
+  SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  List<List<Span>> requests = new ArrayList<>();
+
+  TraceIdSamplingSpanConsumer newConsumer(float rate) {
+    return new TraceIdSamplingSpanConsumer(spans -> {
+      requests.add(spans);
+      return Call.create(null);
+    }, rate, new StorageMetrics(registry));
+  }
+
+  @Test public void accept_keepsSameListWhenAllSampled() {
+    List<Span> spans = asList(TestObjects.CLIENT_SPAN, TestObjects.CLIENT_SPAN);
+
+    newConsumer(1.0f).accept(spans);
+
+    assertThat(requests).hasSize(1);
+    assertThat(requests.get(0)).isSameAs(spans);
+  }
+
+  @Test public void accept_dropsAllAtZero() {
+    newConsumer(0.0f).accept(asList(TestObjects.CLIENT_SPAN));
+
+    assertThat(requests).isEmpty();
+    assertThat(registry.get("zipkin_storage.stackdriver.sampling.dropped").counter().count())
+        .isEqualTo(1);
+  }
+
+  @Test public void accept_keepsRate() {
+    Random random = new Random(1L);
+    List<Span> spans = new ArrayList<>();
+    for (int i = 0; i < 100_000; i++) {
+      spans.add(TestObjects.CLIENT_SPAN.toBuilder().traceId(0L, random.nextLong() | 1L).build());
+    }
+
+    newConsumer(0.25f).accept(spans);
+
+    assertThat(requests.get(0).size() / 100_000.0).isCloseTo(0.25, within(0.01));
+  }
+
+  @Test public void isSampled_consistent() {
+    TraceIdSamplingSpanConsumer consumer = newConsumer(0.5f);
+    TraceIdSamplingSpanConsumer other = newConsumer(0.5f);
+
+    for (long i = 0; i < 1000; i++) {
+      String traceId = Long.toHexString(i);
+      boolean sampled = consumer.isSampled(traceId);
+      assertThat(other.isSampled(traceId)).isEqualTo(sampled);
+      // 128-bit trace IDs are decided by their lower 64 bits
+      assertThat(consumer.isSampled("463ac35c9f6413ad" + String.format("%016x", i)))
+          .isEqualTo(sampled);
+    }
+  }
+
+  @Test public void lowerHexToLong() {
+    assertThat(TraceIdSamplingSpanConsumer.lowerHexToLong("a")).isEqualTo(10L);
+    assertThat(TraceIdSamplingSpanConsumer.lowerHexToLong("463ac35c9f6413ad48485a3953bb6124"))
+        .isEqualTo(0x48485a3953bb6124L);
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.stackdriver;
+
+import com.google.devtools.cloudtrace.v2.BatchWriteSpansRequest;
+import com.google.devtools.cloudtrace.v2.TraceServiceGrpc;
+import com.google.protobuf.Empty;
+import com.linecorp.armeria.server.ServerBuilder;
+import com.linecorp.armeria.server.ServiceRequestContext;
+import com.linecorp.armeria.server.grpc.GrpcService;
+import com.linecorp.armeria.testing.junit4.server.ServerRule;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * A fake Stackdriver Trace server, which records each {@code BatchWriteSpans} request and responds
+ * with {@link #status(Status)}, or with {@link #status(Function)} of the request.
+ */
+final class TraceServiceRule extends ServerRule {
+  final List<BatchWriteSpansRequest> requests = new CopyOnWriteArrayList<>();
+  volatile Function<BatchWriteSpansRequest, Status> status = request -> Status.OK;
+  volatile long delayMillis; // negative never responds
+
+  /** Responds to all requests with this status. */
+  TraceServiceRule status(Status status) {
+    return status(request -> status);
+  }
+
+  TraceServiceRule status(Function<BatchWriteSpansRequest, Status> status) {
+    this.status = status;
+    return this;
+  }
+
+  /** Delays responses by this long. When negative, requests never complete. */
+  TraceServiceRule delay(long delay, TimeUnit unit) {
+    this.delayMillis = delay < 0 ? -1 : unit.toMillis(delay);
+    return this;
+  }
+
+  /** Returns a storage builder which writes to this server. */
+  StackdriverStorage.Builder storageBuilder() {
+    return StackdriverStorage.newBuilder("http://localhost:" + httpPort())
+        .projectId("test-project");
+  }
+
+  @Override protected void configure(ServerBuilder sb) {
+    sb.service(GrpcService.builder()
+        .addService(new TraceServiceGrpc.TraceServiceImplBase() {
+          @Override public void batchWriteSpans(BatchWriteSpansRequest request,
+              StreamObserver<Empty> responseObserver) {
+            requests.add(request);
+            Status status = TraceServiceRule.this.status.apply(request);
+            long delayMillis = TraceServiceRule.this.delayMillis;
+            if (delayMillis < 0) return;
+            if (delayMillis == 0) {
+              respond(responseObserver, status);
+              return;
+            }
+            ServiceRequestContext.current().eventLoop().schedule(
+                () -> respond(responseObserver, status), delayMillis, TimeUnit.MILLISECONDS);
+          }
+        })
+        .build());
+  }
+
+  static void respond(StreamObserver<Empty> responseObserver, Status status) {
+    if (!status.isOk()) {
+      responseObserver.onError(status.asRuntimeException());
+      return;
+    }
+    responseObserver.onNext(Empty.getDefaultInstance());
+    responseObserver.onCompleted();
+  }
+}
@@ -101,7 +101,7 @@ final class AttributesExtractor {
         .build();
   }
 
-  private String getLabelName(String zipkinName) {
+  String getLabelName(String zipkinName) {
     String renamed = renamedLabels.get(zipkinName);
     return renamed != null ? renamed : zipkinName;
   }
@@ -127,6 +127,14 @@ public final class SpanTranslator {
     return spanBuilder;
   }
 
+  /**
+   * Returns the Stackdriver label name for a Zipkin tag key, for example "/http/method" for
+   * "http.method". Other keys are returned as is.
+   */
+  public static String labelName(String tagKey) {
+    return ATTRIBUTES_EXTRACTOR.getLabelName(tagKey);
+  }
+
   static Timestamp createTimestamp(long microseconds) {
     long seconds = (microseconds / 1000000);
     int remainderMicros = (int) (microseconds % 1000000);
@@ -82,6 +82,13 @@ public class SpanTranslatorTest {
                 .build());
   }
 
+  @Test
+  public void labelName() {
+    assertThat(SpanTranslator.labelName("http.method")).isEqualTo("/http/method");
+    assertThat(SpanTranslator.labelName("http.response.size")).isEqualTo("/response/size");
+    assertThat(SpanTranslator.labelName("error")).isEqualTo("error");
+  }
+
   @Test
   public void translate_missingName() {
     Span zipkinSpan = Span.newBuilder().traceId("3").id("2").build();